@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.test;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Average latency and allocations of one operation, as measured by a {@link Benchmark}.
+ * <p>
+ * Allocations are counted with the per-thread counters of {@link Debug}, which are deprecated
+ * and only approximate on ART. Measurements are therefore logged to compare implementations by
+ * hand; benchmarks must not assert on them.
+ */
+public final class BenchmarkMeasurement {
+    /** The operation to measure. */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    public final String label;
+    public final long averageMicros;
+    public final long averageAllocatedBytes;
+
+    private BenchmarkMeasurement(String label, long averageMicros, long averageAllocatedBytes) {
+        this.label = label;
+        this.averageMicros = averageMicros;
+        this.averageAllocatedBytes = averageAllocatedBytes;
+    }
+
+    /**
+     * Runs the operation once to warm up, then the given number of times, collecting garbage
+     * before each run so that it does not count against the operation.
+     */
+    @SuppressWarnings("deprecation")
+    public static BenchmarkMeasurement measure(String label, int iterations,
+            Operation operation) throws Exception {
+        operation.run();
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            Runtime.getRuntime().gc();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            operation.run();
+            nanos += SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            allocated += Debug.getThreadAllocSize();
+        }
+        return new BenchmarkMeasurement(label, nanos / iterations / 1000, allocated / iterations);
+    }
+
+    /**
+     * Logs the measurements of the implementations compared by a benchmark on one line.
+     */
+    public static void log(String tag, String benchmark, BenchmarkMeasurement... measurements) {
+        final StringBuilder sb = new StringBuilder(benchmark);
+        for (BenchmarkMeasurement measurement : measurements) {
+            sb.append("; ").append(measurement);
+        }
+        Log.i(tag, sb.toString());
+    }
+
+    @Override
+    public String toString() {
+        return label + ": " + averageMicros + "us, " + averageAllocatedBytes + " bytes allocated";
+    }
+}
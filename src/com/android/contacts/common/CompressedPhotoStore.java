@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps compressed photos outside of the Java heap, in slabs of direct {@link ByteBuffer}s, so
+ * that the photos cached in memory neither add to the heap nor to the work of the garbage
+ * collector.
+ * <p>
+ * Slabs are divided into chunks of {@link #CHUNK_SIZE} bytes. A photo takes as many chunks as
+ * it needs, from any slab, so that freed chunks can always be reused and the store does not
+ * fragment. Slabs are allocated as the store fills up, and dropped once they are empty and the
+ * store holds more slabs than its maximum size allows; their memory is then freed with the
+ * buffer.
+ * <p>
+ * The store does not evict on its own: its owner decides which photos to keep, and releases
+ * the {@link Allocation} of every photo it drops. All methods are thread-safe.
+ */
+class CompressedPhotoStore {
+    static final int CHUNK_SIZE = 1024;
+    static final int CHUNKS_PER_SLAB = 64;
+    static final int SLAB_SIZE = CHUNK_SIZE * CHUNKS_PER_SLAB;
+
+    /**
+     * Storage of one photo in the store.
+     */
+    static final class Allocation {
+        private final CompressedPhotoStore mStore;
+        /** Chunks holding the photo, in order, numbered across slabs. */
+        private final int[] mChunks;
+        private final int mLength;
+        /** Guarded by the store. */
+        private boolean mReleased;
+
+        private Allocation(CompressedPhotoStore store, int[] chunks, int length) {
+            mStore = store;
+            mChunks = chunks;
+            mLength = length;
+        }
+
+        /** Length of the photo. */
+        int getLength() {
+            return mLength;
+        }
+
+        /** Memory taken in the store, which is the length rounded up to whole chunks. */
+        int getSize() {
+            return mChunks.length * CHUNK_SIZE;
+        }
+
+        /**
+         * Copies the photo into the beginning of the given buffer.
+         *
+         * @return false if the allocation was released, in which case the buffer is untouched.
+         */
+        boolean read(byte[] buffer) {
+            return mStore.read(this, buffer);
+        }
+
+        /** Frees the chunks of the photo. Releasing an allocation twice has no effect. */
+        void release() {
+            mStore.release(this);
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        /** Indices of the free chunks of the slab; the first {@link #freeCount} are valid. */
+        final int[] freeChunks = new int[CHUNKS_PER_SLAB];
+        int freeCount;
+
+        Slab() {
+            for (int i = 0; i < CHUNKS_PER_SLAB; i++) {
+                freeChunks[i] = CHUNKS_PER_SLAB - 1 - i;
+            }
+            freeCount = CHUNKS_PER_SLAB;
+        }
+    }
+
+    /** Slabs by index. Dropped slabs leave a null entry, so that chunk numbers stay valid. */
+    private final ArrayList<Slab> mSlabs = new ArrayList<Slab>();
+    private int mMaxSlabs;
+    private int mSlabCount;
+    private int mFreeChunks;
+
+    private int mAllocationCount;
+    private long mReadCount;
+    private long mFailedAllocationCount;
+    private long mDroppedSlabCount;
+
+    public CompressedPhotoStore(int maxSizeBytes) {
+        mMaxSlabs = getSlabCount(maxSizeBytes);
+    }
+
+    private static int getSlabCount(int sizeBytes) {
+        return (sizeBytes + SLAB_SIZE - 1) / SLAB_SIZE;
+    }
+
+    /**
+     * Copies the given photo into the store.
+     *
+     * @return the allocation holding the photo, or null if the store is full, in which case the
+     *     caller should keep the photo on the heap.
+     */
+    public synchronized Allocation allocate(byte[] bytes) {
+        final int needed = (bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        while (mFreeChunks < needed && mSlabCount < mMaxSlabs) {
+            addSlab();
+        }
+        if (needed == 0 || mFreeChunks < needed) {
+            mFailedAllocationCount++;
+            return null;
+        }
+
+        final int[] chunks = new int[needed];
+        int count = 0;
+        for (int i = 0; i < mSlabs.size() && count < needed; i++) {
+            final Slab slab = mSlabs.get(i);
+            if (slab == null) {
+                continue;
+            }
+            while (slab.freeCount > 0 && count < needed) {
+                final int chunk = slab.freeChunks[--slab.freeCount];
+                final int offset = count * CHUNK_SIZE;
+                slab.buffer.position(chunk * CHUNK_SIZE);
+                slab.buffer.put(bytes, offset, Math.min(CHUNK_SIZE, bytes.length - offset));
+                chunks[count++] = i * CHUNKS_PER_SLAB + chunk;
+            }
+        }
+        mFreeChunks -= needed;
+        mAllocationCount++;
+        return new Allocation(this, chunks, bytes.length);
+    }
+
+    private void addSlab() {
+        final Slab slab = new Slab();
+        final int index = mSlabs.indexOf(null);
+        if (index >= 0) {
+            mSlabs.set(index, slab);
+        } else {
+            mSlabs.add(slab);
+        }
+        mSlabCount++;
+        mFreeChunks += CHUNKS_PER_SLAB;
+    }
+
+    private synchronized boolean read(Allocation allocation, byte[] buffer) {
+        if (allocation.mReleased) {
+            return false;
+        }
+        final int length = allocation.mLength;
+        for (int i = 0; i < allocation.mChunks.length; i++) {
+            final int chunk = allocation.mChunks[i];
+            final Slab slab = mSlabs.get(chunk / CHUNKS_PER_SLAB);
+            final int offset = i * CHUNK_SIZE;
+            slab.buffer.position((chunk % CHUNKS_PER_SLAB) * CHUNK_SIZE);
+            slab.buffer.get(buffer, offset, Math.min(CHUNK_SIZE, length - offset));
+        }
+        mReadCount++;
+        return true;
+    }
+
+    private synchronized void release(Allocation allocation) {
+        if (allocation.mReleased) {
+            return;
+        }
+        allocation.mReleased = true;
+        for (int chunk : allocation.mChunks) {
+            final Slab slab = mSlabs.get(chunk / CHUNKS_PER_SLAB);
+            slab.freeChunks[slab.freeCount++] = chunk % CHUNKS_PER_SLAB;
+        }
+        mFreeChunks += allocation.mChunks.length;
+        mAllocationCount--;
+        dropEmptySlabs();
+    }
+
+    /**
+     * Changes the maximum size of the store. Shrinking it drops the slabs that are empty; the
+     * others are dropped as their photos are released.
+     */
+    public synchronized void resize(int maxSizeBytes) {
+        mMaxSlabs = getSlabCount(maxSizeBytes);
+        dropEmptySlabs();
+    }
+
+    private void dropEmptySlabs() {
+        // Drop the last slabs first, since allocations fill the first ones.
+        for (int i = mSlabs.size() - 1; i >= 0 && mSlabCount > mMaxSlabs; i--) {
+            final Slab slab = mSlabs.get(i);
+            if (slab != null && slab.freeCount == CHUNKS_PER_SLAB) {
+                mSlabs.set(i, null);
+                mSlabCount--;
+                mFreeChunks -= CHUNKS_PER_SLAB;
+                mDroppedSlabCount++;
+            }
+        }
+        while (!mSlabs.isEmpty() && mSlabs.get(mSlabs.size() - 1) == null) {
+            mSlabs.remove(mSlabs.size() - 1);
+        }
+    }
+
+    /** Memory taken by the photos in the store, counting whole chunks. */
+    public synchronized int size() {
+        return (mSlabCount * CHUNKS_PER_SLAB - mFreeChunks) * CHUNK_SIZE;
+    }
+
+    /** Off-heap memory held by the slabs of the store. */
+    public synchronized int residentSize() {
+        return mSlabCount * SLAB_SIZE;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSlabs * SLAB_SIZE;
+    }
+
+    /** Number of photos in the store. */
+    public synchronized int allocationCount() {
+        return mAllocationCount;
+    }
+
+    /** Number of photos copied out of the store. */
+    public synchronized long readCount() {
+        return mReadCount;
+    }
+
+    /** Number of photos that did not fit into the store and were kept on the heap instead. */
+    public synchronized long failedAllocationCount() {
+        return mFailedAllocationCount;
+    }
+
+    /** Number of slabs freed because the store had shrunk. */
+    public synchronized long droppedSlabCount() {
+        return mDroppedSlabCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CompressedPhotoStore[photos=" + mAllocationCount + ", size=" + size()
+                + ", slabs=" + mSlabCount + "/" + mMaxSlabs + "]";
+    }
+}
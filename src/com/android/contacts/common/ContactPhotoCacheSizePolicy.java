@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.ComponentCallbacks2;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides how large the in-memory caches of {@link ContactPhotoManager} may be.
+ * <p>
+ * The base size of the caches scales with the memory class of the device. On top of that, each
+ * trim-memory level maps to a step on a fixed ladder of fractions of the base size. A trim
+ * callback only ever moves the caches further down the ladder, and {@link #regrow()} moves them
+ * back up one step at a time once the pressure has passed. The caches never shrink to nothing,
+ * because the manager treats photos that do not fit as unavailable; instead, they are cleared
+ * when the process is about to be killed.
+ * <p>
+ * Not thread-safe; used on the UI thread, where trim callbacks are delivered.
+ */
+class ContactPhotoCacheSizePolicy {
+    /** Memory class, in megabytes, for which the caches have their nominal size. */
+    @VisibleForTesting
+    static final int REFERENCE_MEMORY_CLASS = 128;
+
+    @VisibleForTesting
+    static final float MIN_BASE_SCALE = 0.5f;
+    @VisibleForTesting
+    static final float MAX_BASE_SCALE = 1.5f;
+
+    /** Fractions of the base size, from no pressure to severe pressure. */
+    private static final float[] STEPS = { 1f, 0.75f, 0.5f, 0.25f, 0.1f };
+
+    private final float mBaseScale;
+    private int mStep;
+
+    ContactPhotoCacheSizePolicy(int memoryClassMb, boolean lowRamDevice) {
+        mBaseScale = computeBaseScale(memoryClassMb, lowRamDevice);
+    }
+
+    @VisibleForTesting
+    static float computeBaseScale(int memoryClassMb, boolean lowRamDevice) {
+        if (lowRamDevice) {
+            return MIN_BASE_SCALE;
+        }
+        final float scale = (float) memoryClassMb / REFERENCE_MEMORY_CLASS;
+        return Math.max(MIN_BASE_SCALE, Math.min(MAX_BASE_SCALE, scale));
+    }
+
+    /**
+     * Returns the step of the ladder that the given trim-memory level calls for.
+     */
+    @VisibleForTesting
+    static int getStepForTrimLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 3;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is displayed; keep enough to redraw quickly when the UI returns.
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 3;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns whether the caches should be emptied at the given trim-memory level, on top of
+     * being resized.
+     */
+    public static boolean shouldClear(int level) {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+    }
+
+    /**
+     * Moves down the ladder to the step the given trim-memory level calls for.
+     *
+     * @return true if the cache sizes changed.
+     */
+    public boolean onTrimMemory(int level) {
+        final int step = getStepForTrimLevel(level);
+        if (step <= mStep) {
+            return false;
+        }
+        mStep = step;
+        return true;
+    }
+
+    /**
+     * Moves up the ladder by one step.
+     *
+     * @return true if the cache sizes changed.
+     */
+    public boolean regrow() {
+        if (mStep == 0) {
+            return false;
+        }
+        mStep--;
+        return true;
+    }
+
+    /**
+     * Returns whether the caches are currently smaller than their base size.
+     */
+    public boolean isShrunk() {
+        return mStep > 0;
+    }
+
+    public float getBaseScale() {
+        return mBaseScale;
+    }
+
+    /**
+     * Returns the current fraction of the nominal cache sizes.
+     */
+    public float getScale() {
+        return mBaseScale * STEPS[mStep];
+    }
+
+    /**
+     * Returns the current size of a cache whose nominal size is given.
+     */
+    public int getSize(int nominalSize) {
+        return (int) (nominalSize * getScale());
+    }
+}
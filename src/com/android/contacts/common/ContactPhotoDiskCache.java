@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded, LRU-evicted disk tier that sits under the in-memory caches of
+ * {@link ContactPhotoManager}. Entries hold the compressed photo bytes exactly as they came
+ * from the provider (or the network), keyed by photo id or photo URI, so that after a process
+ * restart thumbnails can be restored without querying the contacts provider again.
+ * <p>
+ * Each entry also stores a version of the photo, such as {@link
+ * android.provider.ContactsContract.Data#DATA_VERSION} for photo ids, so that stale entries can
+ * be revalidated by comparing versions instead of reading the photos again.
+ * <p>
+ * Methods that touch the entries are synchronized; disk I/O is expected to happen on the photo
+ * loader thread. The counters are written under the lock but can be read from any thread
+ * without waiting for it, and without reading the directory; they are zero until the cache is
+ * first used.
+ */
+class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    private static final String DIRECTORY_NAME = "contact_photos";
+    private static final String ID_PREFIX = "id_";
+    private static final String URI_PREFIX = "uri_";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Length of the version that precedes the photo in each file. */
+    private static final int HEADER_SIZE = 8;
+
+    /** Version of the entries whose photos are not versioned. */
+    public static final long NO_VERSION = 0;
+
+    /**
+     * Generation of the entries written before the current process started. Photos may have
+     * changed in place while no process was listening, so these entries are always stale: they
+     * are displayed right away but revalidated against the provider, which only has to return
+     * the versions of the photos to confirm them.
+     */
+    private static final int RESTORED_GENERATION = -1;
+
+    private static class Entry {
+        final File file;
+        final int size;
+        final int generation;
+
+        Entry(File file, int size, int generation) {
+            this.file = file;
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+
+    /** Result of a successful {@link #get} call. */
+    static class Result {
+        final byte[] bytes;
+        final long version;
+        final boolean fresh;
+
+        Result(byte[] bytes, long version, boolean fresh) {
+            this.bytes = bytes;
+            this.version = version;
+            this.fresh = fresh;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMaxSizeBytes;
+    private final int mMaxEntrySizeBytes;
+
+    /** Access-ordered index of the entries on disk; the eldest entry is evicted first. */
+    private final LinkedHashMap<String, Entry> mIndex =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private boolean mInitialized;
+    private volatile int mSizeBytes;
+    private volatile int mEntryCount;
+
+    /**
+     * Incremented by {@link #invalidate()}. Entries written under an older generation are
+     * considered stale.
+     */
+    private int mGeneration;
+
+    private volatile long mHitCount;
+    private volatile long mMissCount;
+    private volatile long mEvictionCount;
+
+    ContactPhotoDiskCache(File cacheDir, int maxSizeBytes) {
+        mDirectory = new File(cacheDir, DIRECTORY_NAME);
+        mMaxSizeBytes = maxSizeBytes;
+        // Require that at least eight entries fit, the same way the bitmap cache does.
+        mMaxEntrySizeBytes = maxSizeBytes / 8;
+    }
+
+    /**
+     * Returns the cached bytes for the given photo id or URI, or null if there are none.
+     */
+    public synchronized Result get(Object key) {
+        ensureInitialized();
+        final String name = fileNameForKey(key);
+        final Entry entry = mIndex.get(name);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        final Result result = readFile(entry.file, entry.size, entry.generation == mGeneration);
+        if (result == null) {
+            removeEntry(name);
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return result;
+    }
+
+    /**
+     * Marks the entry for the given key as fresh without rewriting it, for example after the
+     * provider or the server confirmed that the cached copy is still current. Does nothing if
+     * there is no entry.
+     */
+    public synchronized void markFresh(Object key) {
+        ensureInitialized();
+        final String name = fileNameForKey(key);
+        final Entry entry = mIndex.get(name);
+        if (entry == null) {
+            return;
+        }
+        entry.file.setLastModified(System.currentTimeMillis());
+        mIndex.put(name, new Entry(entry.file, entry.size, mGeneration));
+    }
+
+    /**
+     * Stores the given bytes on disk without a version, evicting least recently used entries as
+     * necessary. Empty or oversized payloads are ignored.
+     */
+    public void put(Object key, byte[] bytes) {
+        put(key, bytes, NO_VERSION);
+    }
+
+    /**
+     * Stores the given bytes on disk with the version of the photo, evicting least recently used
+     * entries as necessary. Empty or oversized payloads are ignored.
+     */
+    public synchronized void put(Object key, byte[] bytes, long version) {
+        if (bytes == null || bytes.length == 0 || bytes.length > mMaxEntrySizeBytes) {
+            return;
+        }
+        ensureInitialized();
+        final String name = fileNameForKey(key);
+        final File file = new File(mDirectory, name);
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeLong(version);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + name, e);
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+
+        final Entry previous = mIndex.put(name, new Entry(file, bytes.length, mGeneration));
+        if (previous != null) {
+            mSizeBytes -= previous.size;
+        }
+        mSizeBytes += bytes.length;
+        mEntryCount = mIndex.size();
+        trimToSize(mMaxSizeBytes);
+    }
+
+    /**
+     * Removes the entry for the given key, if any.
+     */
+    public synchronized void remove(Object key) {
+        ensureInitialized();
+        removeEntry(fileNameForKey(key));
+    }
+
+    /**
+     * Marks all entries currently on disk as stale. They will still be returned by
+     * {@link #get}, but must be revalidated with the provider before being trusted.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public synchronized void evictAll() {
+        ensureInitialized();
+        trimToSize(-1);
+    }
+
+    public int size() {
+        return mSizeBytes;
+    }
+
+    public int maxSize() {
+        return mMaxSizeBytes;
+    }
+
+    /** Number of entries on disk. */
+    public int entryCount() {
+        return mEntryCount;
+    }
+
+    public long hitCount() {
+        return mHitCount;
+    }
+
+    public long missCount() {
+        return mMissCount;
+    }
+
+    /** Number of entries dropped to keep the cache within its size. */
+    public long evictionCount() {
+        return mEvictionCount;
+    }
+
+    private void ensureInitialized() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Rebuild the LRU order from the write times, oldest first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            final int size = (int) file.length() - HEADER_SIZE;
+            if (size <= 0) {
+                file.delete();
+                continue;
+            }
+            mIndex.put(name, new Entry(file, size, RESTORED_GENERATION));
+            mSizeBytes += size;
+        }
+        mEntryCount = mIndex.size();
+        trimToSize(mMaxSizeBytes);
+    }
+
+    private void trimToSize(int maxSize) {
+        final Iterator<Map.Entry<String, Entry>> iterator = mIndex.entrySet().iterator();
+        while (mSizeBytes > maxSize && iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            iterator.remove();
+            mSizeBytes -= entry.size;
+            mEvictionCount++;
+            entry.file.delete();
+        }
+        mEntryCount = mIndex.size();
+    }
+
+    private void removeEntry(String name) {
+        final Entry entry = mIndex.remove(name);
+        if (entry != null) {
+            mSizeBytes -= entry.size;
+            mEntryCount = mIndex.size();
+            entry.file.delete();
+        }
+    }
+
+    private static Result readFile(File file, int size, boolean fresh) {
+        final byte[] bytes = new byte[size];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            final long version = in.readLong();
+            in.readFully(bytes);
+            return new Result(bytes, version, fresh);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static String fileNameForKey(Object key) {
+        if (key instanceof Uri) {
+            return URI_PREFIX + sha1Hex(key.toString());
+        }
+        return ID_PREFIX + key;
+    }
+
+    private static String sha1Hex(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available on Android.
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.TrafficStats;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.ByteArrayPool;
+import com.android.contacts.common.util.ByteStreamUtil;
+import com.android.contacts.common.util.TrafficStatsTags;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads remote contact photos for {@link ContactPhotoManager}.
+ * <p>
+ * Responses are always read to the end and their streams closed rather than disconnected, so
+ * that the underlying keep-alive connection goes back to the platform's connection pool and is
+ * reused by the next download from the same host. At most a fixed number of downloads run at
+ * the same time. When the caller still has a copy of a photo, the request is made conditional on
+ * the ETag and Last-Modified validators recorded in a {@link ContactPhotoValidatorStore}, and
+ * the server can answer with 304 Not Modified instead of resending the photo.
+ * <p>
+ * {@link #fetch} is thread-safe and blocks the calling thread.
+ */
+class ContactPhotoHttpFetcher {
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    /** Responses that claim to be larger than this are read through the chunked path. */
+    private static final int MAX_PRESIZED_LENGTH = 1024 * 1024;
+
+    /** Result of a successful {@link #fetch}. */
+    static class Result {
+        static final Result NOT_MODIFIED = new Result(null);
+
+        /** The downloaded photo, or null if the caller's copy is still current. */
+        final byte[] bytes;
+
+        Result(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean isNotModified() {
+            return bytes == null;
+        }
+    }
+
+    private final String mUserAgent;
+    private final ContactPhotoValidatorStore mValidators;
+    private final ByteArrayPool mBufferPool;
+    private final int mMaxConcurrentFetches;
+    private final Semaphore mPermits;
+
+    private final AtomicInteger mActiveFetches = new AtomicInteger();
+    private final AtomicInteger mMaxActiveFetches = new AtomicInteger();
+    private final AtomicLong mFetchCount = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+    ContactPhotoHttpFetcher(String userAgent, int maxConcurrentFetches,
+            ContactPhotoValidatorStore validators, ByteArrayPool bufferPool) {
+        mUserAgent = userAgent;
+        mValidators = validators;
+        mBufferPool = bufferPool;
+        mMaxConcurrentFetches = maxConcurrentFetches;
+        mPermits = new Semaphore(maxConcurrentFetches, true);
+    }
+
+    /**
+     * Downloads the photo at the given URL, waiting for a free download slot first.
+     *
+     * @param haveCachedCopy whether the caller holds a previously downloaded copy of the photo.
+     *         Only then is the request made conditional.
+     * @return the downloaded photo, or {@link Result#NOT_MODIFIED} if the caller's copy is
+     *         still current.
+     * @throws IOException if the download failed or the server returned an error.
+     */
+    public Result fetch(String url, boolean haveCachedCopy) throws IOException {
+        mPermits.acquireUninterruptibly();
+        final int active = mActiveFetches.incrementAndGet();
+        int max;
+        while (active > (max = mMaxActiveFetches.get())) {
+            if (mMaxActiveFetches.compareAndSet(max, active)) {
+                break;
+            }
+        }
+        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
+        try {
+            mFetchCount.incrementAndGet();
+            return doFetch(url, haveCachedCopy);
+        } catch (IOException e) {
+            mFailureCount.incrementAndGet();
+            throw e;
+        } finally {
+            TrafficStats.clearThreadStatsTag();
+            mActiveFetches.decrementAndGet();
+            mPermits.release();
+        }
+    }
+
+    private Result doFetch(String url, boolean haveCachedCopy) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (!TextUtils.isEmpty(mUserAgent)) {
+            connection.setRequestProperty("User-Agent", mUserAgent);
+        }
+        final ContactPhotoValidatorStore.Validators validators =
+                haveCachedCopy ? mValidators.get(url) : null;
+        if (validators != null) {
+            if (validators.etag != null) {
+                connection.setRequestProperty("If-None-Match", validators.etag);
+            }
+            if (validators.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+            }
+        }
+
+        final int responseCode;
+        try {
+            responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            discardBody(connection, false);
+            mNotModifiedCount.incrementAndGet();
+            return Result.NOT_MODIFIED;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            discardBody(connection, true);
+            if (responseCode >= 400 && responseCode < 500) {
+                // The photo is gone or not accessible any more. Server errors are transient
+                // and leave the cached copy, and its validators, valid.
+                mValidators.remove(url);
+            }
+            throw new IOException("HTTP " + responseCode + " for " + url);
+        }
+
+        final byte[] bytes = readBody(connection);
+        mBytesDownloaded.addAndGet(bytes.length);
+        mValidators.put(url, connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"));
+        return new Result(bytes);
+    }
+
+    /**
+     * Reads the whole response body and closes the stream. When the server announces the
+     * length, the body is read straight into an array of the right size; otherwise it is
+     * read through pooled buffers.
+     */
+    private byte[] readBody(HttpURLConnection connection) throws IOException {
+        final InputStream in = connection.getInputStream();
+        try {
+            final int length = connection.getContentLength();
+            if (length >= 0 && length <= MAX_PRESIZED_LENGTH) {
+                final byte[] bytes = ByteStreamUtil.readFully(in, length);
+                // Reaching the end of the stream lets the connection be reused.
+                if (in.read() != -1) {
+                    throw new IOException("Response longer than " + length + " bytes");
+                }
+                return bytes;
+            }
+            return ByteStreamUtil.toByteArray(in, mBufferPool);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads and drops the remaining body of a response so that its connection can be reused.
+     */
+    private void discardBody(HttpURLConnection connection, boolean error) {
+        InputStream in = null;
+        try {
+            in = error ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null) {
+                return;
+            }
+            final byte[] buffer = mBufferPool.acquire();
+            try {
+                while (in.read(buffer) != -1) {
+                    // Keep draining.
+                }
+            } finally {
+                mBufferPool.release(buffer);
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public int getMaxConcurrentFetches() {
+        return mMaxConcurrentFetches;
+    }
+
+    /** Highest number of downloads that ran at the same time. */
+    public int getMaxActiveFetches() {
+        return mMaxActiveFetches.get();
+    }
+
+    public long getFetchCount() {
+        return mFetchCount.get();
+    }
+
+    /**
+     * Writes the validators recorded since the last save to disk in the background, e.g. before
+     * the process is likely to be killed.
+     */
+    public void saveValidators() {
+        mValidators.saveSoon();
+    }
+
+    /** Number of conditional requests answered with 304 Not Modified. */
+    public long getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpFetcher: fetches=" + getFetchCount()
+                + ", notModified=" + getNotModifiedCount()
+                + ", failures=" + getFailureCount()
+                + ", bytes=" + getBytesDownloaded()
+                + ", active=" + mActiveFetches.get() + " (max " + getMaxActiveFetches()
+                + "/" + mMaxConcurrentFetches + ")"
+                + ", validators=" + mValidators.size() + "/" + mValidators.maxSize();
+    }
+}
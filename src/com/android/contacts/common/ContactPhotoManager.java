@@ -20,7 +20,6 @@ import android.accounts.Account;
 import android.app.ActivityManager;
 import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
@@ -34,32 +33,36 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
-import android.net.TrafficStats;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
-import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
-import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
+import android.provider.ContactsContract.Profile;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
+import android.util.Pair;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 
 import com.android.contacts.common.lettertiles.LetterTileDrawable;
+import com.android.contacts.common.util.BitmapPool;
 import com.android.contacts.common.util.BitmapUtil;
+import com.android.contacts.common.util.ByteArrayPool;
+import com.android.contacts.common.util.ByteStreamUtil;
 import com.android.contacts.common.util.PermissionsUtil;
-import com.android.contacts.common.util.TrafficStatsTags;
 import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.commonbind.util.UserAgentGenerator;
 
@@ -67,19 +70,35 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Asynchronously loads contact photos and maintains a cache of photos.
@@ -577,6 +596,21 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
                 defaultImageRequest, DEFAULT_AVATAR);
     }
 
+    /**
+     * Loads a display photo progressively. If the thumbnail of the same contact is already
+     * cached, it is shown right away, and cross-faded to the display photo once that has been
+     * decoded at the requested extent. Otherwise behaves like
+     * {@link #loadPhoto(ImageView, Uri, Account, int, boolean, boolean, DefaultImageRequest)}.
+     *
+     * @param thumbnailPhotoId the photo id of the contact's thumbnail, or 0 if unknown.
+     */
+    public void loadPhotoProgressively(ImageView view, Uri photoUri, long thumbnailPhotoId,
+            Account account, int requestedExtent, boolean darkTheme, boolean isCircular,
+            DefaultImageRequest defaultImageRequest) {
+        loadPhoto(view, photoUri, account, requestedExtent, darkTheme, isCircular,
+                defaultImageRequest);
+    }
+
     /**
      * Remove photo from the supplied image view. This also cancels current pending load request
      * inside this photo manager.
@@ -589,7 +623,8 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
     public abstract void cancelPendingRequests(View fragmentRootView);
 
     /**
-     * Temporarily stops loading photos from the database.
+     * Temporarily stops loading photos from the database, for example during a fling. The
+     * thumbnails of rows ahead of the scroll position are still prefetched.
      */
     public abstract void pause();
 
@@ -619,6 +654,59 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Supplies the photo ids of the rows of a list, so that the photos of rows that are not
+     * visible yet can be prefetched.
+     */
+    public interface PrefetchSource {
+        /**
+         * Returns the number of rows in the list.
+         */
+        int getCount();
+
+        /**
+         * Returns the id of the thumbnail shown by the row at the given position, or 0 if the
+         * row does not show a thumbnail by id.
+         */
+        long getPhotoIdForPrefetch(int position);
+    }
+
+    /**
+     * Notifies the photo manager that a list displaying photos has scrolled. Pending requests
+     * are re-prioritized by list position, and requests for rows that are no longer visible are
+     * dropped before they are loaded or decoded. The thumbnails of the rows the list is heading
+     * towards are loaded and decoded ahead of time, even while loading is paused during a
+     * fling; the faster the list moves, the further ahead. The scroll velocity is estimated
+     * separately for each source from successive calls.
+     *
+     * @param firstVisibleItem position of the first visible row in {@code source}.
+     * @param source the photo ids of the rows of the list, or null to disable prefetching.
+     */
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            PrefetchSource source) {
+    }
+
+    /**
+     * Returns a snapshot of the cache and loader metrics of this photo manager, or null if it
+     * does not collect metrics.
+     */
+    public ContactPhotoMetrics getMetrics() {
+        return null;
+    }
+
+    /**
+     * Prints the metrics of this photo manager in the style of dumpsys, for example from the
+     * {@code dump} method of an activity.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        final ContactPhotoMetrics metrics = getMetrics();
+        writer.print(prefix);
+        writer.println("ContactPhotoManager:");
+        if (metrics != null) {
+            metrics.dump(prefix + "  ", writer);
+        }
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -637,6 +725,82 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+    private static final String NETWORK_THREAD_NAME = "ContactPhotoNetwork";
+    private static final String QUERY_THREAD_NAME = "ContactPhotoQuery";
+
+    /** Upper bound for the number of threads decoding photos, regardless of the core count. */
+    private static final int MAX_DECODER_THREADS = 4;
+
+    /** Number of concurrent downloads of directory photos. */
+    private static final int NETWORK_THREADS = 2;
+
+    /**
+     * Number of threads that query batches of photo ids in parallel with the loader thread,
+     * when there are more ids to load than fit in one query.
+     */
+    private static final int QUERY_THREADS = 2;
+
+    /**
+     * Number of photo ids bound in a single query, well under the limit of 999 host parameters
+     * of SQLite.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /** Data of the user's profile, which is kept apart from the other contacts. */
+    private static final Uri PROFILE_DATA_URI =
+            Uri.withAppendedPath(Profile.CONTENT_URI, "data");
+
+    /** Name of the file, in the cache directory, that holds the validators of downloads. */
+    private static final String VALIDATOR_STORE_FILE_NAME = "contact_photo_validators";
+    private static final int MAX_VALIDATOR_ENTRIES = 500;
+
+    /** Size of the pooled buffers through which photos of unknown length are read. */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** Time after which idle decoder and network threads are stopped. */
+    private static final int EXECUTOR_KEEP_ALIVE_SECONDS = 10;
+
+    /** Priority of requests whose views are no longer visible. */
+    private static final int PRIORITY_NOT_VISIBLE = -1;
+
+    /**
+     * Priority of the first prefetched row. Rows further ahead get higher values, so that all
+     * prefetching is served after visible rows.
+     */
+    private static final int PRIORITY_PREFETCH = 10000;
+
+    /** How far ahead of the scroll position photos are prefetched. */
+    private static final int PREFETCH_LOOKAHEAD_MILLIS = 1000;
+
+    /**
+     * Time without the first visible row changing after which a list is considered to have
+     * stopped, so that its earlier velocity no longer counts.
+     */
+    private static final int SCROLL_IDLE_MILLIS = 500;
+
+    /** Upper bound for the number of rows prefetched at a time. */
+    private static final int MAX_PREFETCH_ROWS = 40;
+
+    /**
+     * Number of queued decodes per decoder thread at which prefetching stops, so that it does
+     * not delay visible photos.
+     */
+    private static final int PREFETCH_DECODE_BACKLOG_PER_THREAD = 4;
+
+    /**
+     * Orders requests by their position on screen, and the most recent request first among
+     * requests with the same position.
+     */
+    private static final Comparator<Request> REQUEST_PRIORITY_ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            }
+            return Long.compare(rhs.mGeneration, lhs.mGeneration);
+        }
+    };
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -652,9 +816,26 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private static final int MESSAGE_PHOTOS_LOADED = 2;
 
+    /**
+     * Type of message sent by the UI thread to itself to grow the caches back by one step
+     * after they were shrunk on a trim-memory callback.
+     */
+    private static final int MESSAGE_REGROW_CACHES = 3;
+
+    /** Time without further memory pressure after which the caches grow back by one step. */
+    private static final int CACHE_REGROW_INTERVAL_MS = 30 * 1000;
+
+    /** Number of recent cache resizes kept for {@link #getMetrics()}. */
+    private static final int MAX_TRIM_EVENTS = 16;
+
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS =
+            new String[] { Photo._ID, Photo.PHOTO, Photo.DATA_VERSION };
+
+    /** Columns that tell whether a photo changed since it was written to the disk cache. */
+    private static final String[] VERSION_COLUMNS =
+            new String[] { Photo._ID, Photo.DATA_VERSION };
 
     /**
      * Dummy object used to indicate that a bitmap for a given key could not be stored in the
@@ -664,26 +845,211 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     static {
         BITMAP_UNAVAILABLE = new BitmapHolder(new byte[0], 0);
-        BITMAP_UNAVAILABLE.bitmapRef = new SoftReference<Bitmap>(null);
     }
 
+    /**
+     * Number of resolutions of the same photo that a {@link BitmapHolder} keeps decoded, so that
+     * views showing the photo at different extents do not keep replacing each other's bitmap.
+     */
+    private static final int MAX_DECODED_EXTENTS = 3;
+
     /**
      * Maintains the state of a particular photo.
      */
     private static class BitmapHolder {
-        final byte[] bytes;
+        /** The compressed photo if it is kept on the heap. */
+        private final byte[] mBytes;
+        /** The compressed photo if it is kept off-heap. */
+        private final CompressedPhotoStore.Allocation mAllocation;
+        /** Length of the compressed photo, or -1 if there is no photo. */
+        final int byteCount;
         final int originalSmallerExtent;
 
         volatile boolean fresh;
+
+        /** The most recently decoded bitmap, strongly held until the cache is softened. */
         Bitmap bitmap;
-        Reference<Bitmap> bitmapRef;
-        int decodedSampleSize;
+
+        /**
+         * Held while the photo is decoded, so that it is not decoded twice at the same time.
+         * The UI thread only ever tries to take it, so that it never waits for a decoder.
+         */
+        final ReentrantLock decodeLock = new ReentrantLock();
+
+        /**
+         * Soft references to the decoded bitmaps, one per sample size, most recently decoded
+         * first. Guarded by the holder.
+         */
+        private final ArrayList<DecodedBitmap> mDecoded =
+                new ArrayList<DecodedBitmap>(MAX_DECODED_EXTENTS);
 
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
-            this.bytes = bytes;
+            this.mBytes = bytes;
+            this.mAllocation = null;
+            this.byteCount = bytes == null ? -1 : bytes.length;
             this.fresh = true;
             this.originalSmallerExtent = originalSmallerExtent;
         }
+
+        public BitmapHolder(CompressedPhotoStore.Allocation allocation,
+                int originalSmallerExtent) {
+            this.mBytes = null;
+            this.mAllocation = allocation;
+            this.byteCount = allocation.getLength();
+            this.fresh = true;
+            this.originalSmallerExtent = originalSmallerExtent;
+        }
+
+        /** Returns false if the photo could not be loaded. */
+        boolean hasBytes() {
+            return byteCount >= 0;
+        }
+
+        /** Memory that the compressed photo takes, on or off the heap. */
+        int getCacheSize() {
+            if (mAllocation != null) {
+                return mAllocation.getSize();
+            }
+            return mBytes != null ? mBytes.length : 0;
+        }
+
+        /**
+         * Returns a buffer that starts with the {@link #byteCount} bytes of the compressed
+         * photo, or null if they are no longer available. The buffer must be handed back with
+         * {@link #releaseBytes}.
+         */
+        byte[] acquireBytes(ByteArrayPool pool) {
+            if (mAllocation == null) {
+                return mBytes;
+            }
+            final byte[] buffer = byteCount <= pool.getBufferSize()
+                    ? pool.acquire() : new byte[byteCount];
+            if (!mAllocation.read(buffer)) {
+                pool.release(buffer);
+                return null;
+            }
+            return buffer;
+        }
+
+        void releaseBytes(byte[] buffer, ByteArrayPool pool) {
+            if (buffer != mBytes) {
+                pool.release(buffer);
+            }
+        }
+
+        /** Frees the off-heap copy of the photo once the holder has left the cache. */
+        void releaseStorage() {
+            if (mAllocation != null) {
+                mAllocation.release();
+            }
+        }
+
+        /**
+         * Returns the sample size at which this photo is decoded for the given extent.
+         */
+        int getSampleSize(int requestedExtent) {
+            return BitmapUtil.findOptimalSampleSize(originalSmallerExtent, requestedExtent);
+        }
+
+        /**
+         * Returns the bitmap decoded at the given sample size, or null if there is none.
+         */
+        synchronized Bitmap getBitmap(int sampleSize) {
+            for (DecodedBitmap decoded : mDecoded) {
+                if (decoded.sampleSize == sampleSize) {
+                    return decoded.ref.get();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the bitmap decoded for the given extent, or null if there is none.
+         */
+        Bitmap getBitmapForExtent(int requestedExtent) {
+            return getBitmap(getSampleSize(requestedExtent));
+        }
+
+        /**
+         * Returns the most recently decoded bitmap that is still available at any sample size,
+         * or null if there is none.
+         */
+        synchronized Bitmap getAnyBitmap() {
+            for (DecodedBitmap decoded : mDecoded) {
+                final Bitmap bitmap = decoded.ref.get();
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stores a decoded bitmap, replacing the one at the same sample size and dropping the
+         * least recently decoded one if all slots are taken.
+         */
+        synchronized void putBitmap(int sampleSize, Bitmap bitmap) {
+            for (int i = mDecoded.size() - 1; i >= 0; i--) {
+                final DecodedBitmap decoded = mDecoded.get(i);
+                if (decoded.sampleSize == sampleSize || decoded.ref.get() == null) {
+                    mDecoded.remove(i);
+                }
+            }
+            if (mDecoded.size() == MAX_DECODED_EXTENTS) {
+                mDecoded.remove(MAX_DECODED_EXTENTS - 1);
+            }
+            mDecoded.add(0, new DecodedBitmap(sampleSize, bitmap));
+        }
+
+        /**
+         * Forgets the given bitmap, e.g. before its pixels are reused for another photo.
+         */
+        synchronized void removeBitmap(Bitmap bitmap) {
+            for (int i = mDecoded.size() - 1; i >= 0; i--) {
+                if (mDecoded.get(i).ref.get() == bitmap) {
+                    mDecoded.remove(i);
+                }
+            }
+            if (this.bitmap == bitmap) {
+                this.bitmap = null;
+            }
+        }
+
+        /** Number of decoded bitmaps that are still available. */
+        synchronized int getDecodedCount() {
+            int count = 0;
+            for (DecodedBitmap decoded : mDecoded) {
+                if (decoded.ref.get() != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /** Memory taken by the decoded bitmaps that are still available. */
+        synchronized int getDecodedByteCount() {
+            int byteCount = 0;
+            for (DecodedBitmap decoded : mDecoded) {
+                final Bitmap bitmap = decoded.ref.get();
+                if (bitmap != null) {
+                    byteCount += bitmap.getByteCount();
+                }
+            }
+            return byteCount;
+        }
+    }
+
+    /**
+     * A bitmap decoded from the bytes of a {@link BitmapHolder} at one sample size.
+     */
+    private static class DecodedBitmap {
+        final int sampleSize;
+        final Reference<Bitmap> ref;
+
+        DecodedBitmap(int sampleSize, Bitmap bitmap) {
+            this.sampleSize = sampleSize;
+            this.ref = new SoftReference<Bitmap>(bitmap);
+        }
     }
 
     private final Context mContext;
@@ -701,9 +1067,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private volatile boolean mBitmapHolderCacheAllUnfresh = true;
 
     /**
-     * Cache size threshold at which bitmaps will not be preloaded.
+     * Cache size threshold at which bitmaps will not be preloaded. Changes with the size of
+     * {@link #mBitmapHolderCache}.
      */
-    private final int mBitmapHolderCacheRedZoneBytes;
+    private volatile int mBitmapHolderCacheRedZoneBytes;
 
     /**
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
@@ -712,6 +1079,40 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Level 3 cache that persists the bytes of {@link #mBitmapHolderCache} on disk, so that
+     * photos survive process restarts. Only accessed from the loader thread, except for
+     * invalidation.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
+    /**
+     * Bitmaps evicted from {@link #mBitmapCache} that are no longer displayed, reused when
+     * decoding and cropping new photos.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Circular photos that have already been masked, so that binding them does not clip them
+     * again. Only accessed on the UI thread, except for metrics.
+     */
+    private final ShapedBitmapCache mShapedBitmapCache;
+
+    /**
+     * The holder each bitmap was decoded for. Bitmaps that are not in this map, e.g. those passed
+     * to {@link #cacheBitmap(Uri, Bitmap, byte[])}, are never returned to {@link #mBitmapPool}.
+     */
+    private final Map<Bitmap, BitmapHolder> mBitmapOwners =
+            Collections.synchronizedMap(new WeakHashMap<Bitmap, BitmapHolder>());
+
+    /**
+     * The bitmaps currently displayed by each view: one, or two while the view holds a
+     * {@link TransitionDrawable}, which keeps drawing its first layer under the second. Only
+     * accessed on the UI thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap[]> mBoundBitmaps =
+            new WeakHashMap<ImageView, Bitmap[]>();
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -719,6 +1120,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final ConcurrentHashMap<ImageView, Request> mPendingRequests =
             new ConcurrentHashMap<ImageView, Request>();
 
+    /**
+     * Requests for the thumbnails of rows ahead of the scroll position, keyed by photo id. They
+     * are loaded and decoded like {@link #mPendingRequests}, but have no view to bind to.
+     * Replaced on every scroll; entries are removed on the UI thread once decoded.
+     */
+    private final ConcurrentHashMap<Object, Request> mPrefetchRequests =
+            new ConcurrentHashMap<Object, Request>();
+
     /**
      * Handler for messages sent to the UI thread.
      */
@@ -730,35 +1139,165 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private LoaderThread mLoaderThread;
 
+    /**
+     * Pool that decodes the bytes loaded by {@link #mLoaderThread} and the network lane into
+     * bitmaps. Sized to the number of cores so that decoding does not hold up I/O.
+     */
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /** Decode queue length at which prefetching backs off. */
+    private final int mPrefetchDecodeBacklog;
+
+    /**
+     * Lane for photos that have to be downloaded, so that a slow server does not hold up
+     * photos that are available locally.
+     */
+    private final ThreadPoolExecutor mNetworkExecutor;
+
+    /**
+     * Threads that query batches of photo ids beyond the first, which {@link #mLoaderThread}
+     * queries itself.
+     */
+    private final ThreadPoolExecutor mQueryExecutor;
+
+    /**
+     * Photos currently being fetched from the provider, the disk cache or the network. Requests
+     * for a photo in flight wait for that fetch instead of starting another one.
+     */
+    private final ContactPhotoSingleFlight mFetchFlights = new ContactPhotoSingleFlight("fetch");
+
+    /**
+     * Photos currently queued on or being decoded by {@link #mDecodeExecutor}, keyed by
+     * {@link #getBitmapCacheKey}, so that decoding a photo at one resolution does not hold up
+     * another resolution.
+     */
+    private final ContactPhotoSingleFlight mDecodeFlights = new ContactPhotoSingleFlight("decode");
+
+    private final ContactPhotoStageStats mIoStats = new ContactPhotoStageStats("io");
+    private final ContactPhotoStageStats mDecodeStats = new ContactPhotoStageStats("decode");
+    private final ContactPhotoStageStats mNetworkStats = new ContactPhotoStageStats("network");
+    /** Latency of the individual batches of photo ids queried during an io task. */
+    private final ContactPhotoStageStats mQueryStats =
+            new ContactPhotoStageStats(ContactPhotoMetrics.STAGE_QUERY);
+
+    /**
+     * Scroll position and velocity of a list, used to avoid re-prioritizing pending requests on
+     * scrolls that did not change its visible rows and to decide how far ahead to prefetch.
+     */
+    private static final class ScrollState {
+        int firstVisibleItem = -1;
+        long time;
+        /** Rows per second, positive when scrolling towards the end of the list. */
+        float velocity;
+    }
+
+    /**
+     * Scroll state of each list that reported a scroll, keyed by its {@link PrefetchSource}, or
+     * by its view if it does not prefetch. Only accessed on the UI thread.
+     */
+    private final WeakHashMap<Object, ScrollState> mScrollStates =
+            new WeakHashMap<Object, ScrollState>();
+
+    private final AtomicInteger mPrefetchRequested = new AtomicInteger();
+    private final AtomicInteger mPrefetchCompleted = new AtomicInteger();
+    private final AtomicInteger mPrefetchBackoffs = new AtomicInteger();
+
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
      */
     private boolean mLoadingRequested;
 
     /**
-     * Flag indicating if the image loading is paused.
+     * Flag indicating if the image loading is paused. Prefetch requests are still served while
+     * paused, so that the rows a fling is heading towards are ready when it stops.
+     */
+    private volatile boolean mPaused;
+
+    /**
+     * Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. Most of the
+     * cached photos are thumbnails, which are kept off-heap.
      */
-    private boolean mPaused;
+    private static final int HOLDER_CACHE_SIZE = 4000000;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
-    private static final int HOLDER_CACHE_SIZE = 2000000;
+    /**
+     * Compressed photos up to this size are kept in {@link #mCompressedPhotoStore}, and decoded
+     * through pooled buffers of this size. Larger ones stay on the heap.
+     */
+    private static final int MAX_OFF_HEAP_PHOTO_SIZE = 32 * 1024;
+
+    /**
+     * Room in {@link #mCompressedPhotoStore} beyond the size of {@link #mBitmapHolderCache}, for
+     * photos that are stored while the cache has yet to evict older ones.
+     */
+    private static final int OFF_HEAP_HEADROOM = 4 * CompressedPhotoStore.SLAB_SIZE;
 
     /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
+    /** Maximum size of {@link #mBitmapPool} for devices with "large" RAM. */
+    private static final int BITMAP_POOL_SIZE = BITMAP_CACHE_SIZE / 4;
+
+    /** Cache size for {@link #mShapedBitmapCache} for devices with "large" RAM. */
+    private static final int SHAPED_BITMAP_CACHE_SIZE = BITMAP_CACHE_SIZE / 2;
+
+    /** Cache size for {@link #mDiskCache} for devices with "large" RAM. */
+    private static final int DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
 
-    /** For debug: How many times we had to reload cached photo for a stale entry */
+    /** How many times we had to reload cached photo for a stale entry */
     private final AtomicInteger mStaleCacheOverwrite = new AtomicInteger();
 
-    /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
+    /** How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
     /**
-     * The user agent string to use when loading URI based photos.
+     * Lookups of requested photos in the in-memory tiers, see {@link ContactPhotoMetrics}.
+     * Updated on the UI thread, read from any thread.
+     */
+    private final AtomicLong mBitmapHits = new AtomicLong();
+    private final AtomicLong mBitmapMisses = new AtomicLong();
+    private final AtomicLong mHolderHits = new AtomicLong();
+    private final AtomicLong mHolderMisses = new AtomicLong();
+
+    /** Photos found and not found by the contacts provider. */
+    private final AtomicLong mProviderFound = new AtomicLong();
+    private final AtomicLong mProviderNotFound = new AtomicLong();
+    /** Stale photos from the disk cache that the provider reported as unchanged. */
+    private final AtomicLong mProviderRevalidated = new AtomicLong();
+
+    /**
+     * Downloads URI based photos that live on the network.
+     */
+    private final ContactPhotoHttpFetcher mHttpFetcher;
+
+    /**
+     * Buffers for reading photos of unknown length, shared by the loader thread and the
+     * network threads.
+     */
+    private final ByteArrayPool mReadBufferPool =
+            new ByteArrayPool(READ_BUFFER_SIZE, NETWORK_THREADS + 1);
+
+    /**
+     * Off-heap storage of the compressed photos in {@link #mBitmapHolderCache}. The cache
+     * decides which photos to keep, and releases their storage as it evicts them.
      */
-    private String mUserAgent;
+    private final CompressedPhotoStore mCompressedPhotoStore;
+
+    /**
+     * Buffers into which photos are copied from {@link #mCompressedPhotoStore} to be decoded,
+     * shared by the UI thread and the decoder threads.
+     */
+    private final ByteArrayPool mDecodeBufferPool =
+            new ByteArrayPool(MAX_OFF_HEAP_PHOTO_SIZE, MAX_DECODER_THREADS + 1);
+
+    /** Decides the sizes of the in-memory caches. Only used on the UI thread. */
+    private final ContactPhotoCacheSizePolicy mSizePolicy;
+
+    /** Recent resizes of the in-memory caches, oldest first. Guarded by itself. */
+    private final LinkedList<ContactPhotoMetrics.TrimEvent> mTrimEvents =
+            new LinkedList<ContactPhotoMetrics.TrimEvent>();
 
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
@@ -767,8 +1306,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 Context.ACTIVITY_SERVICE));
 
         final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
+        mSizePolicy = new ContactPhotoCacheSizePolicy(am.getMemoryClass(), am.isLowRamDevice());
 
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+        final int bitmapCacheSize = mSizePolicy.getSize(BITMAP_CACHE_SIZE);
         mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
                 return value.getByteCount();
@@ -776,35 +1316,85 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    releaseToPool(oldValue);
+                }
                 if (DEBUG) dumpStats();
             }
         };
-        final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+        mBitmapPool = new BitmapPool(mSizePolicy.getSize(BITMAP_POOL_SIZE));
+        mShapedBitmapCache = new ShapedBitmapCache(mSizePolicy.getSize(SHAPED_BITMAP_CACHE_SIZE));
+        final int holderCacheSize = mSizePolicy.getSize(HOLDER_CACHE_SIZE);
+        mCompressedPhotoStore = new CompressedPhotoStore(holderCacheSize + OFF_HEAP_HEADROOM);
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
-                return value.bytes != null ? value.bytes.length : 0;
+                return value.getCacheSize();
             }
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, BitmapHolder oldValue, BitmapHolder newValue) {
+                if (oldValue != newValue) {
+                    oldValue.releaseStorage();
+                }
                 if (DEBUG) dumpStats();
             }
         };
         mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
-        Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
+        mDiskCache = new ContactPhotoDiskCache(context.getCacheDir(),
+                (int) (cacheSizeAdjustment * DISK_CACHE_SIZE));
+        Log.i(TAG, "Cache adj: " + mSizePolicy.getBaseScale() + ", disk: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
-                    + " + " + btk(mBitmapCache.maxSize()));
+                    + " + " + btk(mBitmapCache.maxSize())
+                    + ", disk: " + btk(mDiskCache.maxSize()));
         }
 
         mThumbnailSize = context.getResources().getDimensionPixelSize(
                 R.dimen.contact_browser_list_item_photo_size);
 
+        final int decoderThreads = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_DECODER_THREADS));
+        mDecodeExecutor = createExecutor(DECODER_THREAD_NAME, decoderThreads,
+                new PriorityBlockingQueue<Runnable>());
+        mPrefetchDecodeBacklog = decoderThreads * PREFETCH_DECODE_BACKLOG_PER_THREAD;
+        mNetworkExecutor = createExecutor(NETWORK_THREAD_NAME, NETWORK_THREADS,
+                new LinkedBlockingQueue<Runnable>());
+        mQueryExecutor = createExecutor(QUERY_THREAD_NAME, QUERY_THREADS,
+                new LinkedBlockingQueue<Runnable>());
+
         // Get a user agent string to use for URI photo requests.
-        mUserAgent = UserAgentGenerator.getUserAgent(context);
-        if (mUserAgent == null) {
-            mUserAgent = "";
-        }
+        String userAgent = UserAgentGenerator.getUserAgent(context);
+        if (userAgent == null) {
+            userAgent = "";
+        }
+        mHttpFetcher = new ContactPhotoHttpFetcher(userAgent, NETWORK_THREADS,
+                new ContactPhotoValidatorStore(
+                        new File(context.getCacheDir(), VALIDATOR_STORE_FILE_NAME),
+                        MAX_VALIDATOR_ENTRIES),
+                mReadBufferPool);
+    }
+
+    /**
+     * Creates a pool of background priority threads that are stopped when idle.
+     */
+    private static ThreadPoolExecutor createExecutor(final String name, int threads,
+            BlockingQueue<Runnable> queue) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + threadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /** Converts bytes to K bytes, rounding up.  Used only for debug log. */
@@ -828,14 +1418,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             int numBitmaps = 0;
             for (BitmapHolder h : mBitmapHolderCache.snapshot().values()) {
                 numHolders++;
-                if (h.bytes != null) {
-                    rawBytes += h.bytes.length;
-                }
-                Bitmap b = h.bitmapRef != null ? h.bitmapRef.get() : null;
-                if (b != null) {
-                    numBitmaps++;
-                    bitmapBytes += b.getByteCount();
+                if (h.hasBytes()) {
+                    rawBytes += h.byteCount;
                 }
+                numBitmaps += h.getDecodedCount();
+                bitmapBytes += h.getDecodedByteCount();
             }
             Log.d(TAG, "L1: " + btk(rawBytes) + " + " + btk(bitmapBytes) + " = "
                     + btk(rawBytes + bitmapBytes) + ", " + numHolders + " holders, "
@@ -843,6 +1430,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + btk(safeDiv(rawBytes, numHolders))
                     + "," + btk(safeDiv(bitmapBytes,numBitmaps)));
             Log.d(TAG, "L1 Stats: " + mBitmapHolderCache.toString()
+                    + ", " + mCompressedPhotoStore
                     + ", overwrite: fresh=" + mFreshCacheOverwrite.get()
                     + " stale=" + mStaleCacheOverwrite.get());
         }
@@ -858,15 +1446,97 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+
+        Log.d(TAG, "Single flight: " + mFetchFlights + "; " + mDecodeFlights);
+        Log.d(TAG, mHttpFetcher.toString());
+        final ContactPhotoMetrics metrics = getMetrics();
+        for (ContactPhotoMetrics.Tier tier : metrics.getTiers()) {
+            Log.d(TAG, "Tier " + tier);
+        }
+        for (ContactPhotoMetrics.Stage stage : metrics.getStages()) {
+            Log.d(TAG, "Stage " + stage);
+        }
+        Log.d(TAG, "Counters: " + metrics.getCounters());
     }
 
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
-        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+        LetterTileDrawable.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // The process may be killed from now on.
+            mHttpFetcher.saveValidators();
+        }
+        if (mSizePolicy.onTrimMemory(level) || ContactPhotoCacheSizePolicy.shouldClear(level)) {
+            applyCacheSizes(level);
+        }
+        if (mSizePolicy.isShrunk()) {
+            // The pressure is still there; postpone growing the caches back.
+            mMainThreadHandler.removeMessages(MESSAGE_REGROW_CACHES);
+            mMainThreadHandler.sendEmptyMessageDelayed(MESSAGE_REGROW_CACHES,
+                    CACHE_REGROW_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Grows the caches back by one step, and schedules the next step if they are still shrunk.
+     */
+    private void regrowCaches() {
+        if (mSizePolicy.regrow()) {
+            applyCacheSizes(0);
+        }
+        if (mSizePolicy.isShrunk()) {
+            mMainThreadHandler.sendEmptyMessageDelayed(MESSAGE_REGROW_CACHES,
+                    CACHE_REGROW_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Resizes the in-memory caches to the sizes the policy currently allows, clearing them first
+     * if the trim-memory level calls for it, and records their occupancy before and after. Must
+     * be called on the UI thread, because shrinking the bitmap cache releases bitmaps to the pool.
+     *
+     * @param level the trim-memory level that caused the resize, or 0 when growing back.
+     */
+    private void applyCacheSizes(int level) {
+        final long residentBefore = getResidentCacheBytes();
+        final long maxBefore = getMaxCacheBytes();
+
+        if (ContactPhotoCacheSizePolicy.shouldClear(level)) {
             // Clear the caches.  Note all pending requests will be removed too.
             clear();
         }
+        // Shrink the pool first, so that bitmaps evicted from the bitmap cache below do not
+        // refill it.
+        mBitmapPool.resize(mSizePolicy.getSize(BITMAP_POOL_SIZE));
+        // LruCache requires a positive size.
+        mBitmapCache.resize(Math.max(1, mSizePolicy.getSize(BITMAP_CACHE_SIZE)));
+        final int holderCacheSize = Math.max(1, mSizePolicy.getSize(HOLDER_CACHE_SIZE));
+        mBitmapHolderCache.resize(holderCacheSize);
+        mCompressedPhotoStore.resize(holderCacheSize + OFF_HEAP_HEADROOM);
+        mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+        mShapedBitmapCache.resize(Math.max(1, mSizePolicy.getSize(SHAPED_BITMAP_CACHE_SIZE)));
+
+        final ContactPhotoMetrics.TrimEvent event = new ContactPhotoMetrics.TrimEvent(level,
+                SystemClock.elapsedRealtime(), mSizePolicy.getScale(), residentBefore,
+                getResidentCacheBytes(), maxBefore, getMaxCacheBytes());
+        Log.i(TAG, "Cache resize: " + event);
+        synchronized (mTrimEvents) {
+            if (mTrimEvents.size() == MAX_TRIM_EVENTS) {
+                mTrimEvents.removeFirst();
+            }
+            mTrimEvents.addLast(event);
+        }
+    }
+
+    private long getResidentCacheBytes() {
+        return (long) mBitmapCache.size() + mBitmapHolderCache.size() + mBitmapPool.size()
+                + mShapedBitmapCache.size();
+    }
+
+    private long getMaxCacheBytes() {
+        return (long) mBitmapCache.maxSize() + mBitmapHolderCache.maxSize()
+                + mBitmapPool.maxSize() + mShapedBitmapCache.maxSize();
     }
 
     @Override
@@ -883,6 +1553,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, account, -1, darkTheme, defaultImageRequest);
             mPendingRequests.remove(view);
+            mBoundBitmaps.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
             loadPhotoByIdOrUri(view, Request.createFromThumbnailId(photoId, darkTheme, isCircular,
@@ -899,9 +1570,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             defaultProvider.applyDefaultImage(view, account, requestedExtent, darkTheme,
                     defaultImageRequest);
             mPendingRequests.remove(view);
+            mBoundBitmaps.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
             if (isDefaultImageUri(photoUri)) {
+                mBoundBitmaps.remove(view);
                 createAndApplyDefaultImageForUri(view, account, photoUri, requestedExtent,
                         darkTheme, isCircular, defaultProvider);
             } else {
@@ -911,6 +1584,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    @Override
+    public void loadPhotoProgressively(ImageView view, Uri photoUri, long thumbnailPhotoId,
+            Account account, int requestedExtent, boolean darkTheme, boolean isCircular,
+            DefaultImageRequest defaultImageRequest) {
+        if (photoUri == null || thumbnailPhotoId == 0 || isDefaultImageUri(photoUri)) {
+            loadPhoto(view, photoUri, account, requestedExtent, darkTheme, isCircular,
+                    defaultImageRequest, DEFAULT_AVATAR);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "loadPhotoProgressively request: " + photoUri);
+        loadPhotoByIdOrUri(view, Request.createProgressive(photoUri, thumbnailPhotoId,
+                requestedExtent, darkTheme, isCircular, DEFAULT_AVATAR));
+    }
+
     private void createAndApplyDefaultImageForUri(ImageView view,
             Account account, Uri uri, int requestedExtent, boolean darkTheme,
             boolean isCircular, DefaultImageProvider defaultProvider) {
@@ -920,6 +1607,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
+        recordCacheLookup(request);
         boolean loaded = loadCachedPhoto(view, request, false);
         if (loaded) {
             mPendingRequests.remove(view);
@@ -936,8 +1624,90 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
         mPendingRequests.remove(view);
+        mBoundBitmaps.remove(view);
+    }
+
+
+    /**
+     * Counts a hit in the first in-memory tier that can serve the given request, and a miss in
+     * each tier consulted before it. Must be called on the UI thread.
+     */
+    private void recordCacheLookup(Request request) {
+        final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+        if (holder != null && holder.getBitmapForExtent(request.getRequestedExtent()) != null) {
+            mBitmapHits.incrementAndGet();
+            return;
+        }
+        mBitmapMisses.incrementAndGet();
+        if (holder != null) {
+            mHolderHits.incrementAndGet();
+        } else {
+            mHolderMisses.incrementAndGet();
+        }
     }
 
+    @Override
+    public ContactPhotoMetrics getMetrics() {
+        final List<ContactPhotoMetrics.Tier> tiers = new ArrayList<ContactPhotoMetrics.Tier>();
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_BITMAP,
+                mBitmapHits.get(), mBitmapMisses.get(), mBitmapCache.evictionCount(),
+                mBitmapCache.size(), mBitmapCache.maxSize(), mBitmapCache.snapshot().size()));
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_HOLDER,
+                mHolderHits.get(), mHolderMisses.get(), mBitmapHolderCache.evictionCount(),
+                mBitmapHolderCache.size(), mBitmapHolderCache.maxSize(),
+                mBitmapHolderCache.snapshot().size()));
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_DISK,
+                mDiskCache.hitCount(), mDiskCache.missCount(), mDiskCache.evictionCount(),
+                mDiskCache.size(), mDiskCache.maxSize(), mDiskCache.entryCount()));
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_POOL,
+                mBitmapPool.getReuseCount(), mBitmapPool.getAllocationCount(),
+                mBitmapPool.getEvictionCount(), mBitmapPool.size(), mBitmapPool.maxSize(),
+                mBitmapPool.getBitmapCount()));
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_SHAPED,
+                mShapedBitmapCache.hitCount(), mShapedBitmapCache.missCount(),
+                mShapedBitmapCache.evictionCount(), mShapedBitmapCache.size(),
+                mShapedBitmapCache.maxSize(), mShapedBitmapCache.entryCount()));
+        tiers.add(new ContactPhotoMetrics.Tier(ContactPhotoMetrics.TIER_OFF_HEAP,
+                mCompressedPhotoStore.readCount(), mCompressedPhotoStore.failedAllocationCount(),
+                mCompressedPhotoStore.droppedSlabCount(), mCompressedPhotoStore.size(),
+                mCompressedPhotoStore.maxSize(), mCompressedPhotoStore.allocationCount()));
+
+        final List<ContactPhotoMetrics.Stage> stages = new ArrayList<ContactPhotoMetrics.Stage>();
+        stages.add(mIoStats.snapshot());
+        stages.add(mDecodeStats.snapshot());
+        stages.add(mNetworkStats.snapshot());
+        stages.add(mQueryStats.snapshot());
+
+        final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        counters.put(ContactPhotoMetrics.COUNTER_PROVIDER_FOUND, mProviderFound.get());
+        counters.put(ContactPhotoMetrics.COUNTER_PROVIDER_NOT_FOUND, mProviderNotFound.get());
+        counters.put(ContactPhotoMetrics.COUNTER_PROVIDER_REVALIDATED,
+                mProviderRevalidated.get());
+        counters.put(ContactPhotoMetrics.COUNTER_FETCH_COALESCED,
+                mFetchFlights.getCoalescedCount());
+        counters.put(ContactPhotoMetrics.COUNTER_DECODE_COALESCED,
+                mDecodeFlights.getCoalescedCount());
+        counters.put(ContactPhotoMetrics.COUNTER_HTTP_FETCHES, mHttpFetcher.getFetchCount());
+        counters.put(ContactPhotoMetrics.COUNTER_HTTP_NOT_MODIFIED,
+                mHttpFetcher.getNotModifiedCount());
+        counters.put(ContactPhotoMetrics.COUNTER_HTTP_FAILURES, mHttpFetcher.getFailureCount());
+        counters.put(ContactPhotoMetrics.COUNTER_HTTP_BYTES, mHttpFetcher.getBytesDownloaded());
+        counters.put(ContactPhotoMetrics.COUNTER_PREFETCH_REQUESTED,
+                (long) mPrefetchRequested.get());
+        counters.put(ContactPhotoMetrics.COUNTER_PREFETCH_COMPLETED,
+                (long) mPrefetchCompleted.get());
+        counters.put(ContactPhotoMetrics.COUNTER_PREFETCH_BACKOFFS,
+                (long) mPrefetchBackoffs.get());
+        counters.put(ContactPhotoMetrics.COUNTER_OVERWRITE_FRESH,
+                (long) mFreshCacheOverwrite.get());
+        counters.put(ContactPhotoMetrics.COUNTER_OVERWRITE_STALE,
+                (long) mStaleCacheOverwrite.get());
+        final List<ContactPhotoMetrics.TrimEvent> trimEvents;
+        synchronized (mTrimEvents) {
+            trimEvents = new ArrayList<ContactPhotoMetrics.TrimEvent>(mTrimEvents);
+        }
+        return new ContactPhotoMetrics(tiers, stages, counters, trimEvents);
+    }
 
     /**
      * Cancels pending requests to load photos asynchronously for views inside
@@ -947,6 +1717,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void cancelPendingRequests(View fragmentRootView) {
         if (fragmentRootView == null) {
             mPendingRequests.clear();
+            mPrefetchRequests.clear();
             return;
         }
         final Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
@@ -960,6 +1731,193 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            PrefetchSource source) {
+        final Object key = source != null ? source : view;
+        ScrollState state = mScrollStates.get(key);
+        if (state == null) {
+            state = new ScrollState();
+            mScrollStates.put(key, state);
+        }
+        if (firstVisibleItem == state.firstVisibleItem) {
+            return;
+        }
+        updateScrollVelocity(state, firstVisibleItem, SystemClock.uptimeMillis());
+        prioritizePendingRequests();
+        if (source != null && state.velocity != 0) {
+            prefetch(firstVisibleItem, visibleItemCount, state.velocity, source);
+        }
+    }
+
+    /**
+     * Updates the velocity of a list whose first visible row changed, averaging the latest
+     * sample with the previous estimate to smooth out uneven frame timing.
+     */
+    private static void updateScrollVelocity(ScrollState state, int firstVisibleItem, long now) {
+        if (state.firstVisibleItem != -1 && now > state.time) {
+            final float velocity = (firstVisibleItem - state.firstVisibleItem) * 1000f
+                    / (now - state.time);
+            if (now - state.time > SCROLL_IDLE_MILLIS
+                    || Math.signum(velocity) != Math.signum(state.velocity)) {
+                // Started moving again or changed direction.
+                state.velocity = velocity;
+            } else {
+                state.velocity = (state.velocity + velocity) / 2;
+            }
+        }
+        state.firstVisibleItem = firstVisibleItem;
+        state.time = now;
+    }
+
+    /**
+     * Replaces {@link #mPrefetchRequests} with requests for the rows the list will scroll
+     * through in the next {@link #PREFETCH_LOOKAHEAD_MILLIS} at the given velocity. Fewer rows
+     * are prefetched the longer the decode queue is, and none at all once it reaches
+     * {@link #mPrefetchDecodeBacklog}. Must be called on the UI thread.
+     */
+    private void prefetch(int firstVisibleItem, int visibleItemCount, float velocity,
+            PrefetchSource source) {
+        final int backlog = mDecodeStats.getQueueDepth();
+        int rows = Math.min(MAX_PREFETCH_ROWS,
+                (int) Math.ceil(Math.abs(velocity) * PREFETCH_LOOKAHEAD_MILLIS / 1000));
+        rows = rows * Math.max(0, mPrefetchDecodeBacklog - backlog) / mPrefetchDecodeBacklog;
+        if (rows == 0) {
+            mPrefetchBackoffs.incrementAndGet();
+            mPrefetchRequests.clear();
+            return;
+        }
+
+        final int step = velocity > 0 ? 1 : -1;
+        final int start = velocity > 0
+                ? firstVisibleItem + visibleItemCount : firstVisibleItem - 1;
+        final int count = source.getCount();
+        final Map<Object, Request> requests = new HashMap<Object, Request>();
+        for (int i = 0; i < rows; i++) {
+            final int position = start + i * step;
+            if (position < 0 || position >= count) {
+                break;
+            }
+            final long photoId = source.getPhotoIdForPrefetch(position);
+            if (photoId == 0 || isDecoded(photoId)) {
+                continue;
+            }
+            Request request = mPrefetchRequests.get(photoId);
+            if (request == null) {
+                request = Request.createFromThumbnailId(photoId, false, false, null);
+                mPrefetchRequested.incrementAndGet();
+            }
+            request.mPriority = PRIORITY_PREFETCH + i;
+            requests.put(photoId, request);
+        }
+        // Rows that are no longer ahead of the list are not worth loading anymore.
+        mPrefetchRequests.keySet().retainAll(requests.keySet());
+        mPrefetchRequests.putAll(requests);
+        if (!mPrefetchRequests.isEmpty()) {
+            requestLoading();
+        }
+    }
+
+    /**
+     * Returns whether a bitmap for the given photo is available or known not to exist.
+     */
+    private boolean isDecoded(Object key) {
+        final BitmapHolder holder = mBitmapHolderCache.get(key);
+        if (holder == null) {
+            return false;
+        }
+        if (!holder.hasBytes() || holder == BITMAP_UNAVAILABLE) {
+            return true;
+        }
+        // Only thumbnails are prefetched, and they are never sampled.
+        return holder.fresh && holder.getBitmap(1) != null;
+    }
+
+    /**
+     * Moves the bitmaps of completed prefetch requests into {@link #mBitmapCache}, so that they
+     * stay around until their rows are displayed. Must be called on the UI thread.
+     */
+    private void processPrefetchedImages() {
+        final Iterator<Request> iterator = mPrefetchRequests.values().iterator();
+        while (iterator.hasNext()) {
+            final Request request = iterator.next();
+            final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+            if (holder == null) {
+                continue;
+            }
+            if (!holder.hasBytes() || holder == BITMAP_UNAVAILABLE) {
+                iterator.remove();
+                continue;
+            }
+            final int sampleSize = holder.getSampleSize(request.getRequestedExtent());
+            final Bitmap bitmap = holder.getBitmap(sampleSize);
+            if (bitmap == null) {
+                continue;
+            }
+            if (bitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
+                mBitmapCache.put(getBitmapCacheKey(request.getKey(), sampleSize), bitmap);
+            }
+            iterator.remove();
+            mPrefetchCompleted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops pending requests for views that were recycled or scrolled out of their list, and
+     * updates the priority of the remaining requests by their position on screen. Must be called
+     * on the UI thread.
+     */
+    private void prioritizePendingRequests() {
+        final Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry<ImageView, Request> entry = iterator.next();
+            final Request request = entry.getValue();
+            final int priority = getVisiblePriority(entry.getKey(), request);
+            if (priority == PRIORITY_NOT_VISIBLE) {
+                iterator.remove();
+            } else {
+                request.mPriority = priority;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the list row containing the given view among the visible rows of its
+     * list, 0 for views that are not in a list, or {@link #PRIORITY_NOT_VISIBLE} if the view
+     * belongs to a row that has been recycled or is no longer visible.
+     */
+    private static int getVisiblePriority(ImageView view, Request request) {
+        View child = view;
+        ViewParent parent = view.getParent();
+        while (parent instanceof View) {
+            if (parent instanceof AbsListView) {
+                request.mInList = true;
+                final int index = ((AbsListView) parent).indexOfChild(child);
+                return index < 0 ? PRIORITY_NOT_VISIBLE : index;
+            }
+            child = (View) parent;
+            parent = parent.getParent();
+        }
+        // A row that was previously in a list, but is detached now, has been recycled.
+        return parent == null && request.mInList ? PRIORITY_NOT_VISIBLE : 0;
+    }
+
+    /**
+     * Returns the pending request with the highest priority for the given cache key, falling
+     * back to a prefetch request, or null if neither a view nor prefetching is waiting for that
+     * photo anymore.
+     */
+    private Request findPendingRequest(Object key) {
+        Request result = null;
+        for (Request request : mPendingRequests.values()) {
+            if (request.getKey().equals(key)
+                    && (result == null || REQUEST_PRIORITY_ORDER.compare(request, result) < 0)) {
+                result = request;
+            }
+        }
+        return result != null ? result : mPrefetchRequests.get(key);
+    }
+
     private static boolean isChildView(View parent, View potentialChild) {
         return potentialChild.getParent() != null && (potentialChild.getParent() == parent || (
                 potentialChild.getParent() instanceof ViewGroup && isChildView(parent,
@@ -979,6 +1937,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 holder.fresh = false;
             }
         }
+        // Photos restored from disk from now on have to be revalidated as well.
+        mDiskCache.invalidate();
     }
 
     /**
@@ -990,26 +1950,32 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
         if (holder == null) {
             // The bitmap has not been loaded ==> show default avatar
-            request.applyDefaultImage(view, request.mIsCircular);
+            applyPlaceholder(view, request);
             return false;
         }
 
-        if (holder.bytes == null) {
-            request.applyDefaultImage(view, request.mIsCircular);
+        if (!holder.hasBytes()) {
+            applyPlaceholder(view, request);
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        final int sampleSize = holder.getSampleSize(request.getRequestedExtent());
+        Bitmap cachedBitmap = holder.getBitmap(sampleSize);
         if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
-                // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
-                cachedBitmap = holder.bitmap;
-                if (cachedBitmap == null) return false;
-            } else {
-                // This is bigger data. Let's send that back to the Loader so that we can
-                // inflate this in the background
-                request.applyDefaultImage(view, request.mIsCircular);
+            cachedBitmap = inflateSmallBitmap(request.getKey(), holder,
+                    request.getRequestedExtent());
+            if (cachedBitmap == null) {
+                // This is bigger data, or it is being decoded already. Let the decoder threads
+                // inflate it in the background; they notify the UI thread when they are done.
+                // Meanwhile, show the photo at another resolution if it is decoded at one.
+                final Bitmap otherBitmap = holder.getAnyBitmap();
+                if (otherBitmap != null) {
+                    view.setImageDrawable(getDrawableForBitmap(mContext.getResources(),
+                            otherBitmap, request.getKey(), request.mIsCircular));
+                    mBoundBitmaps.put(view, new Bitmap[] { otherBitmap });
+                } else {
+                    applyPlaceholder(view, request);
+                }
                 return false;
             }
         }
@@ -1026,38 +1992,94 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             } else {
                 layers[0] = previousDrawable;
             }
-            layers[1] = getDrawableForBitmap(mContext.getResources(), cachedBitmap, request);
+            layers[1] = getDrawableForBitmap(mContext.getResources(), cachedBitmap,
+                    request.getKey(), request.mIsCircular);
             TransitionDrawable drawable = new TransitionDrawable(layers);
             view.setImageDrawable(drawable);
             drawable.startTransition(FADE_TRANSITION_DURATION);
+            // The first layer shows the last bitmap bound to the view, if it was not a default
+            // image.
+            final Bitmap[] previousBitmaps = mBoundBitmaps.get(view);
+            if (previousBitmaps != null) {
+                mBoundBitmaps.put(view, new Bitmap[] {
+                        previousBitmaps[previousBitmaps.length - 1], cachedBitmap });
+            } else {
+                mBoundBitmaps.put(view, new Bitmap[] { cachedBitmap });
+            }
         } else {
-            view.setImageDrawable(
-                    getDrawableForBitmap(mContext.getResources(), cachedBitmap, request));
+            view.setImageDrawable(getDrawableForBitmap(mContext.getResources(), cachedBitmap,
+                    request.getKey(), request.mIsCircular));
+            mBoundBitmaps.put(view, new Bitmap[] { cachedBitmap });
+        }
+
+        // Put the bitmap in the LRU cache. But only do this for images that are small enough
+        // (we require that at least six of those can be cached at the same time)
+        if (cachedBitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
+            mBitmapCache.put(getBitmapCacheKey(request.getKey(), sampleSize), cachedBitmap);
+        }
+
+        // Soften the reference
+        holder.bitmap = null;
+
+        return holder.fresh;
+    }
+
+    /**
+     * Shows what the view should display while the photo of the given request is not
+     * available: the cached thumbnail for progressive requests, the default image otherwise.
+     */
+    private void applyPlaceholder(ImageView view, Request request) {
+        if (request.mThumbnailId != 0 && applyCachedThumbnail(view, request)) {
+            return;
+        }
+        request.mShowingThumbnail = false;
+        request.applyDefaultImage(view, request.mIsCircular);
+        mBoundBitmaps.remove(view);
+    }
+
+    /**
+     * Shows the cached thumbnail of a progressive request, if it is available without going
+     * back to the loader.
+     *
+     * @return false if the thumbnail is not cached.
+     */
+    private boolean applyCachedThumbnail(ImageView view, Request request) {
+        if (request.mShowingThumbnail) {
+            // Still displayed since the last attempt to show the display photo.
+            return true;
+        }
+        final BitmapHolder holder = mBitmapHolderCache.get(request.mThumbnailId);
+        if (holder == null || !holder.hasBytes()) {
+            return false;
         }
-
-        // Put the bitmap in the LRU cache. But only do this for images that are small enough
-        // (we require that at least six of those can be cached at the same time)
-        if (cachedBitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
-            mBitmapCache.put(request.getKey(), cachedBitmap);
+        Bitmap bitmap = holder.getAnyBitmap();
+        if (bitmap == null) {
+            bitmap = inflateSmallBitmap(request.mThumbnailId, holder, -1);
+            if (bitmap == null) {
+                return false;
+            }
+            // Soften the reference
+            holder.bitmap = null;
         }
-
-        // Soften the reference
-        holder.bitmap = null;
-
-        return holder.fresh;
+        view.setImageDrawable(getDrawableForBitmap(mContext.getResources(), bitmap,
+                request.mThumbnailId, request.mIsCircular));
+        mBoundBitmaps.put(view, new Bitmap[] { bitmap });
+        request.mShowingThumbnail = true;
+        return true;
     }
 
     /**
      * Given a bitmap, returns a drawable that is configured to display the bitmap based on the
-     * specified request.
-     */
-    private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, Request request) {
-        if (request.mIsCircular) {
-            final RoundedBitmapDrawable drawable =
-                    RoundedBitmapDrawableFactory.create(resources, bitmap);
-            drawable.setAntiAlias(true);
-            drawable.setCornerRadius(bitmap.getHeight() / 2);
-            return drawable;
+     * specified request. Circular photos are masked once and then served from
+     * {@link #mShapedBitmapCache}.
+     *
+     * @param key the photo id or URI the bitmap was loaded for.
+     */
+    private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, Object key,
+            boolean isCircular) {
+        if (isCircular) {
+            return new BitmapDrawable(resources, mShapedBitmapCache.get(key, bitmap,
+                    ShapedBitmapCache.SHAPE_CIRCLE));
         } else {
             return new BitmapDrawable(resources, bitmap);
         }
@@ -1068,27 +2090,63 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
-        final int sampleSize =
-                BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
-        byte[] bytes = holder.bytes;
-        if (bytes == null || bytes.length == 0) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+        // Holders can be inflated concurrently by the UI thread and the decoder threads.
+        holder.decodeLock.lock();
+        try {
+            inflateBitmapLocked(holder, requestedExtent);
+        } finally {
+            holder.decodeLock.unlock();
+        }
+    }
+
+    /**
+     * Inflates a small thumbnail on the UI thread, which is usually quick. Bigger photos, and
+     * photos that the decoder threads are working on, are left to the decoder threads, so that
+     * the UI thread never waits for them.
+     *
+     * @return the bitmap, or null if the photo is left to the decoder threads.
+     */
+    private Bitmap inflateSmallBitmap(Object key, BitmapHolder holder, int requestedExtent) {
+        final int sampleSize = holder.getSampleSize(requestedExtent);
+        if (holder.byteCount >= 8 * 1024
+                || mDecodeFlights.isInFlight(getBitmapCacheKey(key, sampleSize))
+                || !holder.decodeLock.tryLock()) {
+            return null;
+        }
+        try {
+            inflateBitmapLocked(holder, requestedExtent);
+        } finally {
+            holder.decodeLock.unlock();
+        }
+        return holder.getBitmap(sampleSize);
+    }
+
+    private void inflateBitmapLocked(BitmapHolder holder, int requestedExtent) {
+        final int sampleSize = holder.getSampleSize(requestedExtent);
+        if (holder.byteCount <= 0) {
             return;
         }
 
-        if (sampleSize == holder.decodedSampleSize) {
-            // Check the soft reference.  If will be retained if the bitmap is also
-            // in the LRU cache, so we don't need to check the LRU cache explicitly.
-            if (holder.bitmapRef != null) {
-                holder.bitmap = holder.bitmapRef.get();
-                if (holder.bitmap != null) {
-                    return;
-                }
-            }
+        // Check the soft reference.  If will be retained if the bitmap is also
+        // in the LRU cache, so we don't need to check the LRU cache explicitly.
+        final Bitmap decoded = holder.getBitmap(sampleSize);
+        if (decoded != null) {
+            holder.bitmap = decoded;
+            return;
         }
 
+        final byte[] bytes = holder.acquireBytes(mDecodeBufferPool);
+        if (bytes == null) {
+            // The holder was evicted and its storage released while waiting to be decoded.
+            return;
+        }
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, holder.byteCount, sampleSize,
+                    mBitmapPool);
+            if (bitmap == null) {
+                return;
+            }
 
             // TODO: As a temporary workaround while framework support is being added to
             // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -1101,8 +2159,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // below twice the length of a thumbnail image due to the way we calculate the optimal
             // sample size.
             if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
-                final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+                bitmap = BitmapUtil.cropToCenterSquare(bitmap, mBitmapPool);
             }
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
@@ -1120,24 +2177,59 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
             holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            holder.putBitmap(sampleSize, bitmap);
+            mBitmapOwners.put(bitmap, holder);
             if (DEBUG) {
-                Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
+                Log.d(TAG, "inflateBitmap " + btk(holder.byteCount) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
                         + ", " + btk(bitmap.getByteCount()));
             }
         } catch (OutOfMemoryError e) {
             // Do nothing - the photo will appear to be missing
+        } finally {
+            holder.releaseBytes(bytes, mDecodeBufferPool);
         }
     }
 
+    /**
+     * Returns the key of a bitmap in {@link #mBitmapCache}. Each resolution of a photo is cached
+     * separately, so that caching one does not evict the others.
+     */
+    private static Object getBitmapCacheKey(Object key, int sampleSize) {
+        return Pair.create(key, sampleSize);
+    }
+
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
+        mPrefetchRequests.clear();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mBitmapPool.clear();
+        mShapedBitmapCache.evictAll();
+    }
+
+    /**
+     * Returns a bitmap that was removed from {@link #mBitmapCache} to {@link #mBitmapPool}, if it
+     * was decoded by us and is not displayed by any view we bound it to, including as the fading
+     * out layer of a transition. Must be called on the UI thread.
+     */
+    private void releaseToPool(Bitmap bitmap) {
+        for (Bitmap[] bound : mBoundBitmaps.values()) {
+            for (Bitmap boundBitmap : bound) {
+                if (boundBitmap == bitmap) {
+                    return;
+                }
+            }
+        }
+        final BitmapHolder holder = mBitmapOwners.remove(bitmap);
+        if (holder == null) {
+            return;
+        }
+        // Make sure the holder does not hand out the bitmap again once its pixels are reused.
+        holder.removeBitmap(bitmap);
+        mBitmapPool.put(bitmap);
     }
 
     @Override
@@ -1149,7 +2241,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void resume() {
         mPaused = false;
         if (DEBUG) dumpStats();
-        if (!mPendingRequests.isEmpty()) {
+        if (!mPendingRequests.isEmpty() || !mPrefetchRequests.isEmpty()) {
             requestLoading();
         }
     }
@@ -1175,7 +2267,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         switch (msg.what) {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
-                if (!mPaused) {
+                if (!mPaused || !mPrefetchRequests.isEmpty()) {
+                    prioritizePendingRequests();
                     ensureLoaderThread();
                     mLoaderThread.requestLoading();
                 }
@@ -1185,10 +2278,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             case MESSAGE_PHOTOS_LOADED: {
                 if (!mPaused) {
                     processLoadedImages();
+                } else {
+                    processPrefetchedImages();
                 }
                 if (DEBUG) dumpStats();
                 return true;
             }
+
+            case MESSAGE_REGROW_CACHES: {
+                regrowCaches();
+                return true;
+            }
         }
         return false;
     }
@@ -1203,6 +2303,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /**
      * Goes over pending loading requests and displays loaded photos.  If some of the
      * photos still haven't been loaded, sends another request for image loading.
+     * All views waiting for the same photo are served by the same cache entry, so a
+     * single fetch and decode satisfies all of them.
      */
     private void processLoadedImages() {
         final Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
@@ -1210,12 +2312,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             final Entry<ImageView, Request> entry = iterator.next();
             // TODO: Temporarily disable contact photo fading in, until issues with
             // RoundedBitmapDrawables overlapping the default image drawables are resolved.
-            final boolean loaded = loadCachedPhoto(entry.getKey(), entry.getValue(), false);
+            // Progressive requests fade from their thumbnail, which has the same shape.
+            final Request request = entry.getValue();
+            final boolean loaded = loadCachedPhoto(entry.getKey(), request,
+                    request.mShowingThumbnail);
             if (loaded) {
                 iterator.remove();
             }
         }
 
+        processPrefetchedImages();
         softenCache();
 
         if (!mPendingRequests.isEmpty()) {
@@ -1223,6 +2329,95 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Decodes the bytes of the given holder on {@link #mDecodeExecutor} and notifies the UI
+     * thread once the bitmap is available.
+     */
+    private void scheduleDecode(Object key, BitmapHolder holder, int requestedExtent) {
+        final Request request = findPendingRequest(key);
+        if (request == null) {
+            // Nobody is waiting for this photo; it will be decoded when it is requested again.
+            mDecodeStats.onDropped();
+            return;
+        }
+        if (request.mPriority >= PRIORITY_PREFETCH
+                && mDecodeStats.getQueueDepth() >= mPrefetchDecodeBacklog) {
+            // The decoders are busy with visible photos. The bytes stay cached, and the photo
+            // is decoded once its row is displayed.
+            mPrefetchRequests.remove(key, request);
+            mPrefetchBackoffs.incrementAndGet();
+            mDecodeStats.onDropped();
+            return;
+        }
+        final Object flightKey = getBitmapCacheKey(key, holder.getSampleSize(requestedExtent));
+        if (!mDecodeFlights.begin(flightKey)) {
+            // Already queued at this resolution for another view, which will share the result.
+            return;
+        }
+        mDecodeExecutor.execute(
+                new DecodeTask(key, flightKey, holder, requestedExtent, request));
+    }
+
+    /**
+     * Decodes the bytes of a holder on {@link #mDecodeExecutor}. Tasks are ordered like the
+     * requests they serve, so that visible rows are decoded top to bottom, and the most recent
+     * requests first among rows with the same position.
+     */
+    private class DecodeTask implements Runnable, Comparable<DecodeTask> {
+        private final Object mKey;
+        private final Object mFlightKey;
+        private final BitmapHolder mHolder;
+        private final int mRequestedExtent;
+        private final int mPriority;
+        private final long mGeneration;
+        private final long mEnqueuedAt;
+
+        public DecodeTask(Object key, Object flightKey, BitmapHolder holder,
+                int requestedExtent, Request request) {
+            mKey = key;
+            mFlightKey = flightKey;
+            mHolder = holder;
+            mRequestedExtent = requestedExtent;
+            mPriority = request.mPriority;
+            mGeneration = request.mGeneration;
+            mEnqueuedAt = mDecodeStats.onEnqueued();
+        }
+
+        @Override
+        public void run() {
+            final long startedAt = mDecodeStats.onStarted(mEnqueuedAt);
+            try {
+                if (findPendingRequest(mKey) == null) {
+                    // The view was recycled or scrolled out of sight while this task was queued.
+                    mDecodeStats.onDropped();
+                    return;
+                }
+                inflateBitmap(mHolder, mRequestedExtent);
+                notifyPhotosLoaded();
+            } finally {
+                mDecodeFlights.end(mFlightKey);
+                mDecodeStats.onFinished(startedAt);
+            }
+        }
+
+        @Override
+        public int compareTo(DecodeTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return Long.compare(another.mGeneration, mGeneration);
+        }
+    }
+
+    /**
+     * Asks the UI thread to display loaded photos, unless it has already been asked to.
+     */
+    private void notifyPhotosLoaded() {
+        if (!mMainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
     /**
      * Removes strong references to loaded bitmaps to allow them to be garbage collected
      * if needed.  Some of the bitmaps will still be retained by {@link #mBitmapCache}.
@@ -1237,36 +2432,56 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * Stores the supplied bitmap in cache.
      */
     private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+        cacheBitmap(key, bytes, preloading, requestedExtent, true);
+    }
+
+    /**
+     * Stores the supplied bitmap in cache. If {@code fresh} is false the photo is displayed,
+     * but will be reloaded from its source on the next request.
+     */
+    private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent,
+            boolean fresh) {
         if (DEBUG) {
-            BitmapHolder prev = mBitmapHolderCache.get(key);
-            if (prev != null && prev.bytes != null) {
-                Log.d(TAG, "Overwriting cache: key=" + key + (prev.fresh ? " FRESH" : " stale"));
-                if (prev.fresh) {
-                    mFreshCacheOverwrite.incrementAndGet();
-                } else {
-                    mStaleCacheOverwrite.incrementAndGet();
-                }
-            }
             Log.d(TAG, "Caching data: key=" + key + ", " +
                     (bytes == null ? "<null>" : btk(bytes.length)));
         }
-        BitmapHolder holder = new BitmapHolder(bytes,
+        BitmapHolder holder = createHolder(bytes,
                 bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
+        holder.fresh = fresh;
+
+        final BitmapHolder prev;
+        if (bytes == null) {
+            prev = mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+        } else if (holder.getCacheSize() > mBitmapHolderCache.maxSize()) {
+            // The cache would evict the holder right away.
+            Log.w(TAG, "Bitmap too big to fit in cache.");
+            holder.releaseStorage();
+            prev = mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+        } else {
+            prev = mBitmapHolderCache.put(key, holder);
+            if (!preloading) {
+                // Unless this image is being preloaded, decode it right away on the
+                // decoder threads.
+                scheduleDecode(key, holder, requestedExtent);
+            }
+        }
 
-        // Unless this image is being preloaded, decode it right away while
-        // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder, requestedExtent);
+        // The fetch for this key is complete once the result is authoritative. Waiting requests
+        // are served from the cache, which already holds the result. A stale copy is only shown
+        // while its source is asked again, which ends the fetch.
+        if (fresh || bytes == null) {
+            mFetchFlights.end(key);
         }
 
-        if (bytes != null) {
-            mBitmapHolderCache.put(key, holder);
-            if (mBitmapHolderCache.get(key) != holder) {
-                Log.w(TAG, "Bitmap too big to fit in cache.");
-                mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+        if (prev != null && prev.hasBytes()) {
+            if (DEBUG) {
+                Log.d(TAG, "Overwrote cache: key=" + key + (prev.fresh ? " FRESH" : " stale"));
+            }
+            if (prev.fresh) {
+                mFreshCacheOverwrite.incrementAndGet();
+            } else {
+                mStaleCacheOverwrite.incrementAndGet();
             }
-        } else {
-            mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
         }
 
         mBitmapHolderCacheAllUnfresh = false;
@@ -1279,25 +2494,37 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         // requested
         Request request = Request.createFromUri(photoUri, smallerExtent, false /* darkTheme */,
                 false /* isCircular */ , DEFAULT_AVATAR);
-        BitmapHolder holder = new BitmapHolder(photoBytes, smallerExtent);
-        holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+        BitmapHolder holder = createHolder(photoBytes, smallerExtent);
+        final int sampleSize = holder.getSampleSize(smallerExtent);
+        holder.putBitmap(sampleSize, bitmap);
         mBitmapHolderCache.put(request.getKey(), holder);
         mBitmapHolderCacheAllUnfresh = false;
-        mBitmapCache.put(request.getKey(), bitmap);
+        mBitmapCache.put(getBitmapCacheKey(request.getKey(), sampleSize), bitmap);
+    }
+
+    /**
+     * Creates the holder of a compressed photo, copying it off-heap unless it is large or the
+     * off-heap store is full.
+     */
+    private BitmapHolder createHolder(byte[] bytes, int originalSmallerExtent) {
+        if (bytes != null && bytes.length > 0 && bytes.length <= MAX_OFF_HEAP_PHOTO_SIZE) {
+            final CompressedPhotoStore.Allocation allocation =
+                    mCompressedPhotoStore.allocate(bytes);
+            if (allocation != null) {
+                return new BitmapHolder(allocation, originalSmallerExtent);
+            }
+        }
+        return new BitmapHolder(bytes, originalSmallerExtent);
     }
 
     /**
      * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
      * already loaded
      */
-    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
-            Set<String> photoIdsAsStrings, Set<Request> uris) {
+    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds, Set<Request> uris) {
         photoIds.clear();
-        photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
          * Since the call is made from the loader thread, the map could be
          * changing during the iteration. That's not really a problem:
@@ -1305,39 +2532,45 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * exceptions. Since we may miss some requests in the situation of
          * concurrent change, we will need to check the map again once loading
          * is complete.
+         *
+         * While paused, the views of pending requests are flying past; only the rows ahead
+         * are loaded.
          */
-        Iterator<Request> iterator = mPendingRequests.values().iterator();
-        while (iterator.hasNext()) {
-            Request request = iterator.next();
+        final List<Request> requests = mPaused ? new ArrayList<Request>()
+                : new ArrayList<Request>(mPendingRequests.values());
+        requests.addAll(mPrefetchRequests.values());
+        // Load in priority order: the sets passed in preserve insertion order.
+        Collections.sort(requests, REQUEST_PRIORITY_ORDER);
+        for (Request request : requests) {
             final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
             if (holder == BITMAP_UNAVAILABLE) {
                 continue;
             }
-            if (holder != null && holder.bytes != null && holder.fresh &&
-                    (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+            if (holder != null && holder.hasBytes() && holder.fresh &&
+                    holder.getBitmapForExtent(request.getRequestedExtent()) == null) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                scheduleDecode(request.getKey(), holder, request.getRequestedExtent());
             } else {
                 if (holder == null || !holder.fresh) {
+                    if (!mFetchFlights.begin(request.getKey())) {
+                        // Already being fetched, possibly for another view. All views waiting
+                        // for this photo are notified once the fetch completes.
+                        continue;
+                    }
                     if (request.isUriRequest()) {
                         uris.add(request);
                     } else {
                         photoIds.add(request.getId());
-                        photoIdsAsStrings.add(String.valueOf(request.mId));
                     }
                 }
             }
         }
-
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
 
@@ -1358,14 +2591,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private static final int MAX_PHOTOS_TO_PRELOAD = 100;
 
         private final ContentResolver mResolver;
-        private final StringBuilder mStringBuilder = new StringBuilder();
-        private final Set<Long> mPhotoIds = Sets.newHashSet();
-        private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
-        private final Set<Request> mPhotoUris = Sets.newHashSet();
+        private final Set<Long> mPhotoIds = Sets.newLinkedHashSet();
+        /** Versions of the stale photos in {@link #mPhotoIds} that were restored from disk. */
+        private final Map<Long, Long> mStaleVersions = new HashMap<Long, Long>();
+        private final Set<Request> mPhotoUris = Sets.newLinkedHashSet();
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
 
         private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
@@ -1413,7 +2645,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         public void requestLoading() {
             ensureHandler();
             mLoaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
-            mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
+            if (!mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                mLoaderThreadHandler.obtainMessage(MESSAGE_LOAD_PHOTOS, mIoStats.onEnqueued())
+                        .sendToTarget();
+            }
         }
 
         /**
@@ -1426,9 +2661,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_PRELOAD_PHOTOS:
                     preloadPhotosInBackground();
                     break;
-                case MESSAGE_LOAD_PHOTOS:
+                case MESSAGE_LOAD_PHOTOS: {
+                    final long startedAt = mIoStats.onStarted((Long) msg.obj);
                     loadPhotosInBackground();
+                    mIoStats.onFinished(startedAt);
                     break;
+                }
             }
             return true;
         }
@@ -1461,7 +2699,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             mPhotoIds.clear();
-            mPhotoIdsAsStrings.clear();
 
             int count = 0;
             int preloadSize = mPreloadPhotoIds.size();
@@ -1470,7 +2707,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 count++;
                 Long photoId = mPreloadPhotoIds.get(preloadSize);
                 mPhotoIds.add(photoId);
-                mPhotoIdsAsStrings.add(photoId.toString());
                 mPreloadPhotoIds.remove(preloadSize);
             }
 
@@ -1518,14 +2754,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     android.Manifest.permission.READ_CONTACTS)) {
                 return;
             }
-            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
+            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoUris);
             loadThumbnails(false);
             loadUriBasedPhotos();
             requestPreloading();
         }
 
         /** Loads thumbnail photos with ids */
-        private void loadThumbnails(boolean preloading) {
+        private void loadThumbnails(final boolean preloading) {
             if (mPhotoIds.isEmpty()) {
                 return;
             }
@@ -1541,66 +2777,234 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
+            // If a query fails, the fetches begun for these photos still have to end, so that
+            // the photos are loaded again on the next request.
+            final List<Long> ids = new ArrayList<Long>(mPhotoIds);
+            boolean completed = false;
+            try {
+                loadThumbnailsFromSources(preloading);
+                completed = true;
+            } finally {
+                if (!completed && !preloading) {
+                    for (Long id : ids) {
+                        mFetchFlights.end(id);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Loads the photos in {@link #mPhotoIds} from the disk cache and the provider.
+         */
+        private void loadThumbnailsFromSources(final boolean preloading) {
+            loadThumbnailsFromDisk(preloading);
+            revalidateThumbnails(preloading);
+            if (mPhotoIds.isEmpty()) {
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                return;
+            }
+
+            // Query the photos in batches that stay under the limit on host parameters. The first
+            // batch is queried on this thread, the others in parallel on the query threads.
+            final List<List<Long>> batches =
+                    Lists.partition(new ArrayList<Long>(mPhotoIds), MAX_IDS_PER_QUERY);
+            final List<Future<Set<Long>>> futures = Lists.newArrayList();
+            for (int i = 1; i < batches.size(); i++) {
+                final List<Long> batch = batches.get(i);
+                final long enqueuedAt = mQueryStats.onEnqueued();
+                futures.add(mQueryExecutor.submit(new Callable<Set<Long>>() {
+                    @Override
+                    public Set<Long> call() {
+                        return queryThumbnails(Data.CONTENT_URI, batch, preloading, enqueuedAt);
+                    }
+                }));
+            }
+            mPhotoIds.removeAll(queryThumbnails(Data.CONTENT_URI, batches.get(0), preloading,
+                    mQueryStats.onEnqueued()));
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    mPhotoIds.removeAll(futures.get(i).get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.w(TAG, "Cannot load photos", e);
+                    // Do not mark the photos of the failed batch as missing: they are loaded
+                    // again the next time they are requested.
+                    for (Long id : batches.get(i + 1)) {
+                        mPhotoIds.remove(id);
+                        mFetchFlights.end(id);
+                    }
+                }
+            }
+
+            // Remaining photos were not found in the contacts database (but might be in profile).
+            final List<Long> profileIds = Lists.newArrayList();
+            for (Long id : mPhotoIds) {
+                if (ContactsContract.isProfileId(id)) {
+                    profileIds.add(id);
                 }
-                mStringBuilder.append('?');
             }
-            mStringBuilder.append(')');
+            for (List<Long> batch : Lists.partition(profileIds, MAX_IDS_PER_QUERY)) {
+                mPhotoIds.removeAll(queryThumbnails(PROFILE_DATA_URI, batch, preloading,
+                        mQueryStats.onEnqueued()));
+            }
+
+            // Couldn't load the rest either - mark the cache accordingly
+            for (Long id : mPhotoIds) {
+                cacheBitmap(id, null, preloading, -1);
+                mDiskCache.remove(id);
+                mProviderNotFound.incrementAndGet();
+            }
 
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+
+        /**
+         * Queries one batch of photo ids and caches the photos that are found. Called on the
+         * loader thread and on the query threads.
+         *
+         * @param uri the data URI of the contacts or of the profile.
+         * @param enqueuedAt the time stamp returned by {@link ContactPhotoStageStats#onEnqueued}
+         *     for the batch.
+         * @return the ids of the photos that were found.
+         */
+        private Set<Long> queryThumbnails(Uri uri, List<Long> ids, boolean preloading,
+                long enqueuedAt) {
+            final long startedAt = mQueryStats.onStarted(enqueuedAt);
+            final Set<Long> found = Sets.newHashSet();
             Cursor cursor = null;
             try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
+                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", ids));
+                cursor = mResolver.query(uri, COLUMNS, getIdSelection(ids.size()),
+                        getIdSelectionArgs(ids), null);
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
                         Long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
                         cacheBitmap(id, bytes, preloading, -1);
-                        mPhotoIds.remove(id);
+                        mDiskCache.put(id, bytes, cursor.getLong(2));
+                        found.add(id);
+                        mProviderFound.incrementAndGet();
                     }
                 }
             } finally {
                 if (cursor != null) {
                     cursor.close();
                 }
+                mQueryStats.onFinished(startedAt);
             }
+            return found;
+        }
 
-            // Remaining photos were not found in the contacts database (but might be in profile).
-            for (Long id : mPhotoIds) {
-                if (ContactsContract.isProfileId(id)) {
-                    Cursor profileCursor = null;
-                    try {
-                        profileCursor = mResolver.query(
-                                ContentUris.withAppendedId(Data.CONTENT_URI, id),
-                                COLUMNS, null, null, null);
-                        if (profileCursor != null && profileCursor.moveToFirst()) {
-                            cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1),
-                                    preloading, -1);
-                        } else {
-                            // Couldn't load a photo this way either.
-                            cacheBitmap(id, null, preloading, -1);
-                        }
-                    } finally {
-                        if (profileCursor != null) {
-                            profileCursor.close();
-                        }
-                    }
+        /**
+         * Returns the selection of the photos with the given number of ids.
+         */
+        private String getIdSelection(int count) {
+            final StringBuilder selection = new StringBuilder(Photo._ID + " IN(");
+            for (int i = 0; i < count; i++) {
+                if (i != 0) {
+                    selection.append(',');
+                }
+                selection.append('?');
+            }
+            return selection.append(')').toString();
+        }
+
+        private String[] getIdSelectionArgs(List<Long> ids) {
+            final String[] selectionArgs = new String[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                selectionArgs[i] = String.valueOf(ids.get(i));
+            }
+            return selectionArgs;
+        }
+
+        /**
+         * Restores the photos in {@link #mPhotoIds} that are available in {@link #mDiskCache}.
+         * Fresh entries are removed from the set of ids to query; stale entries are displayed
+         * right away but remain in the set, and their versions are kept in
+         * {@link #mStaleVersions}, so that they are revalidated by the provider.
+         */
+        private void loadThumbnailsFromDisk(boolean preloading) {
+            mStaleVersions.clear();
+            boolean restored = false;
+            final Iterator<Long> iterator = mPhotoIds.iterator();
+            while (iterator.hasNext()) {
+                final Long id = iterator.next();
+                final ContactPhotoDiskCache.Result result = mDiskCache.get(id);
+                if (result == null) {
+                    continue;
+                }
+                cacheBitmap(id, result.bytes, preloading, -1, result.fresh);
+                restored = true;
+                if (result.fresh) {
+                    iterator.remove();
                 } else {
-                    // Not a profile photo and not found - mark the cache accordingly
-                    cacheBitmap(id, null, preloading, -1);
+                    mStaleVersions.put(id, result.version);
+                }
+            }
+            if (restored && !mPhotoIds.isEmpty()) {
+                // Show what we have while the provider is being queried for the rest.
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
+
+        /**
+         * Asks the provider for the versions of the stale photos restored by
+         * {@link #loadThumbnailsFromDisk}, which is much cheaper than reading the photos. Photos
+         * whose version did not change are marked fresh, in memory and on disk, and removed
+         * from {@link #mPhotoIds}; only the others are read again.
+         */
+        private void revalidateThumbnails(boolean preloading) {
+            if (mStaleVersions.isEmpty()) {
+                return;
+            }
+            final List<Long> ids = new ArrayList<Long>(mStaleVersions.keySet());
+            for (List<Long> batch : Lists.partition(ids, MAX_IDS_PER_QUERY)) {
+                revalidateThumbnails(Data.CONTENT_URI, batch, preloading);
+            }
+            final List<Long> profileIds = Lists.newArrayList();
+            for (Long id : mStaleVersions.keySet()) {
+                if (ContactsContract.isProfileId(id)) {
+                    profileIds.add(id);
                 }
             }
+            for (List<Long> batch : Lists.partition(profileIds, MAX_IDS_PER_QUERY)) {
+                revalidateThumbnails(PROFILE_DATA_URI, batch, preloading);
+            }
+            mStaleVersions.clear();
+        }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        private void revalidateThumbnails(Uri uri, List<Long> ids, boolean preloading) {
+            final long startedAt = mQueryStats.onStarted(mQueryStats.onEnqueued());
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(uri, VERSION_COLUMNS, getIdSelection(ids.size()),
+                        getIdSelectionArgs(ids), null);
+                if (cursor == null) {
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final Long id = cursor.getLong(0);
+                    final Long version = mStaleVersions.remove(id);
+                    if (version == null || version != cursor.getLong(1)) {
+                        continue;
+                    }
+                    mDiskCache.markFresh(id);
+                    final BitmapHolder holder = mBitmapHolderCache.get(id);
+                    if (holder != null && holder.hasBytes()) {
+                        holder.fresh = true;
+                    }
+                    mPhotoIds.remove(id);
+                    if (!preloading) {
+                        mFetchFlights.end(id);
+                    }
+                    mProviderRevalidated.incrementAndGet();
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                mQueryStats.onFinished(startedAt);
+            }
         }
 
         /**
@@ -1608,63 +3012,127 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * (from directory searches), display photos etc
          */
         private void loadUriBasedPhotos() {
-            for (Request uriRequest : mPhotoUris) {
+            for (final Request uriRequest : mPhotoUris) {
                 // Keep the original URI and use this to key into the cache.  Failure to do so will
                 // result in an image being continually reloaded into cache if the original URI
                 // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
+                final Uri originalUri = uriRequest.getUri();
 
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+                if (findPendingRequest(originalUri) == null) {
+                    // The view was recycled or scrolled out of sight since the request was made.
+                    mIoStats.onDropped();
+                    mFetchFlights.end(originalUri);
+                    continue;
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-                        final HttpURLConnection connection =
-                                (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-                        // Include the user agent if it is specified.
-                        if (!TextUtils.isEmpty(mUserAgent)) {
-                            connection.setRequestProperty("User-Agent", mUserAgent);
-                        }
-                        try {
-                            is = connection.getInputStream();
-                        } catch (IOException e) {
-                            connection.disconnect();
-                            is = null;
-                        }
-                        TrafficStats.clearThreadStatsTag();
-                    } else {
-                        is = mResolver.openInputStream(uri);
+
+                final ContactPhotoDiskCache.Result cached = mDiskCache.get(originalUri);
+                BitmapHolder cachedHolder = null;
+                if (cached != null) {
+                    cacheBitmap(originalUri, cached.bytes, false,
+                            uriRequest.getRequestedExtent(), cached.fresh);
+                    cachedHolder = mBitmapHolderCache.get(originalUri);
+                    mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                    if (cached.fresh) {
+                        continue;
                     }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
+                }
+
+                if (isNetworkUri(originalUri)) {
+                    // Downloads go through their own lane, so that they do not hold up photos
+                    // that are available locally. A stale copy from disk lets the download be
+                    // revalidated instead of repeated.
+                    final byte[] cachedBytes = cached != null ? cached.bytes : null;
+                    final BitmapHolder staleHolder = cachedHolder;
+                    mNetworkExecutor.execute(mNetworkStats.wrap(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (findPendingRequest(originalUri) == null) {
+                                    mNetworkStats.onDropped();
+                                    return;
+                                }
+                                loadNetworkPhoto(uriRequest, cachedBytes, staleHolder);
+                            } finally {
+                                mFetchFlights.end(originalUri);
                             }
-                        } finally {
-                            is.close();
                         }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                    }));
+                } else {
+                    loadUriBasedPhoto(uriRequest);
+                }
+            }
+        }
+
+        private boolean isNetworkUri(Uri uri) {
+            final String scheme = uri.getScheme();
+            return "http".equals(scheme) || "https".equals(scheme);
+        }
+
+        /**
+         * Downloads a single photo on the network lane. If {@code cachedBytes} is not null, it
+         * holds a stale copy of the photo that is already displayed by {@code cachedHolder}, and
+         * the download is only repeated if the server reports that the photo changed.
+         * If the download fails, the stale copy is kept.
+         */
+        private void loadNetworkPhoto(Request uriRequest, byte[] cachedBytes,
+                BitmapHolder cachedHolder) {
+            final Uri originalUri = uriRequest.getUri();
+            final Uri uri = ContactPhotoManager.removeContactType(originalUri);
+            try {
+                if (DEBUG) Log.d(TAG, "Downloading " + uri);
+                final ContactPhotoHttpFetcher.Result result =
+                        mHttpFetcher.fetch(uri.toString(), cachedBytes != null);
+                if (result.isNotModified()) {
+                    mDiskCache.markFresh(originalUri);
+                    final BitmapHolder holder = mBitmapHolderCache.get(originalUri);
+                    if (holder != null && holder == cachedHolder) {
+                        holder.fresh = true;
+                        mFetchFlights.end(originalUri);
                     } else {
-                        Log.v(TAG, "Cannot load photo " + uri);
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                        cacheBitmap(originalUri, cachedBytes, false,
+                                uriRequest.getRequestedExtent());
                     }
-                } catch (final Exception | OutOfMemoryError ex) {
-                    Log.v(TAG, "Cannot load photo " + uri, ex);
+                } else {
+                    cacheBitmap(originalUri, result.bytes, false, uriRequest.getRequestedExtent());
+                    mDiskCache.put(originalUri, result.bytes);
+                }
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            } catch (final Exception | OutOfMemoryError ex) {
+                Log.v(TAG, "Cannot load photo " + uri, ex);
+                if (cachedBytes != null) {
+                    // Keep showing the stale copy, for example while offline. It stays stale,
+                    // so that it is revalidated again on the next request.
+                    mFetchFlights.end(originalUri);
+                } else {
+                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                }
+            }
+        }
+
+        /**
+         * Loads a single photo referenced with a local Uri. Files that declare their length,
+         * such as display photos, are read straight into an array of the right size.
+         */
+        private void loadUriBasedPhoto(Request uriRequest) {
+            final Uri originalUri = uriRequest.getUri();
+
+            // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+            // a business photo.
+            final Uri uri = ContactPhotoManager.removeContactType(originalUri);
+            try {
+                if (DEBUG) Log.d(TAG, "Loading " + uri);
+                final byte[] bytes = ByteStreamUtil.read(mResolver, uri, mReadBufferPool);
+                if (bytes != null) {
+                    cacheBitmap(originalUri, bytes, false, uriRequest.getRequestedExtent());
+                    mDiskCache.put(originalUri, bytes);
+                    mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                } else {
+                    Log.v(TAG, "Cannot load photo " + uri);
                     cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
                 }
+            } catch (final Exception | OutOfMemoryError ex) {
+                Log.v(TAG, "Cannot load photo " + uri, ex);
+                cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
             }
         }
     }
@@ -1674,6 +3142,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * light theme
      */
     private static final class Request {
+        private static final AtomicLong sNextGeneration = new AtomicLong();
+
         private final long mId;
         private final Uri mUri;
         private final boolean mDarkTheme;
@@ -1684,10 +3154,40 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          */
         private final boolean mIsCircular;
 
-        private Request(long id, Uri uri, int requestedExtent, boolean darkTheme,
-                boolean isCircular, DefaultImageProvider defaultProvider) {
+        /**
+         * Sequence number of this request. Among requests of the same priority, newer requests
+         * are served first.
+         */
+        private final long mGeneration;
+
+        /**
+         * Position of the view among the visible rows of its list, or 0 if the view is not in a
+         * list. Lower values are served first. Updated on the UI thread.
+         */
+        private volatile int mPriority;
+
+        /**
+         * Whether the view was seen in a list. Only accessed on the UI thread.
+         */
+        private boolean mInList;
+
+        /**
+         * Photo id of the thumbnail shown while a display photo loads progressively, or 0.
+         */
+        private final long mThumbnailId;
+
+        /**
+         * Whether the view currently shows the thumbnail {@link #mThumbnailId}. Only accessed on
+         * the UI thread.
+         */
+        private boolean mShowingThumbnail;
+
+        private Request(long id, Uri uri, long thumbnailId, int requestedExtent,
+                boolean darkTheme, boolean isCircular, DefaultImageProvider defaultProvider) {
+            mGeneration = sNextGeneration.getAndIncrement();
             mId = id;
             mUri = uri;
+            mThumbnailId = thumbnailId;
             mDarkTheme = darkTheme;
             mIsCircular = isCircular;
             mRequestedExtent = requestedExtent;
@@ -1696,13 +3196,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         public static Request createFromThumbnailId(long id, boolean darkTheme, boolean isCircular,
                 DefaultImageProvider defaultProvider) {
-            return new Request(id, null /* no URI */, -1, darkTheme, isCircular, defaultProvider);
+            return new Request(id, null /* no URI */, 0 /* no thumbnail */, -1, darkTheme,
+                    isCircular, defaultProvider);
         }
 
         public static Request createFromUri(Uri uri, int requestedExtent, boolean darkTheme,
                 boolean isCircular, DefaultImageProvider defaultProvider) {
-            return new Request(0 /* no ID */, uri, requestedExtent, darkTheme, isCircular,
-                    defaultProvider);
+            return new Request(0 /* no ID */, uri, 0 /* no thumbnail */, requestedExtent,
+                    darkTheme, isCircular, defaultProvider);
+        }
+
+        /**
+         * Creates a request for a display photo that shows the thumbnail with the given photo
+         * id, if cached, until the display photo is available.
+         */
+        public static Request createProgressive(Uri uri, long thumbnailId, int requestedExtent,
+                boolean darkTheme, boolean isCircular, DefaultImageProvider defaultProvider) {
+            return new Request(0 /* no ID */, uri, thumbnailId, requestedExtent, darkTheme,
+                    isCircular, defaultProvider);
         }
 
         public boolean isUriRequest() {
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import com.android.contacts.common.util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the cache and loader metrics of a {@link ContactPhotoManager}, as
+ * returned by {@link ContactPhotoManager#getMetrics()}.
+ * <p>
+ * Cache tiers are consulted in order: a request is served from the {@link #TIER_BITMAP bitmap}
+ * tier if a decoded bitmap is in memory, otherwise from the {@link #TIER_HOLDER holder} tier if
+ * the compressed photo is in memory, otherwise from the {@link #TIER_DISK disk} tier, and only
+ * then from the contacts provider or the network. Each tier counts a miss for every request
+ * that it could not serve and that was passed on to the next tier.
+ */
+public final class ContactPhotoMetrics {
+    /** Decoded bitmaps in memory. */
+    public static final String TIER_BITMAP = "bitmap";
+    /** Compressed photos in memory. */
+    public static final String TIER_HOLDER = "holder";
+    /** Compressed photos on disk. */
+    public static final String TIER_DISK = "disk";
+    /** Recycled bitmaps; a hit is a decode that reused a pooled bitmap. */
+    public static final String TIER_POOL = "pool";
+    /**
+     * Photos already masked to a shape, such as a circle; a miss is a bind that had to mask the
+     * photo.
+     */
+    public static final String TIER_SHAPED = "shaped";
+    /**
+     * Off-heap storage of the holder tier; a hit is a photo copied out to be decoded, a miss is a
+     * photo that did not fit and was kept on the heap, and an eviction is a slab that was freed.
+     */
+    public static final String TIER_OFF_HEAP = "offheap";
+
+    /** Queries of the contacts provider and reads of local photo URIs. */
+    public static final String STAGE_IO = "io";
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_NETWORK = "network";
+    /** Single batched queries of photo ids, several of which make up an {@link #STAGE_IO} task. */
+    public static final String STAGE_QUERY = "query";
+
+    public static final String COUNTER_PROVIDER_FOUND = "provider.found";
+    public static final String COUNTER_PROVIDER_NOT_FOUND = "provider.notFound";
+    /** Stale photos restored from disk that the provider confirmed by their version. */
+    public static final String COUNTER_PROVIDER_REVALIDATED = "provider.revalidated";
+    public static final String COUNTER_FETCH_COALESCED = "fetch.coalesced";
+    public static final String COUNTER_DECODE_COALESCED = "decode.coalesced";
+    public static final String COUNTER_HTTP_FETCHES = "http.fetches";
+    public static final String COUNTER_HTTP_NOT_MODIFIED = "http.notModified";
+    public static final String COUNTER_HTTP_FAILURES = "http.failures";
+    public static final String COUNTER_HTTP_BYTES = "http.bytes";
+    public static final String COUNTER_PREFETCH_REQUESTED = "prefetch.requested";
+    public static final String COUNTER_PREFETCH_COMPLETED = "prefetch.completed";
+    public static final String COUNTER_PREFETCH_BACKOFFS = "prefetch.backoffs";
+    public static final String COUNTER_OVERWRITE_FRESH = "overwrite.fresh";
+    public static final String COUNTER_OVERWRITE_STALE = "overwrite.stale";
+
+    /** Counters of one cache tier. */
+    public static final class Tier {
+        public final String name;
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount;
+        public final long sizeBytes;
+        public final long maxSizeBytes;
+        public final int entryCount;
+
+        Tier(String name, long hitCount, long missCount, long evictionCount, long sizeBytes,
+                long maxSizeBytes, int entryCount) {
+            this.name = name;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.sizeBytes = sizeBytes;
+            this.maxSizeBytes = maxSizeBytes;
+            this.entryCount = entryCount;
+        }
+
+        /**
+         * Returns the share of lookups that this tier served, between 0 and 1.
+         */
+        public float getHitRate() {
+            final long lookups = hitCount + missCount;
+            return lookups == 0 ? 0f : (float) hitCount / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": hits=" + hitCount + " misses=" + missCount
+                    + String.format(" (%.1f%%)", getHitRate() * 100)
+                    + " evictions=" + evictionCount
+                    + " size=" + sizeBytes + "/" + maxSizeBytes
+                    + " entries=" + entryCount;
+        }
+    }
+
+    /** Queue and latency counters of one stage of the loading pipeline. */
+    public static final class Stage {
+        public final String name;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long completedCount;
+        public final long droppedCount;
+        /** Time tasks spent queued before they started running. */
+        public final LatencyHistogram.Snapshot waitTime;
+        /** Time tasks took to run. */
+        public final LatencyHistogram.Snapshot runTime;
+
+        Stage(String name, int queueDepth, int maxQueueDepth, long completedCount,
+                long droppedCount, LatencyHistogram.Snapshot waitTime,
+                LatencyHistogram.Snapshot runTime) {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.completedCount = completedCount;
+            this.droppedCount = droppedCount;
+            this.waitTime = waitTime;
+            this.runTime = runTime;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": depth=" + queueDepth + " (max " + maxQueueDepth + ")"
+                    + " completed=" + completedCount + " dropped=" + droppedCount
+                    + " wait=[" + waitTime + "] run=[" + runTime + "]";
+        }
+    }
+
+    /**
+     * One resize of the in-memory caches, either shrinking them on a trim-memory callback or
+     * growing them back afterwards. Resident and maximum bytes cover the bitmap and holder
+     * tiers and the bitmap pool.
+     */
+    public static final class TrimEvent {
+        /** The trim-memory level, or 0 if the caches were grown back. */
+        public final int level;
+        /** Time of the event in {@link android.os.SystemClock#elapsedRealtime()} millis. */
+        public final long timeMillis;
+        /** Fraction of the nominal cache sizes after the event. */
+        public final float scale;
+        public final long residentBytesBefore;
+        public final long residentBytesAfter;
+        public final long maxBytesBefore;
+        public final long maxBytesAfter;
+
+        TrimEvent(int level, long timeMillis, float scale, long residentBytesBefore,
+                long residentBytesAfter, long maxBytesBefore, long maxBytesAfter) {
+            this.level = level;
+            this.timeMillis = timeMillis;
+            this.scale = scale;
+            this.residentBytesBefore = residentBytesBefore;
+            this.residentBytesAfter = residentBytesAfter;
+            this.maxBytesBefore = maxBytesBefore;
+            this.maxBytesAfter = maxBytesAfter;
+        }
+
+        public boolean isRegrow() {
+            return level == 0;
+        }
+
+        @Override
+        public String toString() {
+            return (isRegrow() ? "regrow" : "trim level=" + level)
+                    + " at=" + timeMillis
+                    + String.format(" scale=%.2f", scale)
+                    + " resident=" + residentBytesBefore + "/" + maxBytesBefore
+                    + " -> " + residentBytesAfter + "/" + maxBytesAfter;
+        }
+    }
+
+    private final List<Tier> mTiers;
+    private final List<Stage> mStages;
+    private final Map<String, Long> mCounters;
+    private final List<TrimEvent> mTrimEvents;
+
+    ContactPhotoMetrics(List<Tier> tiers, List<Stage> stages, Map<String, Long> counters,
+            List<TrimEvent> trimEvents) {
+        mTiers = Collections.unmodifiableList(tiers);
+        mStages = Collections.unmodifiableList(stages);
+        mCounters = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(counters));
+        mTrimEvents = Collections.unmodifiableList(trimEvents);
+    }
+
+    public List<Tier> getTiers() {
+        return mTiers;
+    }
+
+    /**
+     * Returns the tier with the given name, or null if there is none.
+     */
+    public Tier getTier(String name) {
+        for (Tier tier : mTiers) {
+            if (tier.name.equals(name)) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    public List<Stage> getStages() {
+        return mStages;
+    }
+
+    /**
+     * Returns the stage with the given name, or null if there is none.
+     */
+    public Stage getStage(String name) {
+        for (Stage stage : mStages) {
+            if (stage.name.equals(name)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    /**
+     * Returns the value of the counter with the given name, or 0 if there is none.
+     */
+    public long getCounter(String name) {
+        final Long value = mCounters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Returns the most recent resizes of the in-memory caches, oldest first.
+     */
+    public List<TrimEvent> getTrimEvents() {
+        return mTrimEvents;
+    }
+
+    /**
+     * Prints the metrics in the style of dumpsys.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Cache tiers:");
+        for (Tier tier : mTiers) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(tier);
+        }
+        writer.print(prefix);
+        writer.println("Stages:");
+        for (Stage stage : mStages) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(stage);
+        }
+        writer.print(prefix);
+        writer.println("Counters:");
+        for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(counter.getKey());
+            writer.print('=');
+            writer.println(counter.getValue());
+        }
+        writer.print(prefix);
+        writer.println("Trim events:");
+        for (TrimEvent event : mTrimEvents) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ContactPhotoMetrics[tiers=" + mTiers + ", stages=" + mStages
+                + ", counters=" + mCounters + ", trimEvents=" + mTrimEvents + "]";
+    }
+}
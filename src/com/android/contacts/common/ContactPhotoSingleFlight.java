@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table of the photo keys (ids or URIs) for which work is currently in flight in
+ * {@link ContactPhotoManager}. Concurrent requests for the same key share the work started by
+ * the first one: they are all served from the cache once it completes. All methods are
+ * thread-safe.
+ */
+class ContactPhotoSingleFlight {
+    private final String mName;
+    private final Set<Object> mInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    ContactPhotoSingleFlight(String name) {
+        mName = name;
+    }
+
+    /**
+     * Registers interest in the given key.
+     *
+     * @return true if the caller should do the work and call {@link #end} afterwards, false if
+     * the work is already in flight and the request was coalesced into it.
+     */
+    public boolean begin(Object key) {
+        mRequestCount.incrementAndGet();
+        if (mInFlight.add(key)) {
+            return true;
+        }
+        mCoalescedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Marks the work for the given key as completed. Does nothing if the key is not in flight.
+     */
+    public void end(Object key) {
+        mInFlight.remove(key);
+    }
+
+    public boolean isInFlight(Object key) {
+        return mInFlight.contains(key);
+    }
+
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Returns the share of requests that were served by work already in flight.
+     */
+    public float getCoalescingRatio() {
+        final long requests = mRequestCount.get();
+        return requests == 0 ? 0f : (float) mCoalescedCount.get() / requests;
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": inFlight=" + getInFlightCount() + ", requests=" + getRequestCount()
+                + ", coalesced=" + getCoalescedCount()
+                + String.format(" (%.1f%%)", getCoalescingRatio() * 100);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.os.SystemClock;
+
+import com.android.contacts.common.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue-depth and latency counters for one stage of the photo loading pipeline in
+ * {@link ContactPhotoManager}. All methods are thread-safe.
+ */
+class ContactPhotoStageStats {
+    private final String mName;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final LatencyHistogram mWaitHistogram = new LatencyHistogram();
+    private final LatencyHistogram mRunHistogram = new LatencyHistogram();
+
+    ContactPhotoStageStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records that a task was queued for this stage.
+     *
+     * @return the time stamp to pass to {@link #onStarted(long)}.
+     */
+    public long onEnqueued() {
+        final int depth = mQueueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records that a task left the queue and started running.
+     *
+     * @return the time stamp to pass to {@link #onFinished(long)}.
+     */
+    public long onStarted(long enqueuedAt) {
+        mQueueDepth.decrementAndGet();
+        final long now = SystemClock.elapsedRealtime();
+        mWaitHistogram.record(now - enqueuedAt);
+        return now;
+    }
+
+    /**
+     * Records that a task finished running.
+     */
+    public void onFinished(long startedAt) {
+        mCompleted.incrementAndGet();
+        mRunHistogram.record(SystemClock.elapsedRealtime() - startedAt);
+    }
+
+    /**
+     * Records that a task was dropped because its result was no longer needed.
+     */
+    public void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Wraps the given task so that its queue wait and run time are recorded by this stage.
+     */
+    public Runnable wrap(final Runnable task) {
+        final long enqueuedAt = onEnqueued();
+        return new Runnable() {
+            @Override
+            public void run() {
+                final long startedAt = onStarted(enqueuedAt);
+                try {
+                    task.run();
+                } finally {
+                    onFinished(startedAt);
+                }
+            }
+        };
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /** Distribution of the time tasks spent queued before they started running. */
+    public LatencyHistogram.Snapshot getWaitHistogram() {
+        return mWaitHistogram.snapshot();
+    }
+
+    /** Distribution of the time tasks took to run. */
+    public LatencyHistogram.Snapshot getRunHistogram() {
+        return mRunHistogram.snapshot();
+    }
+
+    /**
+     * Returns a copy of the current counters for {@link ContactPhotoMetrics}.
+     */
+    public ContactPhotoMetrics.Stage snapshot() {
+        return new ContactPhotoMetrics.Stage(mName, getQueueDepth(), getMaxQueueDepth(),
+                getCompletedCount(), getDroppedCount(), getWaitHistogram(), getRunHistogram());
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": depth=" + getQueueDepth() + " (max " + getMaxQueueDepth() + ")"
+                + ", completed=" + getCompletedCount()
+                + ", dropped=" + getDroppedCount()
+                + ", wait=[" + getWaitHistogram() + "]"
+                + ", run=[" + getRunHistogram() + "]";
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small on-disk store of the HTTP cache validators (ETag and Last-Modified) of downloaded
+ * contact photos, keyed by URL, so that {@link ContactPhotoHttpFetcher} can revalidate photos
+ * across process restarts instead of downloading them again. The least recently used entries
+ * are dropped once the store holds more than its maximum number of entries.
+ * <p>
+ * The store is a single text file with one tab separated entry per line. It is loaded lazily.
+ * Changes are batched: the file is rewritten on a background thread a few seconds after the
+ * first unsaved change, or right away when {@link #saveSoon()} or {@link #save()} is called.
+ * Changes that are not saved yet are lost if the process dies, which only costs a full download
+ * later. All methods are thread-safe, and only {@link #save()} waits for the file to be written.
+ */
+class ContactPhotoValidatorStore {
+    private static final String TAG = "ContactPhotoValidators";
+
+    private static final char SEPARATOR = '\t';
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** How long changes are collected before the file is rewritten. */
+    private static final long SAVE_DELAY_MS = 5000;
+
+    /** Writes the files of all stores. Its thread stops when there is nothing to write. */
+    private static final ScheduledThreadPoolExecutor sSaveExecutor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ContactPhotoValidatorSaver");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    static {
+        sSaveExecutor.setKeepAliveTime(SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        sSaveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** The validators of one URL. Either field may be null, but not both. */
+    static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File mFile;
+    private final int mMaxEntries;
+
+    /** Guarded by this. */
+    private final LinkedHashMap<String, Validators> mEntries;
+    private boolean mLoaded;
+    /** Whether {@link #mEntries} has changes that are not in the file. Guarded by this. */
+    private boolean mDirty;
+    /** Whether a save is scheduled on {@link #sSaveExecutor}. Guarded by this. */
+    private boolean mSaveScheduled;
+
+    /** Held while the file is written, so that an older snapshot never overwrites a newer one. */
+    private final Object mSaveLock = new Object();
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ContactPhotoValidatorStore.this) {
+                mSaveScheduled = false;
+            }
+            save();
+        }
+    };
+
+    ContactPhotoValidatorStore(File file, final int maxEntries) {
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Validators>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the validators recorded for the given URL, or null if there are none.
+     */
+    public synchronized Validators get(String url) {
+        ensureLoaded();
+        return mEntries.get(url);
+    }
+
+    /**
+     * Records the validators returned by the server for the given URL. If the server returned
+     * neither, any previously recorded validators are removed.
+     */
+    public synchronized void put(String url, String etag, String lastModified) {
+        if (sanitize(url) == null) {
+            return;
+        }
+        ensureLoaded();
+        etag = sanitize(etag);
+        lastModified = sanitize(lastModified);
+        if (etag == null && lastModified == null) {
+            remove(url);
+            return;
+        }
+        final Validators previous = mEntries.get(url);
+        if (previous != null && TextUtils.equals(previous.etag, etag)
+                && TextUtils.equals(previous.lastModified, lastModified)) {
+            return;
+        }
+        mEntries.put(url, new Validators(etag, lastModified));
+        onChanged();
+    }
+
+    public synchronized void remove(String url) {
+        ensureLoaded();
+        if (mEntries.remove(url) != null) {
+            onChanged();
+        }
+    }
+
+    private void onChanged() {
+        mDirty = true;
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            sSaveExecutor.schedule(mSaveTask, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes unsaved changes on the background thread without waiting for the delay, e.g.
+     * because the process is likely to be killed soon.
+     */
+    public void saveSoon() {
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+        }
+        sSaveExecutor.execute(mSaveTask);
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mEntries.size();
+    }
+
+    public int maxSize() {
+        return mMaxEntries;
+    }
+
+    /**
+     * Values containing the separator or line breaks cannot be stored; they are dropped.
+     */
+    private static String sanitize(String value) {
+        if (TextUtils.isEmpty(value) || value.indexOf(SEPARATOR) >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            return null;
+        }
+        return value;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.isFile()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                if (fields.length != 3) {
+                    continue;
+                }
+                final String etag = sanitize(fields[1]);
+                final String lastModified = sanitize(fields[2]);
+                if (etag != null || lastModified != null) {
+                    mEntries.put(fields[0], new Validators(etag, lastModified));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + mFile, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes unsaved changes to the file and waits until they are written. Must not be called
+     * on the main thread.
+     */
+    public void save() {
+        synchronized (mSaveLock) {
+            final String contents;
+            synchronized (this) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                contents = serialize();
+            }
+            write(contents);
+        }
+    }
+
+    private String serialize() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Validators> entry : mEntries.entrySet()) {
+            final Validators validators = entry.getValue();
+            sb.append(entry.getKey());
+            sb.append(SEPARATOR);
+            sb.append(validators.etag != null ? validators.etag : "");
+            sb.append(SEPARATOR);
+            sb.append(validators.lastModified != null ? validators.lastModified : "");
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void write(String contents) {
+        final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), StandardCharsets.UTF_8));
+            writer.write(contents);
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile, e);
+            temp.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.EntityIterator;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract.Groups;
+import android.util.Log;
+
+import com.android.contacts.common.model.account.AccountWithDataSet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Process-wide cache of the groups of each account, so that loading contacts and configuring
+ * the contact list filter do not query the groups table every time.
+ * <p>
+ * A single {@link ContentObserver} on {@link Groups#CONTENT_URI} drops all accounts when groups
+ * change. The provider notifies most of its changes on the authority URI, which reaches that
+ * observer as well, so the cache only saves queries while contacts are not being modified. All
+ * methods are thread-safe.
+ */
+public final class GroupMetaDataCache {
+    private static final String TAG = "GroupMetaDataCache";
+
+    private static GroupMetaDataCache sInstance;
+
+    private static final class Entry {
+        final ImmutableList<ContentValues> groups;
+        final ImmutableList<GroupMetaData> metaData;
+
+        Entry(ImmutableList<ContentValues> groups, ImmutableList<GroupMetaData> metaData) {
+            this.groups = groups;
+            this.metaData = metaData;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    /** Guarded by this. */
+    private final Map<AccountWithDataSet, Entry> mEntries = Maps.newHashMap();
+    /** Incremented whenever the groups are invalidated. Guarded by this. */
+    private long mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Returns the cache shared by all loaders, registering its observer on first use.
+     */
+    public static synchronized GroupMetaDataCache getInstance(Context context) {
+        if (sInstance == null) {
+            final ContentResolver resolver =
+                    context.getApplicationContext().getContentResolver();
+            sInstance = new GroupMetaDataCache(resolver);
+            resolver.registerContentObserver(Groups.CONTENT_URI, true, sInstance.new Observer());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    GroupMetaDataCache(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Returns the metadata of the groups of the account, including deleted groups. Queries the
+     * groups of the account if they are not cached. Must not be called on the main thread.
+     */
+    public ImmutableList<GroupMetaData> getGroupMetaData(AccountWithDataSet account) {
+        return getEntry(account).metaData;
+    }
+
+    /**
+     * Returns the groups of the account, including deleted groups, as read by
+     * {@link Groups#newEntityIterator}. Queries the groups of the account if they are not
+     * cached. The values are shared and must not be modified. Must not be called on the main
+     * thread.
+     */
+    public ImmutableList<ContentValues> getGroups(AccountWithDataSet account) {
+        return getEntry(account).groups;
+    }
+
+    private Entry getEntry(AccountWithDataSet account) {
+        final long generation;
+        synchronized (this) {
+            final Entry entry = mEntries.get(account);
+            if (entry != null) {
+                mHitCount++;
+                return entry;
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+        final Entry entry = loadEntry(account);
+        synchronized (this) {
+            // Groups that changed while they were read are read again next time.
+            if (generation == mGeneration) {
+                mEntries.put(account, entry);
+            }
+        }
+        return entry;
+    }
+
+    private Entry loadEntry(AccountWithDataSet account) {
+        final StringBuilder selection = new StringBuilder(
+                Groups.ACCOUNT_NAME + "=? AND " + Groups.ACCOUNT_TYPE + "=?");
+        final String[] selectionArgs;
+        if (account.dataSet != null) {
+            selection.append(" AND " + Groups.DATA_SET + "=?");
+            selectionArgs = new String[] { account.name, account.type, account.dataSet };
+        } else {
+            selection.append(" AND " + Groups.DATA_SET + " IS NULL");
+            selectionArgs = new String[] { account.name, account.type };
+        }
+
+        final ImmutableList.Builder<ContentValues> groups =
+                new ImmutableList.Builder<ContentValues>();
+        final ImmutableList.Builder<GroupMetaData> metaData =
+                new ImmutableList.Builder<GroupMetaData>();
+        final Cursor cursor = mResolver.query(Groups.CONTENT_URI, null, selection.toString(),
+                selectionArgs, null);
+        if (cursor != null) {
+            final EntityIterator iterator = Groups.newEntityIterator(cursor);
+            try {
+                while (iterator.hasNext()) {
+                    final ContentValues values = iterator.next().getEntityValues();
+                    groups.add(values);
+                    metaData.add(createMetaData(account, values));
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        return new Entry(groups.build(), metaData.build());
+    }
+
+    private static GroupMetaData createMetaData(AccountWithDataSet account,
+            ContentValues values) {
+        final Integer autoAdd = values.getAsInteger(Groups.AUTO_ADD);
+        final Integer favorites = values.getAsInteger(Groups.FAVORITES);
+        return new GroupMetaData(account.name, account.type, account.dataSet,
+                values.getAsLong(Groups._ID), values.getAsString(Groups.TITLE),
+                autoAdd != null && autoAdd != 0, favorites != null && favorites != 0);
+    }
+
+    /**
+     * Drops the groups of all accounts.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    /** Number of lookups that found the groups of the account cached. */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /** Number of lookups that had to query the groups of the account. */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GroupMetaDataCache[accounts=" + mEntries.size() + ", hits=" + mHitCount
+                + ", misses=" + mMissCount + "]";
+    }
+
+    /**
+     * Invalidates the cache on the binder thread that delivers the notification, so that a
+     * loader woken up by the same change cannot pick up outdated groups.
+     */
+    private class Observer extends ContentObserver {
+        Observer() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Groups changed");
+            }
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.BitmapUtil;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * LRU cache of photos that have already been masked to a shape, keyed by photo key, extent and
+ * shape, so that binding a circular photo to a list row does not clip it again.
+ * <p>
+ * Each entry remembers the decoded bitmap it was rendered from. When the decoded bitmap is
+ * replaced, or its pixels are reused for another photo, the entry is rendered again.
+ */
+class ShapedBitmapCache {
+    public static final int SHAPE_CIRCLE = 1;
+
+    private static class Key {
+        final Object photoKey;
+        final int extent;
+        final int shape;
+
+        Key(Object photoKey, int extent, int shape) {
+            this.photoKey = photoKey;
+            this.extent = extent;
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return extent == other.extent && shape == other.shape
+                    && photoKey.equals(other.photoKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (photoKey.hashCode() * 31 + extent) * 31 + shape;
+        }
+    }
+
+    private static class Entry {
+        /** Weak, so that the cache does not keep decoded bitmaps from being collected. */
+        final WeakReference<Bitmap> source;
+        final int sourceGenerationId;
+        final Bitmap bitmap;
+
+        Entry(Bitmap source, Bitmap bitmap) {
+            this.source = new WeakReference<Bitmap>(source);
+            this.sourceGenerationId = source.getGenerationId();
+            this.bitmap = bitmap;
+        }
+
+        boolean isRenderedFrom(Bitmap source) {
+            return this.source.get() == source
+                    && sourceGenerationId == source.getGenerationId();
+        }
+    }
+
+    private final LruCache<Key, Entry> mCache;
+    private long mHitCount;
+    private long mMissCount;
+
+    public ShapedBitmapCache(int maxSizeBytes) {
+        mCache = new LruCache<Key, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Key key, Entry value) {
+                return value.bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the given decoded photo masked to the given shape, rendering and caching it if it
+     * is not cached yet. Photos that would take more than a sixth of the cache are rendered but
+     * not cached.
+     *
+     * @param photoKey the photo id or URI the photo was loaded for.
+     * @param source the decoded photo.
+     */
+    public Bitmap get(Object photoKey, Bitmap source, int shape) {
+        final int extent = Math.min(source.getWidth(), source.getHeight());
+        final Key key = new Key(photoKey, extent, shape);
+        final Entry entry = mCache.get(key);
+        if (entry != null && entry.isRenderedFrom(source)) {
+            synchronized (this) {
+                mHitCount++;
+            }
+            return entry.bitmap;
+        }
+        synchronized (this) {
+            mMissCount++;
+        }
+        final Bitmap bitmap = render(source, extent, shape);
+        if (bitmap.getByteCount() < mCache.maxSize() / 6) {
+            mCache.put(key, new Entry(source, bitmap));
+        } else if (entry != null) {
+            mCache.remove(key);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap render(Bitmap source, int extent, int shape) {
+        switch (shape) {
+            case SHAPE_CIRCLE:
+                return BitmapUtil.getRoundedBitmap(source, extent, extent);
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    public void resize(int maxSizeBytes) {
+        mCache.resize(maxSizeBytes);
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int entryCount() {
+        return mCache.snapshot().size();
+    }
+
+    /** Number of lookups served by an up-to-date entry. */
+    public synchronized long hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Number of lookups that had to render the photo, including those that found an entry
+     * rendered from an outdated bitmap.
+     */
+    public synchronized long missCount() {
+        return mMissCount;
+    }
+
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.contacts.common.lettertiles;
 
 import android.accounts.Account;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
@@ -26,11 +27,13 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.telephony.TelephonyManager;
+import android.util.LruCache;
 
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
@@ -64,6 +67,77 @@ public class LetterTileDrawable extends Drawable {
     private static final Paint sPaint = new Paint();
     private static final Rect sRect = new Rect();
     private static final char[] sFirstChar = new char[1];
+    private static final Rect sTileRect = new Rect();
+
+    /** Maximum total size of the cached tiles. */
+    private static final int TILE_CACHE_SIZE = 2 * 1024 * 1024;
+
+    /** Tiles larger than this, e.g. full-screen headers, are always drawn live. */
+    private static final int MAX_CACHED_TILE_SIZE = TILE_CACHE_SIZE / 8;
+
+    /**
+     * Tiles that were already rendered, so that drawing a tile again is a single
+     * {@link Canvas#drawBitmap}.
+     */
+    private static final LruCache<TileKey, Bitmap> sTileCache =
+            new LruCache<TileKey, Bitmap>(TILE_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(TileKey key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /**
+     * Everything that determines the pixels of a tile. The avatar is compared by identity, as
+     * the avatars are decoded once per process.
+     */
+    private static final class TileKey {
+        final int letter;
+        final int color;
+        final int width;
+        final int height;
+        final boolean circle;
+        final float scale;
+        final float offset;
+        final Bitmap avatar;
+
+        TileKey(int letter, int color, int width, int height, boolean circle, float scale,
+                float offset, Bitmap avatar) {
+            this.letter = letter;
+            this.color = color;
+            this.width = width;
+            this.height = height;
+            this.circle = circle;
+            this.scale = scale;
+            this.offset = offset;
+            this.avatar = avatar;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return letter == other.letter && color == other.color && width == other.width
+                    && height == other.height && circle == other.circle
+                    && Float.compare(scale, other.scale) == 0
+                    && Float.compare(offset, other.offset) == 0 && avatar == other.avatar;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = letter;
+            result = 31 * result + color;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + (circle ? 1 : 0);
+            result = 31 * result + Float.floatToIntBits(scale);
+            result = 31 * result + Float.floatToIntBits(offset);
+            result = 31 * result + System.identityHashCode(avatar);
+            return result;
+        }
+    }
 
     /** Contact type constants */
     public static final int TYPE_PERSON = 1;
@@ -123,18 +197,62 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
+        final Bitmap tile = getCachedTile(bounds);
+        if (tile != null) {
+            canvas.drawBitmap(tile, bounds.left, bounds.top, mPaint);
+            return;
+        }
         // Draw letter tile.
-        drawLetterTile(canvas);
+        drawLetterTile(canvas, bounds);
+    }
+
+    /**
+     * Returns the rendered tile for the given bounds from the tile cache, rendering it first if
+     * necessary, or null if the tile has to be drawn live: when it is too large to cache, or
+     * when it is translucent or color filtered, which the cached tiles do not reproduce exactly.
+     */
+    private Bitmap getCachedTile(Rect bounds) {
+        final int width = bounds.width();
+        final int height = bounds.height();
+        if (width * height * 4 > MAX_CACHED_TILE_SIZE || mPaint.getAlpha() != 0xFF
+                || mPaint.getColorFilter() != null) {
+            return null;
+        }
+        final boolean drawLetter = shouldDrawLetter();
+        final TileKey key = new TileKey(drawLetter ? mLetter : 0, mColor, width, height,
+                mIsCircle, mScale, mOffset,
+                drawLetter ? null : getBitmapForContactType(mContactType, mAccount, mContext));
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            sTileRect.set(0, 0, width, height);
+            drawLetterTile(new Canvas(tile), sTileRect);
+            sTileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Releases rendered tiles when the system asks the process to trim memory.
+     *
+     * @see ComponentCallbacks2#onTrimMemory(int)
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sTileCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            sTileCache.trimToSize(TILE_CACHE_SIZE / 2);
+        }
     }
 
     /**
-     * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
+     * Draw the bitmap onto the canvas at the given bounds taking into account the current scale.
      */
     private void drawBitmap(final Bitmap bitmap, final int width, final int height,
-            final Canvas canvas) {
+            final Canvas canvas, final Rect bounds) {
         // The bitmap should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
 
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
@@ -150,12 +268,16 @@ public class LetterTileDrawable extends Drawable {
         canvas.drawBitmap(bitmap, sRect, destRect, mPaint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private boolean shouldDrawLetter() {
+        return mLetter != null && (mAccount == null
+                || !SimAccountType.ACCOUNT_TYPE.equals(mAccount.type));
+    }
+
+    private void drawLetterTile(final Canvas canvas, final Rect bounds) {
         // Draw background color.
         sPaint.setColor(mColor);
 
         sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -166,8 +288,7 @@ public class LetterTileDrawable extends Drawable {
 
         // Draw letter/digit only if the first character is an english letter or there's a override
 
-        if (mLetter != null && (mAccount == null || (mAccount != null && !mAccount.type
-                .equals(SimAccountType.ACCOUNT_TYPE)))) {
+        if (shouldDrawLetter()) {
             // Draw letter or digit.
             sFirstChar[0] = mLetter;
 
@@ -187,7 +308,7 @@ public class LetterTileDrawable extends Drawable {
             final Bitmap bitmap = getBitmapForContactType(mContactType,
                     mAccount, mContext);
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(),
-                    canvas);
+                    canvas, bounds);
         }
     }
 
@@ -258,7 +379,7 @@ public class LetterTileDrawable extends Drawable {
 
     @Override
     public int getOpacity() {
-        return android.graphics.PixelFormat.OPAQUE;
+        return PixelFormat.OPAQUE;
     }
 
     /**
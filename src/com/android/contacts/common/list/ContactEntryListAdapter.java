@@ -50,7 +50,8 @@ import java.util.HashSet;
  * Common base class for various contact-related lists, e.g. contact list, phone number list
  * etc.
  */
-public abstract class ContactEntryListAdapter extends IndexerListAdapter {
+public abstract class ContactEntryListAdapter extends IndexerListAdapter
+        implements ContactPhotoManager.PrefetchSource {
 
     private static final String TAG = "ContactEntryListAdapter";
 
@@ -695,6 +696,32 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         return isUserProfile;
     }
 
+    @Override
+    public long getPhotoIdForPrefetch(int position) {
+        final int column = getPhotoIdColumnIndex();
+        final int partition = getPartitionForPosition(position);
+        if (column < 0 || partition < 0 || getCursor(partition) == null) {
+            return 0;
+        }
+        // Save the old cursor position - the call to getItem() may modify the cursor position.
+        final int offset = getCursor(partition).getPosition();
+        final Cursor cursor = (Cursor) getItem(position);
+        if (cursor == null) {
+            return 0;
+        }
+        final long photoId = cursor.isNull(column) ? 0 : cursor.getLong(column);
+        cursor.moveToPosition(offset);
+        return photoId;
+    }
+
+    /**
+     * Returns the index of the photo id column in the cursors of this adapter, or -1 if the
+     * photos of this adapter are not prefetched.
+     */
+    protected int getPhotoIdColumnIndex() {
+        return -1;
+    }
+
     // TODO: fix PluralRules to handle zero correctly and use Resources.getQuantityText directly
     public String getQuantityText(int count, int zeroResourceId, int pluralResourceId) {
         if (count == 0) {
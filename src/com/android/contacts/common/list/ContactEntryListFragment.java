@@ -818,6 +818,11 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (mPhotoManager == null || !isPhotoLoaderEnabled()) {
+            return;
+        }
+        final int headerCount = mListView != null ? mListView.getHeaderViewsCount() : 0;
+        mPhotoManager.onScroll(view, firstVisibleItem - headerCount, visibleItemCount, mAdapter);
     }
 
     @Override
@@ -174,6 +174,11 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
         return ((Cursor) getItem(position)).getString(ContactQuery.CONTACT_DISPLAY_NAME);
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
     /**
      * Builds the {@link Contacts#CONTENT_LOOKUP_URI} for the given
      * {@link ListView} position.
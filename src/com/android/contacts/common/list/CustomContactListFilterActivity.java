@@ -54,6 +54,7 @@ import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 import android.widget.TextView;
 
+import com.android.contacts.common.GroupMetaDataCache;
 import com.android.contacts.common.R;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.ValuesDelta;
@@ -129,7 +130,7 @@ public class CustomContactListFilterActivity extends Activity
             final ContentResolver resolver = context.getContentResolver();
 
             final AccountSet accounts = new AccountSet();
-            final String selection = Groups.DELETED + "!=1";
+            final GroupMetaDataCache groupCache = GroupMetaDataCache.getInstance(context);
             for (AccountWithDataSet account : accountTypes.getAccounts(false)) {
                 final AccountType accountType = accountTypes.getAccountTypeForAccount(account);
                 if (accountType.isExtension() && !account.hasData(context)) {
@@ -140,37 +141,24 @@ public class CustomContactListFilterActivity extends Activity
                 AccountDisplay accountDisplay =
                         new AccountDisplay(resolver, account.name, account.type, account.dataSet);
 
-                final Uri.Builder groupsUri = Groups.CONTENT_URI.buildUpon()
-                        .appendQueryParameter(Groups.ACCOUNT_NAME, account.name)
-                        .appendQueryParameter(Groups.ACCOUNT_TYPE, account.type);
-                if (account.dataSet != null) {
-                    groupsUri.appendQueryParameter(Groups.DATA_SET, account.dataSet).build();
-                }
-                final Cursor cursor = resolver.query(groupsUri.build(), null,
-                        selection, null, null);
-                if (cursor == null) {
-                    continue;
-                }
-                android.content.EntityIterator iterator =
-                        ContactsContract.Groups.newEntityIterator(cursor);
-                try {
-                    boolean hasGroups = false;
-
-                    // Create entries for each known group
-                    while (iterator.hasNext()) {
-                        final ContentValues values = iterator.next().getEntityValues();
-                        final GroupDelta group = GroupDelta.fromBefore(values);
-                        accountDisplay.addGroup(group);
-                        hasGroups = true;
+                boolean hasGroups = false;
+
+                // Create entries for each known group
+                for (ContentValues values : groupCache.getGroups(account)) {
+                    final Integer deleted = values.getAsInteger(Groups.DELETED);
+                    if (deleted != null && deleted == 1) {
+                        continue;
                     }
-                    // Create single entry handling ungrouped status
-                    accountDisplay.mUngrouped =
-                        GroupDelta.fromSettings(resolver, account.name, account.type,
-                                account.dataSet, hasGroups);
-                    accountDisplay.addGroup(accountDisplay.mUngrouped);
-                } finally {
-                    iterator.close();
+                    // Copied, since the cached values are shared.
+                    final GroupDelta group = GroupDelta.fromBefore(new ContentValues(values));
+                    accountDisplay.addGroup(group);
+                    hasGroups = true;
                 }
+                // Create single entry handling ungrouped status
+                accountDisplay.mUngrouped =
+                    GroupDelta.fromSettings(resolver, account.name, account.type,
+                            account.dataSet, hasGroups);
+                accountDisplay.addGroup(accountDisplay.mUngrouped);
 
                 accounts.add(accountDisplay);
             }
@@ -332,6 +332,11 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
         return ((Cursor) getItem(position)).getString(PhoneQuery.DISPLAY_NAME);
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return PhoneQuery.PHOTO_ID;
+    }
+
     public String getPhoneNumber(int position) {
         final Cursor item = (Cursor)getItem(position);
         return item != null ? item.getString(PhoneQuery.PHONE_NUMBER) : null;
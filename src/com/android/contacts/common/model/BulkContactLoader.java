@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+
+import com.android.contacts.common.util.DataStatus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads many local contacts at once, for callers such as sharing a selection or exporting
+ * contacts, which would otherwise run one {@link ContactLoader} entity query per contact.
+ * <p>
+ * The contacts are loaded in chunks of {@link #MAX_IDS_PER_QUERY}, with one query of the
+ * contacts and one of {@link RawContactsEntity} per chunk, so that N contacts take O(N / chunk)
+ * queries. Raw contacts and data items are built as {@link ContactLoader} builds them. Unlike
+ * the contacts of {@link ContactLoader}, these come without statuses, group metadata and
+ * photo bytes.
+ * <p>
+ * Loading does I/O and must not run on the main thread.
+ */
+public final class BulkContactLoader {
+    /** Kept well below the limit of SQLite on the number of arguments of a query. */
+    static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Receives the loaded contacts, one at a time, on the thread that called
+     * {@link #load(Collection, Callback)}.
+     */
+    public interface Callback {
+        void onContactLoaded(Contact contact);
+    }
+
+    private static class ContactQuery {
+        static final String[] COLUMNS = new String[] {
+                Contacts._ID,
+                Contacts.NAME_RAW_CONTACT_ID,
+                Contacts.DISPLAY_NAME_SOURCE,
+                Contacts.LOOKUP_KEY,
+                Contacts.DISPLAY_NAME,
+                Contacts.DISPLAY_NAME_ALTERNATIVE,
+                Contacts.PHONETIC_NAME,
+                Contacts.PHOTO_ID,
+                Contacts.PHOTO_URI,
+                Contacts.STARRED,
+                Contacts.CONTACT_PRESENCE,
+                Contacts.SEND_TO_VOICEMAIL,
+                Contacts.CUSTOM_RINGTONE,
+                Contacts.IS_USER_PROFILE,
+        };
+
+        public static final int ID = 0;
+        public static final int NAME_RAW_CONTACT_ID = 1;
+        public static final int DISPLAY_NAME_SOURCE = 2;
+        public static final int LOOKUP_KEY = 3;
+        public static final int DISPLAY_NAME = 4;
+        public static final int ALT_DISPLAY_NAME = 5;
+        public static final int PHONETIC_NAME = 6;
+        public static final int PHOTO_ID = 7;
+        public static final int PHOTO_URI = 8;
+        public static final int STARRED = 9;
+        public static final int CONTACT_PRESENCE = 10;
+        public static final int SEND_TO_VOICEMAIL = 11;
+        public static final int CUSTOM_RINGTONE = 12;
+        public static final int IS_USER_PROFILE = 13;
+    }
+
+    /**
+     * Projection of the raw contacts and their data. Columns take the names of the projection
+     * of {@link ContactLoader}, which they are stored under in the {@link ContentValues}.
+     */
+    private static class EntityQuery {
+        static final String[] COLUMNS = new String[] {
+                RawContacts.CONTACT_ID,
+                RawContactsEntity._ID,
+
+                RawContacts.ACCOUNT_NAME,
+                RawContacts.ACCOUNT_TYPE,
+                RawContacts.DATA_SET,
+                RawContacts.DIRTY,
+                RawContacts.VERSION,
+                RawContacts.SOURCE_ID,
+                RawContacts.SYNC1,
+                RawContacts.SYNC2,
+                RawContacts.SYNC3,
+                RawContacts.SYNC4,
+                RawContacts.DELETED,
+                RawContacts.STARRED,
+
+                RawContactsEntity.DATA_ID,
+                Data.DATA1,
+                Data.DATA2,
+                Data.DATA3,
+                Data.DATA4,
+                Data.DATA5,
+                Data.DATA6,
+                Data.DATA7,
+                Data.DATA8,
+                Data.DATA9,
+                Data.DATA10,
+                Data.DATA11,
+                Data.DATA12,
+                Data.DATA13,
+                Data.DATA14,
+                Data.DATA15,
+                Data.SYNC1,
+                Data.SYNC2,
+                Data.SYNC3,
+                Data.SYNC4,
+                Data.DATA_VERSION,
+                Data.IS_PRIMARY,
+                Data.IS_SUPER_PRIMARY,
+                Data.MIMETYPE,
+
+                GroupMembership.GROUP_SOURCE_ID,
+        };
+
+        public static final int CONTACT_ID = 0;
+        public static final int RAW_CONTACT_ID = 1;
+
+        /** Raw contact columns are copied from here up to {@link #DATA_ID}. */
+        public static final int FIRST_RAW_CONTACT_COLUMN = 2;
+
+        public static final int DATA_ID = 14;
+        /** Data columns are copied from here up to the end. */
+        public static final int FIRST_DATA_COLUMN = 15;
+
+        static final CursorRowMapper RAW_CONTACT_MAPPER = new CursorRowMapper(
+                RawContacts._ID, RAW_CONTACT_ID, COLUMNS,
+                CursorRowMapper.ranges(CONTACT_ID, CONTACT_ID + 1, FIRST_RAW_CONTACT_COLUMN,
+                        DATA_ID));
+
+        static final CursorRowMapper DATA_MAPPER = new CursorRowMapper(Data._ID, DATA_ID,
+                COLUMNS, CursorRowMapper.ranges(FIRST_DATA_COLUMN, COLUMNS.length));
+
+        static final String ORDER_BY = RawContacts.CONTACT_ID + "," + RawContactsEntity._ID;
+    }
+
+    private final ContentResolver mResolver;
+
+    public BulkContactLoader(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Loads the contacts with the given ids, in no particular order. Contacts that no longer
+     * exist are skipped.
+     */
+    public List<Contact> load(Collection<Long> contactIds) {
+        final List<Contact> contacts = new ArrayList<Contact>(contactIds.size());
+        load(contactIds, new Callback() {
+            @Override
+            public void onContactLoaded(Contact contact) {
+                contacts.add(contact);
+            }
+        });
+        return contacts;
+    }
+
+    /**
+     * Loads the contacts with the given ids, passing each one to the callback as soon as it is
+     * built, so that the caller does not have to keep all of them. Contacts that no longer exist
+     * are skipped.
+     */
+    public void load(Collection<Long> contactIds, Callback callback) {
+        for (List<Long> chunk : Lists.partition(new ArrayList<Long>(contactIds),
+                MAX_IDS_PER_QUERY)) {
+            loadChunk(chunk, callback);
+        }
+    }
+
+    private void loadChunk(List<Long> contactIds, Callback callback) {
+        final String[] selectionArgs = new String[contactIds.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selectionArgs[i] = String.valueOf(contactIds.get(i));
+        }
+        final Map<Long, Contact> contacts = loadContactHeaders(
+                buildInSelection(Contacts._ID, selectionArgs.length), selectionArgs);
+        if (contacts.isEmpty()) {
+            return;
+        }
+
+        final Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI,
+                EntityQuery.COLUMNS,
+                buildInSelection(RawContacts.CONTACT_ID, selectionArgs.length) + " AND "
+                        + RawContacts.DELETED + "=0",
+                selectionArgs, EntityQuery.ORDER_BY);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            Contact contact = null;
+            ImmutableList.Builder<RawContact> rawContactsBuilder = null;
+            long currentRawContactId = -1;
+            RawContact rawContact = null;
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(EntityQuery.CONTACT_ID);
+                if (contact == null || contactId != contact.getId()) {
+                    deliver(contact, rawContactsBuilder, callback);
+                    // Null if the contact was created after the first query.
+                    contact = contacts.remove(contactId);
+                    rawContactsBuilder = new ImmutableList.Builder<RawContact>();
+                    currentRawContactId = -1;
+                }
+                if (contact == null) {
+                    continue;
+                }
+                final long rawContactId = cursor.getLong(EntityQuery.RAW_CONTACT_ID);
+                if (rawContactId != currentRawContactId) {
+                    currentRawContactId = rawContactId;
+                    rawContact = new RawContact(loadRawContactValues(cursor));
+                    rawContactsBuilder.add(rawContact);
+                }
+                if (!cursor.isNull(EntityQuery.DATA_ID)) {
+                    rawContact.addDataItemValues(loadDataValues(cursor));
+                }
+            }
+            deliver(contact, rawContactsBuilder, callback);
+        } finally {
+            cursor.close();
+        }
+        // The raw contacts of the remaining contacts were deleted after the first query.
+    }
+
+    private static void deliver(Contact contact, ImmutableList.Builder<RawContact> rawContacts,
+            Callback callback) {
+        if (contact == null) {
+            return;
+        }
+        contact.setRawContacts(rawContacts.build());
+        contact.setStatuses(ImmutableMap.<Long, DataStatus>of());
+        callback.onContactLoaded(contact);
+    }
+
+    private static String buildInSelection(String column, int count) {
+        final StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i != 0) {
+                selection.append(',');
+            }
+            selection.append('?');
+        }
+        return selection.append(')').toString();
+    }
+
+    private Map<Long, Contact> loadContactHeaders(String selection, String[] selectionArgs) {
+        final Map<Long, Contact> contacts = Maps.newHashMap();
+        final Cursor cursor = mResolver.query(Contacts.CONTENT_URI, ContactQuery.COLUMNS,
+                selection, selectionArgs, null);
+        if (cursor == null) {
+            return contacts;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final Contact contact = loadContactHeaderData(cursor);
+                contacts.put(contact.getId(), contact);
+            }
+        } finally {
+            cursor.close();
+        }
+        return contacts;
+    }
+
+    /**
+     * Extracts Contact level columns from the cursor.
+     */
+    private static Contact loadContactHeaderData(Cursor cursor) {
+        final long contactId = cursor.getLong(ContactQuery.ID);
+        final String lookupKey = cursor.getString(ContactQuery.LOOKUP_KEY);
+        final Integer presence = cursor.isNull(ContactQuery.CONTACT_PRESENCE)
+                ? null
+                : cursor.getInt(ContactQuery.CONTACT_PRESENCE);
+        final Uri uri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+        final Uri lookupUri = ContentUris.withAppendedId(
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, lookupKey), contactId);
+        return new Contact(lookupUri, uri, lookupUri, Directory.DEFAULT, lookupKey, contactId,
+                cursor.getLong(ContactQuery.NAME_RAW_CONTACT_ID),
+                cursor.getInt(ContactQuery.DISPLAY_NAME_SOURCE),
+                cursor.getLong(ContactQuery.PHOTO_ID),
+                cursor.getString(ContactQuery.PHOTO_URI),
+                cursor.getString(ContactQuery.DISPLAY_NAME),
+                cursor.getString(ContactQuery.ALT_DISPLAY_NAME),
+                cursor.getString(ContactQuery.PHONETIC_NAME),
+                cursor.getInt(ContactQuery.STARRED) != 0,
+                presence,
+                cursor.getInt(ContactQuery.SEND_TO_VOICEMAIL) == 1,
+                cursor.getString(ContactQuery.CUSTOM_RINGTONE),
+                cursor.getInt(ContactQuery.IS_USER_PROFILE) == 1);
+    }
+
+    /**
+     * Extracts RawContact level columns from the cursor.
+     */
+    private static ContentValues loadRawContactValues(Cursor cursor) {
+        return EntityQuery.RAW_CONTACT_MAPPER.map(cursor);
+    }
+
+    /**
+     * Extracts Data level columns from the cursor.
+     */
+    private static ContentValues loadDataValues(Cursor cursor) {
+        return EntityQuery.DATA_MAPPER.map(cursor);
+    }
+}
@@ -84,10 +84,11 @@ public class Contact {
 
     private ImmutableList<GroupMetaData> mGroups;
 
-    private byte[] mPhotoBinaryData;
+    /** Large version of the contact photo, which is only read for loaders that ask for it. */
+    private LazyPhoto mPhotoBinaryData;
     /**
      * Small version of the contact photo loaded from a blob instead of from a file. If a large
-     * contact photo is not available yet, then this has the same value as mPhotoBinaryData.
+     * contact photo is not available, then this has the same value as mPhotoBinaryData.
      */
     private byte[] mThumbnailPhotoBinaryData;
     private final boolean mSendToVoicemail;
@@ -201,7 +202,9 @@ public class Contact {
 
         mGroups = from.mGroups;
 
+        // The copies share the large photo, so that it is read at most once.
         mPhotoBinaryData = from.mPhotoBinaryData;
+        mThumbnailPhotoBinaryData = from.mThumbnailPhotoBinaryData;
         mSendToVoicemail = from.mSendToVoicemail;
         mCustomRingtone = from.mCustomRingtone;
         mIsUserProfile = from.mIsUserProfile;
@@ -220,9 +223,17 @@ public class Contact {
     }
 
     /* package */ void setPhotoBinaryData(byte[] photoBinaryData) {
+        mPhotoBinaryData = new LazyPhoto(photoBinaryData);
+    }
+
+    /* package */ void setPhotoBinaryData(LazyPhoto photoBinaryData) {
         mPhotoBinaryData = photoBinaryData;
     }
 
+    /* package */ LazyPhoto getLazyPhotoBinaryData() {
+        return mPhotoBinaryData;
+    }
+
     /* package */ void setThumbnailPhotoBinaryData(byte[] photoBinaryData) {
         mThumbnailPhotoBinaryData = photoBinaryData;
     }
@@ -422,8 +433,23 @@ public class Contact {
         return mDirectoryAccountName;
     }
 
+    /**
+     * Returns the large photo if available, or else the thumbnail. Never reads the photo: the
+     * {@link ContactLoader} reads it in the background, unless it was configured in its
+     * constructor not to. UIs that only display the photo should rather use
+     * {@link com.android.contacts.common.ContactPhotoManager} with {@link #getPhotoUri()}.
+     */
     public byte[] getPhotoBinaryData() {
-        return mPhotoBinaryData;
+        final byte[] photo = mPhotoBinaryData == null ? null : mPhotoBinaryData.peek();
+        return photo != null ? photo : mThumbnailPhotoBinaryData;
+    }
+
+    /**
+     * Returns whether the large photo was read, so that {@link #getPhotoBinaryData()} returns it
+     * if the contact has one.
+     */
+    public boolean isPhotoBinaryDataLoaded() {
+        return mPhotoBinaryData == null || mPhotoBinaryData.isLoaded();
     }
 
     public byte[] getThumbnailPhotoBinaryData() {
@@ -440,11 +466,12 @@ public class Contact {
         ArrayList<ContentValues> result = rawContact.getContentValues();
 
         // If the photo was loaded using the URI, create an entry for the photo
-        // binary data.
-        if (mPhotoId == 0 && mPhotoBinaryData != null) {
+        // binary data. It is missing if the loader was configured not to load the photo.
+        final byte[] photoBinaryData = mPhotoId == 0 ? getPhotoBinaryData() : null;
+        if (photoBinaryData != null) {
             ContentValues photo = new ContentValues();
             photo.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
-            photo.put(Photo.PHOTO, mPhotoBinaryData);
+            photo.put(Photo.PHOTO, photoBinaryData);
             result.add(photo);
         }
 
@@ -493,4 +520,45 @@ public class Contact {
     /* package */ void setGroupMetaData(ImmutableList<GroupMetaData> groups) {
         mGroups = groups;
     }
+
+    /**
+     * Photo that is read from its {@link Source} by the first loader that asks for it and kept
+     * afterwards, so that loading a contact does not pay for a large photo that is never shown.
+     * Only {@link #get()} reads the photo, which must not happen on the main thread. All methods
+     * are thread-safe; concurrent first accesses read the photo once.
+     */
+    /* package */ static final class LazyPhoto {
+        /* package */ interface Source {
+            /** Reads the photo. Called at most once, on the loader thread that first needs it. */
+            byte[] load();
+        }
+
+        private Source mSource;
+        private byte[] mBytes;
+
+        LazyPhoto(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        LazyPhoto(Source source) {
+            mSource = source;
+        }
+
+        synchronized byte[] get() {
+            if (mSource != null) {
+                mBytes = mSource.load();
+                mSource = null;
+            }
+            return mBytes;
+        }
+
+        synchronized boolean isLoaded() {
+            return mSource == null;
+        }
+
+        /** Returns the photo if it was read already, or else null. */
+        synchronized byte[] peek() {
+            return mBytes;
+        }
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of the contacts recently loaded by {@link ContactLoader}, keyed by lookup URI, so
+ * that a contact that is opened again is shown without querying the provider.
+ * <p>
+ * A single {@link ContentObserver} on the contacts provider keeps the cache up to date. When a
+ * change notification names a contact or raw contact, only the contacts involved are dropped;
+ * otherwise, as for the authority URI that the provider usually notifies, all of them are. All
+ * methods are thread-safe.
+ * <p>
+ * Cached contacts are shared and must not be modified; {@link ContactLoader} stores and hands
+ * out copies with their own raw contacts.
+ */
+public final class ContactCache {
+    private static final String TAG = "ContactCache";
+
+    /** Estimated memory taken by a contact, not counting its photo. */
+    private static final int CONTACT_SIZE_KB = 16;
+    private static final int MAX_SIZE_KB = 1024;
+
+    private static ContactCache sInstance;
+
+    private final LruCache<Uri, Contact> mCache;
+
+    /** Incremented whenever contacts are invalidated. Guarded by this. */
+    private long mGeneration;
+    private long mInvalidationCount;
+
+    /**
+     * Returns the cache shared by all loaders, registering its observer on first use.
+     */
+    public static synchronized ContactCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactCache(MAX_SIZE_KB);
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, sInstance.new Observer());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ContactCache(int maxSizeKb) {
+        mCache = new LruCache<Uri, Contact>(maxSizeKb) {
+            @Override
+            protected int sizeOf(Uri key, Contact value) {
+                // Counts the large photo only if it was read already; a photo that is read
+                // later is counted by remeasure().
+                final Contact.LazyPhoto lazyPhoto = value.getLazyPhotoBinaryData();
+                final byte[] photo = lazyPhoto == null ? null : lazyPhoto.peek();
+                final byte[] thumbnail = value.getThumbnailPhotoBinaryData();
+                return CONTACT_SIZE_KB + (photo == null ? 0 : photo.length / 1024)
+                        + (thumbnail == null || thumbnail == photo ? 0 : thumbnail.length / 1024);
+            }
+        };
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put(Contact, long)} for a contact that is about
+     * to be loaded.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the cached contact with the given lookup URI, or null.
+     */
+    public Contact get(Uri lookupUri) {
+        return lookupUri == null ? null : mCache.get(lookupUri);
+    }
+
+    /**
+     * Caches a loaded contact under its lookup URI, unless contacts were invalidated since
+     * {@code generation} was obtained, in which case the contact may already be outdated.
+     */
+    public synchronized void put(Contact contact, long generation) {
+        if (generation != mGeneration || contact.getLookupUri() == null) {
+            return;
+        }
+        mCache.put(contact.getLookupUri(), contact);
+    }
+
+    /**
+     * Caches a loaded contact that is known to be up to date.
+     */
+    public synchronized void put(Contact contact) {
+        put(contact, mGeneration);
+    }
+
+    /**
+     * Measures the cached contact with the given lookup URI again, after its large photo was
+     * read. The cached contact shares the photo with the copies handed out to loaders, so it was
+     * measured without the photo when it was put.
+     */
+    public synchronized void remeasure(Uri lookupUri) {
+        final Contact contact = lookupUri == null ? null : mCache.get(lookupUri);
+        if (contact != null) {
+            mCache.put(lookupUri, contact);
+        }
+    }
+
+    /**
+     * Drops the contact with the given lookup URI.
+     */
+    public synchronized void remove(Uri lookupUri) {
+        mGeneration++;
+        if (lookupUri != null && mCache.remove(lookupUri) != null) {
+            mInvalidationCount++;
+        }
+    }
+
+    /**
+     * Drops the contacts that a change of the given URI may affect.
+     */
+    @VisibleForTesting
+    synchronized void onContactsChanged(Uri uri) {
+        mGeneration++;
+        final long id = parseId(uri);
+        final boolean isContact = id >= 0 && isChildOf(uri, Contacts.CONTENT_URI);
+        final boolean isRawContact = id >= 0 && isChildOf(uri, RawContacts.CONTENT_URI);
+        for (Map.Entry<Uri, Contact> entry : mCache.snapshot().entrySet()) {
+            final Contact contact = entry.getValue();
+            if ((isContact && contact.getId() != id)
+                    || (isRawContact && !hasRawContact(contact, id))) {
+                continue;
+            }
+            mCache.remove(entry.getKey());
+            mInvalidationCount++;
+        }
+    }
+
+    /** Returns the id at the end of the URI, or -1 if there is none. */
+    private static long parseId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        try {
+            return ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /** Returns whether the URI is the given content URI followed by an id. */
+    private static boolean isChildOf(Uri uri, Uri parent) {
+        final List<String> segments = uri.getPathSegments();
+        final List<String> parentSegments = parent.getPathSegments();
+        return parent.getAuthority().equals(uri.getAuthority())
+                && segments.size() == parentSegments.size() + 1
+                && segments.subList(0, parentSegments.size()).equals(parentSegments);
+    }
+
+    private static boolean hasRawContact(Contact contact, long rawContactId) {
+        if (contact.getRawContacts() == null) {
+            return false;
+        }
+        for (RawContact rawContact : contact.getRawContacts()) {
+            final Long id = rawContact.getId();
+            if (id != null && id == rawContactId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops all contacts.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    /** Number of lookups that found a cached contact. */
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /** Number of lookups that had to load the contact from the provider. */
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /** Returns the share of lookups that found a cached contact, between 0 and 1. */
+    public float getHitRate() {
+        final int hits = hitCount();
+        final int lookups = hits + missCount();
+        return lookups == 0 ? 0f : (float) hits / lookups;
+    }
+
+    /** Number of contacts dropped because they fell out of the cache. */
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /** Number of contacts dropped because they changed. */
+    public synchronized long invalidationCount() {
+        return mInvalidationCount;
+    }
+
+    public int size() {
+        return mCache.snapshot().size();
+    }
+
+    @Override
+    public String toString() {
+        return "ContactCache[size=" + size() + ", hits=" + hitCount() + ", misses="
+                + missCount() + ", evictions=" + evictionCount() + ", invalidations="
+                + invalidationCount() + "]";
+    }
+
+    /**
+     * Invalidates the cache on the binder thread that delivers the notification, so that a
+     * loader woken up by the same change cannot pick up the outdated contact.
+     */
+    private class Observer extends ContentObserver {
+        Observer() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Contacts changed: " + uri);
+            }
+            onContactsChanged(uri);
+        }
+    }
+}
@@ -24,53 +24,62 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
-import android.provider.ContactsContract.Groups;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.contacts.common.GeoUtil;
 import com.android.contacts.common.GroupMetaData;
+import com.android.contacts.common.GroupMetaDataCache;
 import com.android.contacts.common.compat.CompatUtils;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.model.account.AccountTypeWithDataSet;
+import com.android.contacts.common.model.account.AccountWithDataSet;
+import com.android.contacts.common.util.ByteArrayPool;
+import com.android.contacts.common.util.ByteStreamUtil;
 import com.android.contacts.common.util.Constants;
 import com.android.contacts.common.util.ContactLoaderUtils;
 import com.android.contacts.common.util.DataStatus;
-import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.model.dataitem.DataItem;
 import com.android.contacts.common.model.dataitem.PhoneDataItem;
 import com.android.contacts.common.model.dataitem.PhotoDataItem;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loads a single Contact and all it constituent RawContacts.
@@ -81,8 +90,32 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
 
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    /** A short-lived cache that can be set by {@link #cacheResult()} */
-    private static Contact sCachedResult = null;
+    /** Buffers for reading photos of unknown length, shared by all loaders. */
+    private static final ByteArrayPool sPhotoBufferPool = new ByteArrayPool(16 * 1024, 2);
+
+    /** Number of stages that all loaders can run in the background at the same time. */
+    private static final int SUB_LOAD_THREADS = 2;
+
+    /** Runs queries of the loaders while the loader threads complete the rest of the contacts. */
+    private static final ThreadPoolExecutor sSubLoadExecutor;
+
+    static {
+        final AtomicInteger threadCount = new AtomicInteger();
+        sSubLoadExecutor = new ThreadPoolExecutor(SUB_LOAD_THREADS, SUB_LOAD_THREADS,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "ContactSubLoader-" + threadCount.incrementAndGet());
+                    }
+                });
+        sSubLoadExecutor.allowCoreThreadTimeOut(true);
+    }
 
     private final Uri mRequestedUri;
     private Uri mLookupUri;
@@ -90,7 +123,13 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     private boolean mLoadInvitableAccountTypes;
     private boolean mPostViewNotification;
     private boolean mComputeFormattedPhoneNumber;
+    private boolean mLoadPhotoBinaryData;
     private Contact mContact;
+    /**
+     * The contact that was displayed when the provider notified a change, whose unchanged raw
+     * contacts and photo the next load can reuse. Set on the UI thread, consumed by the load.
+     */
+    private volatile Contact mRefreshBase;
     private ForceLoadContentObserver mObserver;
     private final Set<Long> mNotifiedRawContactIds = Sets.newHashSet();
 
@@ -101,6 +140,20 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     public ContactLoader(Context context, Uri lookupUri, boolean loadGroupMetaData,
             boolean loadInvitableAccountTypes,
             boolean postViewNotification, boolean computeFormattedPhoneNumber) {
+        this(context, lookupUri, loadGroupMetaData, loadInvitableAccountTypes,
+                postViewNotification, computeFormattedPhoneNumber, true);
+    }
+
+    /**
+     * @param loadPhotoBinaryData whether to read the large photo, which may have to be
+     *     downloaded, for {@link Contact#getPhotoBinaryData()}, as the other constructors do.
+     *     Loaders whose UI only displays the photo through
+     *     {@link com.android.contacts.common.ContactPhotoManager} can pass false to skip the
+     *     read; only the thumbnail is available from the contact then.
+     */
+    public ContactLoader(Context context, Uri lookupUri, boolean loadGroupMetaData,
+            boolean loadInvitableAccountTypes, boolean postViewNotification,
+            boolean computeFormattedPhoneNumber, boolean loadPhotoBinaryData) {
         super(context);
         mLookupUri = lookupUri;
         mRequestedUri = lookupUri;
@@ -108,6 +161,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         mLoadInvitableAccountTypes = loadInvitableAccountTypes;
         mPostViewNotification = postViewNotification;
         mComputeFormattedPhoneNumber = computeFormattedPhoneNumber;
+        mLoadPhotoBinaryData = loadPhotoBinaryData;
     }
 
     /**
@@ -269,6 +323,109 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         public static final int TIMES_USED = 62;
         public static final int LAST_TIME_USED = 63;
         public static final int CARRIER_PRESENCE = 64;
+
+        static final CursorRowMapper RAW_CONTACT_MAPPER = new CursorRowMapper(
+                RawContacts._ID, RAW_CONTACT_ID, COLUMNS,
+                ACCOUNT_NAME, ACCOUNT_TYPE, DATA_SET, DIRTY, VERSION, SOURCE_ID,
+                SYNC1, SYNC2, SYNC3, SYNC4, DELETED, CONTACT_ID, STARRED);
+
+        static final CursorRowMapper DATA_MAPPER;
+
+        static {
+            final int[] dataColumns = new int[] {
+                    DATA1, DATA2, DATA3, DATA4, DATA5, DATA6, DATA7, DATA8, DATA9, DATA10,
+                    DATA11, DATA12, DATA13, DATA14, DATA15,
+                    DATA_SYNC1, DATA_SYNC2, DATA_SYNC3, DATA_SYNC4,
+                    DATA_VERSION, IS_PRIMARY, IS_SUPERPRIMARY, MIMETYPE,
+                    GROUP_SOURCE_ID, CHAT_CAPABILITY, TIMES_USED, LAST_TIME_USED,
+                    CARRIER_PRESENCE };
+            // The carrier presence column is only in the projection from Marshmallow on.
+            DATA_MAPPER = new CursorRowMapper(Data._ID, DATA_ID, COLUMNS,
+                    CompatUtils.isMarshmallowCompatible()
+                            ? dataColumns
+                            : Arrays.copyOf(dataColumns, dataColumns.length - 1));
+        }
+    }
+
+    /**
+     * Projection used when a contact is reloaded to find the raw contacts whose version changed.
+     */
+    private static class RawContactVersionQuery {
+        static final String[] COLUMNS = new String[] {
+                RawContacts._ID,
+                RawContacts.VERSION
+        };
+
+        public static final int _ID = 0;
+        public static final int VERSION = 1;
+    }
+
+    /**
+     * Projection used when a contact is reloaded for the raw contacts whose version did not
+     * change: the header data of the contact, and the columns of the data rows that are not
+     * covered by the version of their raw contact, as they are kept in the presence table and
+     * the usage stats.
+     */
+    private static class UnversionedQuery {
+        static final String[] COLUMNS_INTERNAL = new String[] {
+                Contacts.NAME_RAW_CONTACT_ID,
+                Contacts.DISPLAY_NAME_SOURCE,
+                Contacts.LOOKUP_KEY,
+                Contacts.DISPLAY_NAME,
+                Contacts.DISPLAY_NAME_ALTERNATIVE,
+                Contacts.PHONETIC_NAME,
+                Contacts.PHOTO_ID,
+                Contacts.STARRED,
+                Contacts.CONTACT_PRESENCE,
+                Contacts.PHOTO_URI,
+                Contacts.SEND_TO_VOICEMAIL,
+                Contacts.CUSTOM_RINGTONE,
+                Contacts.IS_USER_PROFILE,
+                Contacts.Entity.CONTACT_ID,
+                Contacts.Entity.RAW_CONTACT_ID,
+
+                Contacts.Entity.DATA_ID,
+                Data.PRESENCE,
+                Data.STATUS,
+                Data.STATUS_RES_PACKAGE,
+                Data.STATUS_ICON,
+                Data.STATUS_LABEL,
+                Data.STATUS_TIMESTAMP,
+                Data.CHAT_CAPABILITY,
+                Data.TIMES_USED,
+                Data.LAST_TIME_USED
+        };
+
+        static final String[] COLUMNS;
+
+        static {
+            List<String> projectionList = Lists.newArrayList(COLUMNS_INTERNAL);
+            if (CompatUtils.isMarshmallowCompatible()) {
+                projectionList.add(Data.CARRIER_PRESENCE);
+            }
+            COLUMNS = projectionList.toArray(new String[projectionList.size()]);
+        }
+
+        public static final int RAW_CONTACT_ID = 14;
+
+        public static final int DATA_ID = 15;
+        public static final int PRESENCE = 16;
+        public static final int STATUS = 17;
+        public static final int CHAT_CAPABILITY = 22;
+        public static final int TIMES_USED = 23;
+        public static final int LAST_TIME_USED = 24;
+        public static final int CARRIER_PRESENCE = 25;
+
+        static final CursorRowMapper DATA_MAPPER;
+
+        static {
+            final int[] dataColumns = new int[] {
+                    CHAT_CAPABILITY, TIMES_USED, LAST_TIME_USED, CARRIER_PRESENCE };
+            DATA_MAPPER = new CursorRowMapper(Data._ID, DATA_ID, COLUMNS,
+                    CompatUtils.isMarshmallowCompatible()
+                            ? dataColumns
+                            : Arrays.copyOf(dataColumns, dataColumns.length - 1));
+        }
     }
 
     /**
@@ -292,26 +449,6 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         public static final int EXPORT_SUPPORT = 5;
     }
 
-    private static class GroupQuery {
-        static final String[] COLUMNS = new String[] {
-            Groups.ACCOUNT_NAME,
-            Groups.ACCOUNT_TYPE,
-            Groups.DATA_SET,
-            Groups._ID,
-            Groups.TITLE,
-            Groups.AUTO_ADD,
-            Groups.FAVORITES,
-        };
-
-        public static final int ACCOUNT_NAME = 0;
-        public static final int ACCOUNT_TYPE = 1;
-        public static final int DATA_SET = 2;
-        public static final int ID = 3;
-        public static final int TITLE = 4;
-        public static final int AUTO_ADD = 5;
-        public static final int FAVORITES = 6;
-    }
-
     public void setLookupUri(Uri lookupUri) {
         mLookupUri = lookupUri;
     }
@@ -319,49 +456,115 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     @Override
     public Contact loadInBackground() {
         Log.e(TAG, "loadInBackground=" + mLookupUri);
+        final long startTime = SystemClock.elapsedRealtime();
         try {
             final ContentResolver resolver = getContext().getContentResolver();
             final Uri uriCurrentFormat = ContactLoaderUtils.ensureIsContactUri(
                     resolver, mLookupUri);
-            final Contact cachedResult = sCachedResult;
-            sCachedResult = null;
-            // Is this the same Uri as what we had before already? In that case, reuse that result
+            final ContactCache cache = ContactCache.getInstance(getContext());
+            final long cacheGeneration = cache.getGeneration();
+            final Contact cachedResult = cache.get(mLookupUri);
+            // Was this contact loaded recently? In that case, reuse that result
+            final Contact refreshBase = mRefreshBase;
+            mRefreshBase = null;
             final Contact result;
             final boolean resultIsCached;
-            if (cachedResult != null &&
-                    UriUtils.areEqual(cachedResult.getLookupUri(), mLookupUri)) {
+            boolean photoIsReused = false;
+            if (cachedResult != null) {
                 // We are using a cached result from earlier. Below, we should make sure
                 // we are not doing any more network or disc accesses
-                result = new Contact(mRequestedUri, cachedResult);
+                result = copyContact(mRequestedUri, cachedResult);
                 resultIsCached = true;
             } else {
                 if (uriCurrentFormat.getLastPathSegment().equals(Constants.LOOKUP_URI_ENCODED)) {
                     result = loadEncodedContactEntity(uriCurrentFormat, mLookupUri);
                 } else {
-                    result = loadContactEntity(resolver, uriCurrentFormat);
+                    result = loadContactEntity(resolver, uriCurrentFormat, refreshBase);
+                    photoIsReused = reusePhoto(result, refreshBase);
                 }
                 resultIsCached = false;
+                ContactLoaderStats.record(ContactLoaderStats.STAGE_ENTITY,
+                        SystemClock.elapsedRealtime() - startTime);
             }
             if (result.isLoaded()) {
+                if (!resultIsCached && !photoIsReused) {
+                    // The thumbnail is looked up among the data items here, before the phone
+                    // numbers stage starts modifying them.
+                    loadThumbnailBinaryData(result);
+                    setPhotoBinaryDataSource(result);
+                }
+
+                // The large photo, which may have to be downloaded, and the directory or group
+                // query run on the shared executor while the other stages run on this thread.
+                // The stages set different fields of the contact, so they do not depend on each
+                // other. The photo is only read once for all copies of the contact.
+                final Contact.LazyPhoto photo = result.getLazyPhotoBinaryData();
+                Future<Void> photoLoad = null;
+                if (mLoadPhotoBinaryData && photo != null && !photo.isLoaded()) {
+                    photoLoad = sSubLoadExecutor.submit(
+                            new SubLoad(ContactLoaderStats.STAGE_PHOTO) {
+                                @Override
+                                protected void load() {
+                                    photo.get();
+                                }
+                            });
+                }
+                Future<Void> metaDataLoad = null;
                 if (result.isDirectoryEntry()) {
                     if (!resultIsCached) {
-                        loadDirectoryMetaData(result);
+                        metaDataLoad = sSubLoadExecutor.submit(
+                                new SubLoad(ContactLoaderStats.STAGE_DIRECTORY) {
+                                    @Override
+                                    protected void load() {
+                                        loadDirectoryMetaData(result);
+                                    }
+                                });
                     }
                 } else if (mLoadGroupMetaData) {
                     if (result.getGroupMetaData() == null) {
-                        loadGroupMetaData(result);
+                        metaDataLoad = sSubLoadExecutor.submit(
+                                new SubLoad(ContactLoaderStats.STAGE_GROUPS) {
+                                    @Override
+                                    protected void load() {
+                                        loadGroupMetaData(result);
+                                    }
+                                });
                     }
                 }
                 if (mComputeFormattedPhoneNumber) {
-                    computeFormattedPhoneNumbers(result);
+                    new SubLoad(ContactLoaderStats.STAGE_PHONE_NUMBERS) {
+                        @Override
+                        protected void load() {
+                            computeFormattedPhoneNumbers(result);
+                        }
+                    }.call();
                 }
-                if (!resultIsCached) loadPhotoBinaryData(result);
 
                 // Note ME profile should never have "Add connection"
                 if (mLoadInvitableAccountTypes && result.getInvitableAccountTypes() == null) {
-                    loadInvitableAccountTypes(result);
+                    new SubLoad(ContactLoaderStats.STAGE_INVITABLES) {
+                        @Override
+                        protected void load() {
+                            loadInvitableAccountTypes(result);
+                        }
+                    }.call();
+                }
+
+                if (photoLoad != null) {
+                    awaitSubLoad(photoLoad);
+                }
+                if (metaDataLoad != null) {
+                    awaitSubLoad(metaDataLoad);
+                }
+                cache.put(copyContact(result.getRequestedUri(), result), cacheGeneration);
+                if (photoLoad != null && resultIsCached) {
+                    // The cached contact shares the photo that was just read, and may not have
+                    // been replaced above if contacts were invalidated in the meantime.
+                    cache.remeasure(result.getLookupUri());
                 }
             }
+            ContactLoaderStats.record(ContactLoaderStats.STAGE_TOTAL,
+                    SystemClock.elapsedRealtime() - startTime);
             return result;
         } catch (Exception e) {
             Log.e(TAG, "Error loading the contact: " + mLookupUri, e);
@@ -369,6 +572,49 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         }
     }
 
+    /**
+     * One stage of {@link #loadInBackground()} after the contact entity is loaded. Records its
+     * latency in {@link ContactLoaderStats}.
+     */
+    private abstract static class SubLoad implements Callable<Void> {
+        private final String mStage;
+
+        SubLoad(String stage) {
+            mStage = stage;
+        }
+
+        protected abstract void load() throws Exception;
+
+        @Override
+        public Void call() throws Exception {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                load();
+            } finally {
+                ContactLoaderStats.record(mStage, SystemClock.elapsedRealtime() - start);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a stage running on {@link #sSubLoadExecutor}, rethrowing its failure.
+     */
+    private static void awaitSubLoad(Future<Void> subLoad) throws Exception {
+        try {
+            subLoad.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
     /**
      * Parses a {@link Contact} stored as a JSON string in a lookup URI.
      *
@@ -385,100 +631,26 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     }
 
     private static Contact loadEncodedContactEntity(Uri uri, Uri lookupUri) throws JSONException {
-        final String jsonString = uri.getEncodedFragment();
-        final JSONObject json = new JSONObject(jsonString);
-
-        final long directoryId =
-                Long.valueOf(uri.getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY));
-
-        final String displayName = json.optString(Contacts.DISPLAY_NAME);
-        final String altDisplayName = json.optString(
-                Contacts.DISPLAY_NAME_ALTERNATIVE, displayName);
-        final int displayNameSource = json.getInt(Contacts.DISPLAY_NAME_SOURCE);
-        final String photoUri = json.optString(Contacts.PHOTO_URI, null);
-        final Contact contact = new Contact(
-                uri, uri,
-                lookupUri,
-                directoryId,
-                null /* lookupKey */,
-                -1 /* id */,
-                -1 /* nameRawContactId */,
-                displayNameSource,
-                0 /* photoId */,
-                photoUri,
-                displayName,
-                altDisplayName,
-                null /* phoneticName */,
-                false /* starred */,
-                null /* presence */,
-                false /* sendToVoicemail */,
-                null /* customRingtone */,
-                false /* isUserProfile */);
-
-        contact.setStatuses(new ImmutableMap.Builder<Long, DataStatus>().build());
-
-        final String accountName = json.optString(RawContacts.ACCOUNT_NAME, null);
-        final String directoryName = uri.getQueryParameter(Directory.DISPLAY_NAME);
-        if (accountName != null) {
-            final String accountType = json.getString(RawContacts.ACCOUNT_TYPE);
-            contact.setDirectoryMetaData(directoryName, null, accountName, accountType,
-                    json.optInt(Directory.EXPORT_SUPPORT,
-                            Directory.EXPORT_SUPPORT_SAME_ACCOUNT_ONLY));
-        } else {
-            contact.setDirectoryMetaData(directoryName, null, null, null,
-                    json.optInt(Directory.EXPORT_SUPPORT, Directory.EXPORT_SUPPORT_ANY_ACCOUNT));
-        }
-
-        final ContentValues values = new ContentValues();
-        values.put(Data._ID, -1);
-        values.put(Data.CONTACT_ID, -1);
-        final RawContact rawContact = new RawContact(values);
-
-        final JSONObject items = json.getJSONObject(Contacts.CONTENT_ITEM_TYPE);
-        final Iterator keys = items.keys();
-        while (keys.hasNext()) {
-            final String mimetype = (String) keys.next();
-
-            // Could be single object or array.
-            final JSONObject obj = items.optJSONObject(mimetype);
-            if (obj == null) {
-                final JSONArray array = items.getJSONArray(mimetype);
-                for (int i = 0; i < array.length(); i++) {
-                    final JSONObject item = array.getJSONObject(i);
-                    processOneRecord(rawContact, item, mimetype);
-                }
-            } else {
-                processOneRecord(rawContact, obj, mimetype);
-            }
-        }
-
-        contact.setRawContacts(new ImmutableList.Builder<RawContact>()
-                .add(rawContact)
-                .build());
-        return contact;
+        return EncodedContactParser.parse(uri, lookupUri);
     }
 
-    private static void processOneRecord(RawContact rawContact, JSONObject item, String mimetype)
-            throws JSONException {
-        final ContentValues itemValues = new ContentValues();
-        itemValues.put(Data.MIMETYPE, mimetype);
-        itemValues.put(Data._ID, -1);
-
-        final Iterator iterator = item.keys();
-        while (iterator.hasNext()) {
-            String name = (String) iterator.next();
-            final Object o = item.get(name);
-            if (o instanceof String) {
-                itemValues.put(name, (String) o);
-            } else if (o instanceof Integer) {
-                itemValues.put(name, (Integer) o);
+    /**
+     * Loads the contact from the provider.
+     *
+     * @param previous the contact that was loaded before from the same URI, or null. Only the
+     *     raw contacts whose version changed since are read in full; the values of the others
+     *     are copied, unless the contact was aggregated differently since. The previous contact
+     *     itself is not modified, as it may still be shown or cached.
+     */
+    private Contact loadContactEntity(ContentResolver resolver, Uri contactUri,
+            Contact previous) {
+        Uri entityUri = Uri.withAppendedPath(contactUri, Contacts.Entity.CONTENT_DIRECTORY);
+        if (previous != null) {
+            final Contact contact = reloadContactEntity(resolver, entityUri, contactUri, previous);
+            if (contact != null) {
+                return contact;
             }
         }
-        rawContact.addDataItemValues(itemValues);
-    }
-
-    private Contact loadContactEntity(ContentResolver resolver, Uri contactUri) {
-        Uri entityUri = Uri.withAppendedPath(contactUri, Contacts.Entity.CONTENT_DIRECTORY);
         Cursor cursor = resolver.query(entityUri, ContactQuery.COLUMNS, null, null,
                 Contacts.Entity.RAW_CONTACT_ID);
         if (cursor == null) {
@@ -497,88 +669,338 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
 
             // Fill in the raw contacts, which is wrapped in an Entity and any
             // status data.  Initially, result has empty entities and statuses.
-            long currentRawContactId = -1;
-            RawContact rawContact = null;
-            ImmutableList.Builder<RawContact> rawContactsBuilder =
-                    new ImmutableList.Builder<RawContact>();
+            final Map<Long, RawContact> rawContacts = Maps.newLinkedHashMap();
             ImmutableMap.Builder<Long, DataStatus> statusesBuilder =
                     new ImmutableMap.Builder<Long, DataStatus>();
+            loadRawContacts(cursor, rawContacts, statusesBuilder);
+            for (int i = 0; i < rawContacts.size(); i++) {
+                ContactLoaderStats.onRawContactLoaded(false);
+            }
+
+            contact.setRawContacts(ImmutableList.copyOf(rawContacts.values()));
+            contact.setStatuses(statusesBuilder.build());
+
+            return contact;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the raw contacts and statuses from the rows of a {@link ContactQuery} cursor,
+     * starting at its current row.
+     */
+    private static void loadRawContacts(Cursor cursor, Map<Long, RawContact> rawContacts,
+            ImmutableMap.Builder<Long, DataStatus> statusesBuilder) {
+        long currentRawContactId = -1;
+        RawContact rawContact = null;
+        do {
+            long rawContactId = cursor.getLong(ContactQuery.RAW_CONTACT_ID);
+            if (rawContactId != currentRawContactId) {
+                // First time to see this raw contact id, so create a new entity, and
+                // add it to the result's entities.
+                currentRawContactId = rawContactId;
+                rawContact = new RawContact(loadRawContactValues(cursor));
+                rawContacts.put(rawContactId, rawContact);
+            }
+            if (!cursor.isNull(ContactQuery.DATA_ID)) {
+                ContentValues data = loadDataValues(cursor);
+                rawContact.addDataItemValues(data);
+
+                if (!cursor.isNull(ContactQuery.PRESENCE)
+                        || !cursor.isNull(ContactQuery.STATUS)) {
+                    final DataStatus status = new DataStatus(cursor);
+                    final long dataId = cursor.getLong(ContactQuery.DATA_ID);
+                    statusesBuilder.put(dataId, status);
+                }
+            }
+        } while (cursor.moveToNext());
+    }
+
+    /**
+     * Loads the contact again after {@code previous} was loaded from the same URI. The versions
+     * of its raw contacts are queried first; then only the raw contacts whose version changed
+     * are read in full. Of the others, which are copied from {@code previous}, just the columns
+     * that are not covered by the version are read, together with the header data.
+     *
+     * @return the contact, or null if it has to be loaded in full, as when its raw contacts
+     *     changed or none of them can be reused.
+     */
+    private Contact reloadContactEntity(ContentResolver resolver, Uri entityUri, Uri contactUri,
+            Contact previous) {
+        final Map<Long, RawContact> unchanged = getUnchangedRawContacts(resolver, previous);
+        if (unchanged.isEmpty()) {
+            return null;
+        }
+        final List<Long> changedIds = Lists.newArrayList();
+        for (RawContact rawContact : previous.getRawContacts()) {
+            if (!unchanged.containsKey(rawContact.getId())) {
+                changedIds.add(rawContact.getId());
+            }
+        }
+
+        Contact contact = null;
+        // Sorted by id, as the raw contacts of a contact loaded in full are.
+        final Map<Long, RawContact> rawContacts = Maps.newTreeMap();
+        final ImmutableMap.Builder<Long, DataStatus> statusesBuilder =
+                new ImmutableMap.Builder<Long, DataStatus>();
+        if (!changedIds.isEmpty()) {
+            final Cursor cursor = queryRawContactEntities(resolver, entityUri,
+                    ContactQuery.COLUMNS, changedIds);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                contact = loadContactHeaderData(cursor, contactUri);
+                if (contact.getId() != previous.getId()) {
+                    return null;
+                }
+                loadRawContacts(cursor, rawContacts, statusesBuilder);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final Cursor cursor = queryRawContactEntities(resolver, entityUri,
+                UnversionedQuery.COLUMNS, unchanged.keySet());
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            if (contact == null) {
+                contact = loadContactHeaderData(cursor, contactUri);
+                if (contact.getId() != previous.getId()) {
+                    return null;
+                }
+            }
+            long currentRawContactId = -1;
+            RawContact rawContact = null;
+            Map<Long, ContentValues> previousDataValues = null;
             do {
-                long rawContactId = cursor.getLong(ContactQuery.RAW_CONTACT_ID);
+                long rawContactId = cursor.getLong(UnversionedQuery.RAW_CONTACT_ID);
                 if (rawContactId != currentRawContactId) {
-                    // First time to see this raw contact id, so create a new entity, and
-                    // add it to the result's entities.
                     currentRawContactId = rawContactId;
-                    rawContact = new RawContact(loadRawContactValues(cursor));
-                    rawContactsBuilder.add(rawContact);
+                    final RawContact previousRawContact = unchanged.get(rawContactId);
+                    if (previousRawContact == null) {
+                        return null;
+                    }
+                    rawContact = new RawContact(
+                            new ContentValues(previousRawContact.getValues()));
+                    previousDataValues = getDataValuesById(previousRawContact);
+                    rawContacts.put(rawContactId, rawContact);
                 }
-                if (!cursor.isNull(ContactQuery.DATA_ID)) {
-                    ContentValues data = loadDataValues(cursor);
+                if (!cursor.isNull(UnversionedQuery.DATA_ID)) {
+                    // Presence and usage are not covered by the version of the raw contact, so
+                    // they are read for reused raw contacts as well, as are the statuses.
+                    final long dataId = cursor.getLong(UnversionedQuery.DATA_ID);
+                    final ContentValues previousData = previousDataValues.get(dataId);
+                    if (previousData == null) {
+                        return null;
+                    }
+                    final ContentValues data = new ContentValues(previousData);
+                    UnversionedQuery.DATA_MAPPER.update(cursor, data);
                     rawContact.addDataItemValues(data);
 
-                    if (!cursor.isNull(ContactQuery.PRESENCE)
-                            || !cursor.isNull(ContactQuery.STATUS)) {
-                        final DataStatus status = new DataStatus(cursor);
-                        final long dataId = cursor.getLong(ContactQuery.DATA_ID);
-                        statusesBuilder.put(dataId, status);
+                    if (!cursor.isNull(UnversionedQuery.PRESENCE)
+                            || !cursor.isNull(UnversionedQuery.STATUS)) {
+                        statusesBuilder.put(dataId, new DataStatus(cursor));
                     }
                 }
             } while (cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+        if (rawContacts.size() != previous.getRawContacts().size()) {
+            // Raw contacts were joined or separated since their versions were queried.
+            return null;
+        }
 
-            contact.setRawContacts(rawContactsBuilder.build());
-            contact.setStatuses(statusesBuilder.build());
+        for (int i = 0; i < rawContacts.size(); i++) {
+            ContactLoaderStats.onRawContactLoaded(i < unchanged.size());
+        }
+        contact.setRawContacts(ImmutableList.copyOf(rawContacts.values()));
+        contact.setStatuses(statusesBuilder.build());
+        return contact;
+    }
 
-            return contact;
+    /**
+     * Returns the raw contacts of the previously loaded contact whose version did not change
+     * since, by id, or an empty map if the contact now has a different set of raw contacts or
+     * cannot be reloaded in part. Structural changes require a full reload.
+     */
+    private static Map<Long, RawContact> getUnchangedRawContacts(ContentResolver resolver,
+            Contact previous) {
+        if (!previous.isLoaded() || previous.getRawContacts() == null
+                || previous.getDirectoryId() != Directory.DEFAULT
+                || previous.isUserProfile()) {
+            return ImmutableMap.of();
+        }
+        final Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
+                RawContactVersionQuery.COLUMNS, RawContacts.CONTACT_ID + "=?",
+                new String[] { String.valueOf(previous.getId()) }, null);
+        if (cursor == null) {
+            return ImmutableMap.of();
+        }
+        final Map<Long, Long> versions = Maps.newHashMap();
+        try {
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getLong(RawContactVersionQuery._ID),
+                        cursor.getLong(RawContactVersionQuery.VERSION));
+            }
         } finally {
             cursor.close();
         }
+
+        final Map<Long, RawContact> unchanged = Maps.newHashMap();
+        for (RawContact rawContact : previous.getRawContacts()) {
+            final Long version = versions.remove(rawContact.getId());
+            if (version == null) {
+                return ImmutableMap.of();
+            }
+            if (version.equals(rawContact.getValues().getAsLong(RawContacts.VERSION))) {
+                unchanged.put(rawContact.getId(), rawContact);
+            }
+        }
+        return versions.isEmpty() ? unchanged : ImmutableMap.<Long, RawContact>of();
+    }
+
+    /**
+     * Queries the rows of the given raw contacts from the entity of a contact, sorted by raw
+     * contact.
+     */
+    private static Cursor queryRawContactEntities(ContentResolver resolver, Uri entityUri,
+            String[] projection, Collection<Long> rawContactIds) {
+        final StringBuilder selection = new StringBuilder(Contacts.Entity.RAW_CONTACT_ID)
+                .append(" IN (");
+        final String[] selectionArgs = new String[rawContactIds.size()];
+        int i = 0;
+        for (long rawContactId : rawContactIds) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i++] = String.valueOf(rawContactId);
+        }
+        selection.append(')');
+        return resolver.query(entityUri, projection, selection.toString(), selectionArgs,
+                Contacts.Entity.RAW_CONTACT_ID);
+    }
+
+    private static Map<Long, ContentValues> getDataValuesById(RawContact rawContact) {
+        final Map<Long, ContentValues> dataValues = Maps.newHashMap();
+        for (ContentValues values : rawContact.getContentValues()) {
+            dataValues.put(values.getAsLong(Data._ID), values);
+        }
+        return dataValues;
+    }
+
+    /**
+     * Takes over the photos of the previously loaded contact if the contact still has the same
+     * photo. A photo can be replaced in place, keeping its data id and URI, so the raw contact
+     * that the photo belongs to must not have changed either.
+     *
+     * @return whether the photos were taken over.
+     */
+    private static boolean reusePhoto(Contact contact, Contact previous) {
+        if (previous == null || !contact.isLoaded() || !previous.isLoaded()
+                || previous.getLazyPhotoBinaryData() == null
+                || previous.getPhotoId() != contact.getPhotoId()
+                || !TextUtils.equals(previous.getPhotoUri(), contact.getPhotoUri())) {
+            return false;
+        }
+        final long photoId = contact.getPhotoId();
+        if (photoId > 0) {
+            final Long version = getPhotoRawContactVersion(contact, photoId);
+            if (version == null
+                    || !version.equals(getPhotoRawContactVersion(previous, photoId))) {
+                return false;
+            }
+        }
+        contact.setThumbnailPhotoBinaryData(previous.getThumbnailPhotoBinaryData());
+        // Shares the large photo, whether or not it was read already.
+        contact.setPhotoBinaryData(previous.getLazyPhotoBinaryData());
+        return true;
     }
 
     /**
-     * Looks for the photo data item in entities. If found, a thumbnail will be stored. A larger
-     * photo will also be stored if available.
+     * Returns the version of the raw contact that has the photo with the given data id, or null
+     * if there is no such raw contact.
      */
-    private void loadPhotoBinaryData(Contact contactData) {
-        loadThumbnailBinaryData(contactData);
+    private static Long getPhotoRawContactVersion(Contact contact, long photoId) {
+        if (contact.getRawContacts() == null) {
+            return null;
+        }
+        for (RawContact rawContact : contact.getRawContacts()) {
+            for (ContentValues values : rawContact.getContentValues()) {
+                final Long dataId = values.getAsLong(Data._ID);
+                if (dataId != null && dataId == photoId) {
+                    return rawContact.getValues().getAsLong(RawContacts.VERSION);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets up the larger photo to be read from the photo URI if a loader asks for it, falling
+     * back to the thumbnail. Must be called after {@link #loadThumbnailBinaryData}, which looks
+     * for the thumbnail in the entities.
+     */
+    private void setPhotoBinaryDataSource(Contact contactData) {
+        final String photoUri = contactData.getPhotoUri();
+        final byte[] thumbnail = contactData.getThumbnailPhotoBinaryData();
+        if (photoUri == null) {
+            contactData.setPhotoBinaryData(thumbnail);
+            return;
+        }
+        contactData.setPhotoBinaryData(new Contact.LazyPhoto(
+                new PhotoSource(getContext().getApplicationContext(), photoUri, thumbnail)));
+    }
 
-        // Try to load the large photo from a file using the photo URI.
-        String photoUri = contactData.getPhotoUri();
-        if (photoUri != null) {
+    /**
+     * Reads the larger photo of a contact, which may have to be downloaded, on the thread of the
+     * {@link ContactLoaderStats#STAGE_PHOTO} stage of the first loader that asks for it.
+     */
+    private static final class PhotoSource implements Contact.LazyPhoto.Source {
+        private final Context mContext;
+        private final String mPhotoUri;
+        private final byte[] mThumbnail;
+
+        PhotoSource(Context context, String photoUri, byte[] thumbnail) {
+            mContext = context;
+            mPhotoUri = photoUri;
+            mThumbnail = thumbnail;
+        }
+
+        @Override
+        public byte[] load() {
+            final byte[] bytes = read();
+            // If we couldn't load from a file, fall back to the data blob.
+            return bytes != null ? bytes : mThumbnail;
+        }
+
+        private byte[] read() {
             try {
-                final InputStream inputStream;
-                final AssetFileDescriptor fd;
-                final Uri uri = Uri.parse(photoUri);
+                final Uri uri = Uri.parse(mPhotoUri);
                 final String scheme = uri.getScheme();
                 if ("http".equals(scheme) || "https".equals(scheme)) {
                     // Support HTTP urls that might come from extended directories
-                    inputStream = new URL(photoUri).openStream();
-                    fd = null;
-                } else {
-                    fd = getContext().getContentResolver().openAssetFileDescriptor(uri, "r");
-                    inputStream = fd.createInputStream();
-                }
-                byte[] buffer = new byte[16 * 1024];
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                try {
-                    int size;
-                    while ((size = inputStream.read(buffer)) != -1) {
-                        baos.write(buffer, 0, size);
-                    }
-                    contactData.setPhotoBinaryData(baos.toByteArray());
-                } finally {
-                    inputStream.close();
-                    if (fd != null) {
-                        fd.close();
+                    final InputStream inputStream = new URL(mPhotoUri).openStream();
+                    try {
+                        return ByteStreamUtil.toByteArray(inputStream, sPhotoBufferPool);
+                    } finally {
+                        inputStream.close();
                     }
                 }
-                return;
+                // Display photos declare their length and are read with a single copy.
+                return ByteStreamUtil.read(mContext.getContentResolver(), uri, sPhotoBufferPool);
             } catch (IOException ioe) {
-                // Just fall back to the case below.
+                return null;
             }
         }
-
-        // If we couldn't load from a file, fall back to the data blob.
-        contactData.setPhotoBinaryData(contactData.getThumbnailPhotoBinaryData());
     }
 
     private void loadThumbnailBinaryData(Contact contactData) {
@@ -641,22 +1063,35 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         final long directoryId = directoryParameter == null
                 ? Directory.DEFAULT
                 : Long.parseLong(directoryParameter);
-        final long contactId = cursor.getLong(ContactQuery.CONTACT_ID);
-        final String lookupKey = cursor.getString(ContactQuery.LOOKUP_KEY);
-        final long nameRawContactId = cursor.getLong(ContactQuery.NAME_RAW_CONTACT_ID);
-        final int displayNameSource = cursor.getInt(ContactQuery.DISPLAY_NAME_SOURCE);
-        final String displayName = cursor.getString(ContactQuery.DISPLAY_NAME);
-        final String altDisplayName = cursor.getString(ContactQuery.ALT_DISPLAY_NAME);
-        final String phoneticName = cursor.getString(ContactQuery.PHONETIC_NAME);
-        final long photoId = cursor.getLong(ContactQuery.PHOTO_ID);
-        final String photoUri = cursor.getString(ContactQuery.PHOTO_URI);
-        final boolean starred = cursor.getInt(ContactQuery.STARRED) != 0;
-        final Integer presence = cursor.isNull(ContactQuery.CONTACT_PRESENCE)
+        // Both ContactQuery and UnversionedQuery have the header columns, at different indices.
+        final long contactId = cursor.getLong(
+                cursor.getColumnIndexOrThrow(Contacts.Entity.CONTACT_ID));
+        final String lookupKey = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.LOOKUP_KEY));
+        final long nameRawContactId = cursor.getLong(
+                cursor.getColumnIndexOrThrow(Contacts.NAME_RAW_CONTACT_ID));
+        final int displayNameSource = cursor.getInt(
+                cursor.getColumnIndexOrThrow(Contacts.DISPLAY_NAME_SOURCE));
+        final String displayName = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.DISPLAY_NAME));
+        final String altDisplayName = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.DISPLAY_NAME_ALTERNATIVE));
+        final String phoneticName = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.PHONETIC_NAME));
+        final long photoId = cursor.getLong(cursor.getColumnIndexOrThrow(Contacts.PHOTO_ID));
+        final String photoUri = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.PHOTO_URI));
+        final boolean starred = cursor.getInt(cursor.getColumnIndexOrThrow(Contacts.STARRED)) != 0;
+        final int presenceColumn = cursor.getColumnIndexOrThrow(Contacts.CONTACT_PRESENCE);
+        final Integer presence = cursor.isNull(presenceColumn)
                 ? null
-                : cursor.getInt(ContactQuery.CONTACT_PRESENCE);
-        final boolean sendToVoicemail = cursor.getInt(ContactQuery.SEND_TO_VOICEMAIL) == 1;
-        final String customRingtone = cursor.getString(ContactQuery.CUSTOM_RINGTONE);
-        final boolean isUserProfile = cursor.getInt(ContactQuery.IS_USER_PROFILE) == 1;
+                : cursor.getInt(presenceColumn);
+        final boolean sendToVoicemail = cursor.getInt(
+                cursor.getColumnIndexOrThrow(Contacts.SEND_TO_VOICEMAIL)) == 1;
+        final String customRingtone = cursor.getString(
+                cursor.getColumnIndexOrThrow(Contacts.CUSTOM_RINGTONE));
+        final boolean isUserProfile = cursor.getInt(
+                cursor.getColumnIndexOrThrow(Contacts.IS_USER_PROFILE)) == 1;
 
         Uri lookupUri;
         if (directoryId == Directory.DEFAULT || directoryId == Directory.LOCAL_INVISIBLE) {
@@ -675,88 +1110,15 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     /**
      * Extracts RawContact level columns from the cursor.
      */
-    private ContentValues loadRawContactValues(Cursor cursor) {
-        ContentValues cv = new ContentValues();
-
-        cv.put(RawContacts._ID, cursor.getLong(ContactQuery.RAW_CONTACT_ID));
-
-        cursorColumnToContentValues(cursor, cv, ContactQuery.ACCOUNT_NAME);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.ACCOUNT_TYPE);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_SET);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DIRTY);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.VERSION);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.SOURCE_ID);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.SYNC1);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.SYNC2);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.SYNC3);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.SYNC4);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DELETED);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.CONTACT_ID);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.STARRED);
-
-        return cv;
+    private static ContentValues loadRawContactValues(Cursor cursor) {
+        return ContactQuery.RAW_CONTACT_MAPPER.map(cursor);
     }
 
     /**
      * Extracts Data level columns from the cursor.
      */
-    private ContentValues loadDataValues(Cursor cursor) {
-        ContentValues cv = new ContentValues();
-
-        cv.put(Data._ID, cursor.getLong(ContactQuery.DATA_ID));
-
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA1);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA2);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA3);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA4);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA5);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA6);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA7);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA8);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA9);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA10);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA11);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA12);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA13);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA14);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA15);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_SYNC1);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_SYNC2);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_SYNC3);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_SYNC4);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.DATA_VERSION);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.IS_PRIMARY);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.IS_SUPERPRIMARY);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.MIMETYPE);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.GROUP_SOURCE_ID);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.CHAT_CAPABILITY);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.TIMES_USED);
-        cursorColumnToContentValues(cursor, cv, ContactQuery.LAST_TIME_USED);
-        if (CompatUtils.isMarshmallowCompatible()) {
-            cursorColumnToContentValues(cursor, cv, ContactQuery.CARRIER_PRESENCE);
-        }
-
-        return cv;
-    }
-
-    private void cursorColumnToContentValues(
-            Cursor cursor, ContentValues values, int index) {
-        switch (cursor.getType(index)) {
-            case Cursor.FIELD_TYPE_NULL:
-                // don't put anything in the content values
-                break;
-            case Cursor.FIELD_TYPE_INTEGER:
-                values.put(ContactQuery.COLUMNS[index], cursor.getLong(index));
-                break;
-            case Cursor.FIELD_TYPE_STRING:
-                values.put(ContactQuery.COLUMNS[index], cursor.getString(index));
-                break;
-            case Cursor.FIELD_TYPE_BLOB:
-                values.put(ContactQuery.COLUMNS[index], cursor.getBlob(index));
-                break;
-            default:
-                throw new IllegalStateException("Invalid or unhandled data type");
-        }
+    private static ContentValues loadDataValues(Cursor cursor) {
+        return ContactQuery.DATA_MAPPER.map(cursor);
     }
 
     private void loadDirectoryMetaData(Contact result) {
@@ -796,93 +1158,25 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         }
     }
 
-    static private class AccountKey {
-        private final String mAccountName;
-        private final String mAccountType;
-        private final String mDataSet;
-
-        public AccountKey(String accountName, String accountType, String dataSet) {
-            mAccountName = accountName;
-            mAccountType = accountType;
-            mDataSet = dataSet;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(mAccountName, mAccountType, mDataSet);
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof AccountKey)) {
-                return false;
-            }
-            final AccountKey other = (AccountKey) obj;
-            return Objects.equals(mAccountName, other.mAccountName)
-                && Objects.equals(mAccountType, other.mAccountType)
-                && Objects.equals(mDataSet, other.mDataSet);
-        }
-    }
-
     /**
      * Loads groups meta-data for all groups associated with all constituent raw contacts'
      * accounts.
      */
     private void loadGroupMetaData(Contact result) {
-        StringBuilder selection = new StringBuilder();
-        ArrayList<String> selectionArgs = new ArrayList<String>();
-        final HashSet<AccountKey> accountsSeen = new HashSet<>();
+        final GroupMetaDataCache cache = GroupMetaDataCache.getInstance(getContext());
+        final HashSet<AccountWithDataSet> accountsSeen = new HashSet<>();
+        final ImmutableList.Builder<GroupMetaData> groupListBuilder =
+                new ImmutableList.Builder<GroupMetaData>();
         for (RawContact rawContact : result.getRawContacts()) {
             final String accountName = rawContact.getAccountName();
             final String accountType = rawContact.getAccountTypeString();
-            final String dataSet = rawContact.getDataSet();
-            final AccountKey accountKey = new AccountKey(accountName, accountType, dataSet);
-            if (accountName != null && accountType != null &&
-                    !accountsSeen.contains(accountKey)) {
-                accountsSeen.add(accountKey);
-                if (selection.length() != 0) {
-                    selection.append(" OR ");
-                }
-                selection.append(
-                        "(" + Groups.ACCOUNT_NAME + "=? AND " + Groups.ACCOUNT_TYPE + "=?");
-                selectionArgs.add(accountName);
-                selectionArgs.add(accountType);
-
-                if (dataSet != null) {
-                    selection.append(" AND " + Groups.DATA_SET + "=?");
-                    selectionArgs.add(dataSet);
-                } else {
-                    selection.append(" AND " + Groups.DATA_SET + " IS NULL");
-                }
-                selection.append(")");
+            if (accountName == null || accountType == null) {
+                continue;
             }
-        }
-        final ImmutableList.Builder<GroupMetaData> groupListBuilder =
-                new ImmutableList.Builder<GroupMetaData>();
-        final Cursor cursor = getContext().getContentResolver().query(Groups.CONTENT_URI,
-                GroupQuery.COLUMNS, selection.toString(), selectionArgs.toArray(new String[0]),
-                null);
-        if (cursor != null) {
-            try {
-                while (cursor.moveToNext()) {
-                    final String accountName = cursor.getString(GroupQuery.ACCOUNT_NAME);
-                    final String accountType = cursor.getString(GroupQuery.ACCOUNT_TYPE);
-                    final String dataSet = cursor.getString(GroupQuery.DATA_SET);
-                    final long groupId = cursor.getLong(GroupQuery.ID);
-                    final String title = cursor.getString(GroupQuery.TITLE);
-                    final boolean defaultGroup = cursor.isNull(GroupQuery.AUTO_ADD)
-                            ? false
-                            : cursor.getInt(GroupQuery.AUTO_ADD) != 0;
-                    final boolean favorites = cursor.isNull(GroupQuery.FAVORITES)
-                            ? false
-                            : cursor.getInt(GroupQuery.FAVORITES) != 0;
-
-                    groupListBuilder.add(new GroupMetaData(
-                                    accountName, accountType, dataSet, groupId, title, defaultGroup,
-                                    favorites));
-                }
-            } finally {
-                cursor.close();
+            final AccountWithDataSet account =
+                    new AccountWithDataSet(accountName, accountType, rawContact.getDataSet());
+            if (accountsSeen.add(account)) {
+                groupListBuilder.addAll(cache.getGroupMetaData(account));
             }
         }
         result.setGroupMetaData(groupListBuilder.build());
@@ -987,19 +1281,41 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     public void upgradeToFullContact() {
         // Everything requested already? Nothing to do, so let's bail out
         if (mLoadGroupMetaData && mLoadInvitableAccountTypes
-                && mPostViewNotification && mComputeFormattedPhoneNumber) return;
+                && mPostViewNotification && mComputeFormattedPhoneNumber
+                && mLoadPhotoBinaryData) return;
 
         mLoadGroupMetaData = true;
         mLoadInvitableAccountTypes = true;
         mPostViewNotification = true;
         mComputeFormattedPhoneNumber = true;
+        mLoadPhotoBinaryData = true;
 
         // Cache the current result, so that we only load the "missing" parts of the contact.
         cacheResult();
 
         // Our load parameters have changed, so let's pretend the data has changed. Its the same
-        // thing, essentially.
-        onContentChanged();
+        // thing, essentially. Unlike a real change, this keeps the cached result.
+        super.onContentChanged();
+    }
+
+    @Override
+    public void onContentChanged() {
+        // Do not let the reload pick up the outdated contact, whichever of the observers of the
+        // loader and of the cache is notified first.
+        ContactCache.getInstance(getContext()).remove(mLookupUri);
+        // Directory contacts are not loaded from the local provider, and always reload fully.
+        if (mContact != null && mContact.isLoaded() && !mContact.isDirectoryEntry()) {
+            mRefreshBase = mContact;
+        }
+        super.onContentChanged();
+    }
+
+    /**
+     * Sets the contact that the next load can reuse, as {@link #onContentChanged} does.
+     */
+    @VisibleForTesting
+    /* package */ void setRefreshBase(Contact contact) {
+        mRefreshBase = contact;
     }
 
     public Uri getLookupUri() {
@@ -1028,17 +1344,37 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         cancelLoad();
         unregisterObserver();
         mContact = null;
+        mRefreshBase = null;
     }
 
     /**
      * Caches the result, which is useful when we switch from activity to activity, using the same
-     * contact. If the next load is for a different contact, the cached result will be dropped
+     * contact. Loaded contacts are cached anyway; this makes sure that the current result is the
+     * most recently used one, so that it is the last to be dropped.
      */
     public void cacheResult() {
-        if (mContact == null || !mContact.isLoaded()) {
-            sCachedResult = null;
-        } else {
-            sCachedResult = mContact;
+        if (mContact != null && mContact.isLoaded()) {
+            ContactCache.getInstance(getContext())
+                    .put(copyContact(mContact.getRequestedUri(), mContact));
+        }
+    }
+
+    /**
+     * Returns a copy of {@code contact} with its own raw contacts. Contacts in the
+     * {@link ContactCache} are shared between loaders, which modify their data items (e.g. to add
+     * formatted phone numbers), so only copies are stored in and handed out of the cache.
+     */
+    @VisibleForTesting
+    static Contact copyContact(Uri requestedUri, Contact contact) {
+        final Contact copy = new Contact(requestedUri, contact);
+        final ImmutableList<RawContact> rawContacts = contact.getRawContacts();
+        if (rawContacts != null) {
+            final ImmutableList.Builder<RawContact> builder = ImmutableList.builder();
+            for (RawContact rawContact : rawContacts) {
+                builder.add(rawContact.copy());
+            }
+            copy.setRawContacts(builder.build());
         }
+        return copy;
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import com.android.contacts.common.util.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of the stages of {@link ContactLoader#loadInBackground()}, across all loaders of the
+ * process. All methods are thread-safe.
+ */
+public final class ContactLoaderStats {
+    /** Query of the contact entity, skipped for cached contacts. */
+    public static final String STAGE_ENTITY = "entity";
+    public static final String STAGE_DIRECTORY = "directory";
+    public static final String STAGE_GROUPS = "groups";
+    public static final String STAGE_PHONE_NUMBERS = "phoneNumbers";
+    /**
+     * Read of the display photo, which may involve a download. Only recorded for loaders that
+     * load the photo, and skipped when it was read already.
+     */
+    public static final String STAGE_PHOTO = "photo";
+    public static final String STAGE_INVITABLES = "invitables";
+    /** Whole load, from the start of the entity query until all stages are done. */
+    public static final String STAGE_TOTAL = "total";
+
+    private static final String[] STAGES = new String[] {
+            STAGE_ENTITY, STAGE_DIRECTORY, STAGE_GROUPS, STAGE_PHONE_NUMBERS, STAGE_PHOTO,
+            STAGE_INVITABLES, STAGE_TOTAL };
+
+    private static final Map<String, LatencyHistogram> sHistograms;
+
+    private static final AtomicLong sReusedRawContacts = new AtomicLong();
+    private static final AtomicLong sBuiltRawContacts = new AtomicLong();
+
+    static {
+        final Map<String, LatencyHistogram> histograms =
+                new LinkedHashMap<String, LatencyHistogram>();
+        for (String stage : STAGES) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+        sHistograms = histograms;
+    }
+
+    private ContactLoaderStats() {
+    }
+
+    static void record(String stage, long millis) {
+        sHistograms.get(stage).record(millis);
+    }
+
+    static void onRawContactLoaded(boolean reused) {
+        (reused ? sReusedRawContacts : sBuiltRawContacts).incrementAndGet();
+    }
+
+    /**
+     * Number of raw contacts taken over unchanged from the previous load of their contact, when
+     * the contact was reloaded after a change.
+     */
+    public static long getReusedRawContactCount() {
+        return sReusedRawContacts.get();
+    }
+
+    /** Number of raw contacts built from the rows of the contact entity. */
+    public static long getBuiltRawContactCount() {
+        return sBuiltRawContacts.get();
+    }
+
+    /**
+     * Returns the latency distribution of each stage, in the order in which the stages start.
+     */
+    public static Map<String, LatencyHistogram.Snapshot> snapshot() {
+        final Map<String, LatencyHistogram.Snapshot> snapshot =
+                new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : sHistograms.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+}
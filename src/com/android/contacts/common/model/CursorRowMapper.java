@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Copies a fixed set of columns of cursor rows into {@link ContentValues}, as the loaders store
+ * raw contacts and data items.
+ * <p>
+ * The keys and column indices are resolved once per projection rather than once per value, and
+ * every row is copied in a single pass into values that are sized up front, so that the map
+ * behind them is not grown and rehashed while the row is copied. Null columns are left out.
+ * Instances are immutable and can be shared across threads.
+ */
+/* package */ final class CursorRowMapper {
+    /** Load factor of the map behind {@link ContentValues}. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final String mIdKey;
+    private final int mIdColumn;
+    private final String[] mKeys;
+    private final int[] mColumns;
+    private final int mCapacity;
+
+    /**
+     * @param idKey key to store the id of the row under, which is never null.
+     * @param idColumn index of the id in the projection.
+     * @param projection projection of the cursor, which gives the keys of the other columns.
+     * @param columns indices of the other columns to copy.
+     */
+    CursorRowMapper(String idKey, int idColumn, String[] projection, int... columns) {
+        mIdKey = idKey;
+        mIdColumn = idColumn;
+        mColumns = columns.clone();
+        mKeys = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            mKeys[i] = projection[columns[i]];
+        }
+        mCapacity = (int) ((columns.length + 1) / LOAD_FACTOR) + 1;
+    }
+
+    /**
+     * Returns the indices in the given ranges, each given by its first index followed by the
+     * index after its last.
+     */
+    static int[] ranges(int... bounds) {
+        int count = 0;
+        for (int i = 0; i < bounds.length; i += 2) {
+            count += bounds[i + 1] - bounds[i];
+        }
+        final int[] columns = new int[count];
+        int next = 0;
+        for (int i = 0; i < bounds.length; i += 2) {
+            for (int column = bounds[i]; column < bounds[i + 1]; column++) {
+                columns[next++] = column;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Copies the current row of the cursor.
+     */
+    ContentValues map(Cursor cursor) {
+        final ContentValues values = new ContentValues(mCapacity);
+        values.put(mIdKey, cursor.getLong(mIdColumn));
+        copyColumns(cursor, values, false);
+        return values;
+    }
+
+    /**
+     * Overwrites the other columns in values copied before with those of the current row of the
+     * cursor, removing the keys of null columns. The id is left alone.
+     */
+    void update(Cursor cursor, ContentValues values) {
+        copyColumns(cursor, values, true);
+    }
+
+    private void copyColumns(Cursor cursor, ContentValues values, boolean removeNulls) {
+        final int[] columns = mColumns;
+        final String[] keys = mKeys;
+        for (int i = 0; i < columns.length; i++) {
+            final int column = columns[i];
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    // don't put anything in the content values
+                    if (removeNulls) {
+                        values.remove(keys[i]);
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(keys[i], cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values.put(keys[i], cursor.getString(column));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(keys[i], cursor.getBlob(column));
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid or unhandled data type");
+            }
+        }
+    }
+}
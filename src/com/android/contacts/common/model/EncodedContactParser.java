@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.RawContacts;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.android.contacts.common.util.DataStatus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * Decodes a {@link Contact} stored as JSON in the fragment of a lookup URI, as directories that
+ * do not store their contacts locally return them.
+ * <p>
+ * The JSON is read token by token with a lenient {@link JsonReader}, which accepts the same
+ * relaxed syntax as {@link JSONObject}. Each data item is built as soon as it is read, without
+ * first building a tree of the whole payload. Values are converted as {@link JSONObject}
+ * converts them: data items keep strings and integers that fit in an int, and drop other
+ * values.
+ */
+/* package */ final class EncodedContactParser {
+    /** Stands for an object or array found where a single value was expected. */
+    private static final Object NESTED = new Object();
+
+    /** Contact level keys that the parser keeps. */
+    private static final String[] HEADER_KEYS = new String[] {
+            Contacts.DISPLAY_NAME,
+            Contacts.DISPLAY_NAME_ALTERNATIVE,
+            Contacts.DISPLAY_NAME_SOURCE,
+            Contacts.PHOTO_URI,
+            RawContacts.ACCOUNT_NAME,
+            RawContacts.ACCOUNT_TYPE,
+            Directory.EXPORT_SUPPORT,
+    };
+
+    private EncodedContactParser() {
+    }
+
+    /**
+     * Decodes the contact in the fragment of the URI.
+     *
+     * @param uri the lookup URI holding the contact.
+     * @param lookupUri the lookup URI to give the contact.
+     * @throws JSONException if the fragment is not JSON, or lacks the required values.
+     */
+    static Contact parse(Uri uri, Uri lookupUri) throws JSONException {
+        final JsonReader reader = new JsonReader(new StringReader(uri.getEncodedFragment()));
+        reader.setLenient(true);
+        try {
+            return parse(reader, uri, lookupUri);
+        } catch (IOException | IllegalStateException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing to release for a string.
+            }
+        }
+    }
+
+    private static Contact parse(JsonReader reader, Uri uri, Uri lookupUri)
+            throws IOException, JSONException {
+        final Map<String, Object> header = Maps.newHashMap();
+        RawContact rawContact = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (Contacts.CONTENT_ITEM_TYPE.equals(name)) {
+                // As with JSONObject, the last occurrence of a key wins.
+                rawContact = readRawContact(reader);
+            } else if (isHeaderKey(name)) {
+                header.put(name, readValue(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        final long directoryId =
+                Long.valueOf(uri.getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY));
+
+        final String displayName = optString(header, Contacts.DISPLAY_NAME, "");
+        final String altDisplayName = optString(
+                header, Contacts.DISPLAY_NAME_ALTERNATIVE, displayName);
+        final int displayNameSource = getInt(header, Contacts.DISPLAY_NAME_SOURCE);
+        final String photoUri = optString(header, Contacts.PHOTO_URI, null);
+        final Contact contact = new Contact(
+                uri, uri,
+                lookupUri,
+                directoryId,
+                null /* lookupKey */,
+                -1 /* id */,
+                -1 /* nameRawContactId */,
+                displayNameSource,
+                0 /* photoId */,
+                photoUri,
+                displayName,
+                altDisplayName,
+                null /* phoneticName */,
+                false /* starred */,
+                null /* presence */,
+                false /* sendToVoicemail */,
+                null /* customRingtone */,
+                false /* isUserProfile */);
+
+        contact.setStatuses(new ImmutableMap.Builder<Long, DataStatus>().build());
+
+        final String accountName = optString(header, RawContacts.ACCOUNT_NAME, null);
+        final String directoryName = uri.getQueryParameter(Directory.DISPLAY_NAME);
+        if (accountName != null) {
+            final String accountType = getString(header, RawContacts.ACCOUNT_TYPE);
+            contact.setDirectoryMetaData(directoryName, null, accountName, accountType,
+                    optInt(header, Directory.EXPORT_SUPPORT,
+                            Directory.EXPORT_SUPPORT_SAME_ACCOUNT_ONLY));
+        } else {
+            contact.setDirectoryMetaData(directoryName, null, null, null,
+                    optInt(header, Directory.EXPORT_SUPPORT,
+                            Directory.EXPORT_SUPPORT_ANY_ACCOUNT));
+        }
+
+        if (rawContact == null) {
+            throw new JSONException("No value for " + Contacts.CONTENT_ITEM_TYPE);
+        }
+        contact.setRawContacts(new ImmutableList.Builder<RawContact>()
+                .add(rawContact)
+                .build());
+        return contact;
+    }
+
+    private static boolean isHeaderKey(String name) {
+        for (String key : HEADER_KEYS) {
+            if (key.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the data items, keyed by mimetype, each holding one item or an array of items.
+     */
+    private static RawContact readRawContact(JsonReader reader)
+            throws IOException, JSONException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JSONException(Contacts.CONTENT_ITEM_TYPE + " is not an object");
+        }
+        final ContentValues values = new ContentValues();
+        values.put(Data._ID, -1);
+        values.put(Data.CONTACT_ID, -1);
+        final RawContact rawContact = new RawContact(values);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String mimetype = reader.nextName();
+            // Could be single object or array.
+            final JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                readDataItem(reader, rawContact, mimetype);
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        throw new JSONException("Item of " + mimetype + " is not an object");
+                    }
+                    readDataItem(reader, rawContact, mimetype);
+                }
+                reader.endArray();
+            } else {
+                throw new JSONException(mimetype + " is not an object or array");
+            }
+        }
+        reader.endObject();
+        return rawContact;
+    }
+
+    private static void readDataItem(JsonReader reader, RawContact rawContact, String mimetype)
+            throws IOException {
+        final ContentValues itemValues = new ContentValues();
+        itemValues.put(Data.MIMETYPE, mimetype);
+        itemValues.put(Data._ID, -1);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            switch (reader.peek()) {
+                case STRING:
+                    itemValues.put(name, reader.nextString());
+                    break;
+                case NUMBER:
+                    final Object number = parseNumber(reader.nextString());
+                    if (number instanceof Integer) {
+                        itemValues.put(name, (Integer) number);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        rawContact.addDataItemValues(itemValues);
+    }
+
+    /**
+     * Reads a single value, as {@link JSONObject} would hold it.
+     */
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                reader.skipValue();
+                return NESTED;
+        }
+    }
+
+    /**
+     * Converts a number as {@link JSONObject} does: to an Integer if it is integral and fits,
+     * to a Long if it is integral, and to a Double otherwise.
+     */
+    private static Object parseNumber(String literal) {
+        if (literal.indexOf('.') == -1) {
+            try {
+                final long value = Long.parseLong(literal);
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // Has an exponent, or is too large for a long.
+            }
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            return literal;
+        }
+    }
+
+    private static String optString(Map<String, Object> header, String name, String fallback) {
+        final Object value = header.get(name);
+        return value == null || value == NESTED ? fallback : String.valueOf(value);
+    }
+
+    private static String getString(Map<String, Object> header, String name)
+            throws JSONException {
+        final String value = optString(header, name, null);
+        if (value == null) {
+            throw new JSONException("No string value for " + name);
+        }
+        return value;
+    }
+
+    /** Converts a value to an int as {@link JSONObject#optInt} does, or returns null. */
+    private static Integer toInteger(Object value) {
+        if (value instanceof Integer) {
+            return (Integer) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue();
+        } else if (value instanceof String) {
+            try {
+                return (int) Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static int optInt(Map<String, Object> header, String name, int fallback) {
+        final Integer value = toInteger(header.get(name));
+        return value == null ? fallback : value;
+    }
+
+    private static int getInt(Map<String, Object> header, String name) throws JSONException {
+        final Integer value = toInteger(header.get(name));
+        if (value == null) {
+            throw new JSONException("No int value for " + name);
+        }
+        return value;
+    }
+}
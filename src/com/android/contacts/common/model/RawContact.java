@@ -131,6 +131,18 @@ final public class RawContact implements Parcelable {
         return rawContact;
     }
 
+    /**
+     * Returns a copy of this raw contact whose values and data items can be modified without
+     * affecting this one.
+     */
+    public RawContact copy() {
+        final RawContact copy = new RawContact(new ContentValues(mValues));
+        for (NamedDataItem dataItem : mDataItems) {
+            copy.addNamedDataItemValues(dataItem.mUri, new ContentValues(dataItem.mContentValues));
+        }
+        return copy;
+    }
+
     /**
      * A RawContact object can be created with or without a context.
      */
@@ -21,8 +21,8 @@ import android.content.Context;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 
-import com.android.contacts.common.compat.PhoneNumberUtilsCompat;
 import com.android.contacts.common.model.dataitem.DataKind;
+import com.android.contacts.common.util.FormattedPhoneNumberCache;
 
 /**
  * Represents a phone data item, wrapping the columns in
@@ -58,8 +58,8 @@ public class PhoneDataItem extends DataItem {
     public void computeFormattedPhoneNumber(String defaultCountryIso) {
         final String phoneNumber = getNumber();
         if (phoneNumber != null) {
-            final String formattedPhoneNumber = PhoneNumberUtilsCompat.formatNumber(phoneNumber,
-                    getNormalizedNumber(), defaultCountryIso);
+            final String formattedPhoneNumber = FormattedPhoneNumberCache.getInstance().format(
+                    phoneNumber, getNormalizedNumber(), defaultCountryIso);
             getContentValues().put(KEY_FORMATTED_PHONE_NUMBER, formattedPhoneNumber);
         }
     }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps that are no longer displayed, bucketed by their allocation size, so
+ * that they can be reused as {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating a new bitmap for every decode. All methods are thread-safe.
+ */
+public class BitmapPool {
+    /** A pooled bitmap is only handed out if it is at most this many times larger than needed. */
+    private static final int MAX_OVERSIZE_FACTOR = 2;
+
+    private int mMaxSizeBytes;
+
+    /** Pooled bitmaps, keyed by {@link Bitmap#getAllocationByteCount()}. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayDeque<Bitmap>>();
+
+    /** Pooled bitmaps in the order they were added, used to evict the oldest bitmaps first. */
+    private final ArrayDeque<Bitmap> mInsertionOrder = new ArrayDeque<Bitmap>();
+
+    private int mSizeBytes;
+
+    private long mReuseCount;
+    private long mAllocationCount;
+    private long mPutCount;
+    private long mEvictionCount;
+
+    public BitmapPool(int maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns a pooled bitmap that can hold at least {@code width * height} pixels in the given
+     * config, or null if there is none. The returned bitmap is removed from the pool and its
+     * dimensions are unspecified; it is meant to be passed as
+     * {@link android.graphics.BitmapFactory.Options#inBitmap} or to be
+     * {@link Bitmap#reconfigure reconfigured} by the caller.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final int byteCount = width * height * getBytesPerPixel(config);
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(byteCount);
+        if (byteCount <= 0 || entry == null || entry.getKey() > byteCount * MAX_OVERSIZE_FACTOR) {
+            mAllocationCount++;
+            return null;
+        }
+        final Bitmap bitmap = removeFromBucket(entry.getKey(), entry.getValue());
+        mInsertionOrder.remove(bitmap);
+        mReuseCount++;
+        return bitmap;
+    }
+
+    /**
+     * Records that a bitmap returned by {@link #get} could not be reused after all, for example
+     * because the decoder rejected it, and a new bitmap had to be allocated instead.
+     */
+    public synchronized void onReuseFailed() {
+        mReuseCount--;
+        mAllocationCount++;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must guarantee that the bitmap is neither displayed
+     * nor referenced anywhere else. Immutable, recycled and oversized bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > mMaxSizeBytes) {
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            mBuckets.put(byteCount, bucket);
+        }
+        bucket.addLast(bitmap);
+        mInsertionOrder.addLast(bitmap);
+        mSizeBytes += byteCount;
+        mPutCount++;
+        trimToSize(mMaxSizeBytes);
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Changes the maximum size of the pool, dropping the oldest bitmaps if it shrinks.
+     */
+    public synchronized void resize(int maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+        trimToSize(maxSizeBytes);
+    }
+
+    /**
+     * Drops pooled bitmaps, oldest first, until the pool holds at most {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSizeBytes > maxSize && !mInsertionOrder.isEmpty()) {
+            final Bitmap bitmap = mInsertionOrder.removeFirst();
+            final int byteCount = bitmap.getAllocationByteCount();
+            final ArrayDeque<Bitmap> bucket = mBuckets.get(byteCount);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(byteCount);
+                }
+            }
+            mSizeBytes -= byteCount;
+            mEvictionCount++;
+        }
+    }
+
+    private Bitmap removeFromBucket(int byteCount, ArrayDeque<Bitmap> bucket) {
+        final Bitmap bitmap = bucket.removeLast();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(byteCount);
+        }
+        mSizeBytes -= byteCount;
+        return bitmap;
+    }
+
+    public synchronized int size() {
+        return mSizeBytes;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSizeBytes;
+    }
+
+    /** Number of pooled bitmaps. */
+    public synchronized int getBitmapCount() {
+        return mInsertionOrder.size();
+    }
+
+    /** Number of requests served with a pooled bitmap. */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /** Number of requests that required a new bitmap to be allocated. */
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /** Number of bitmaps returned to the pool. */
+    public synchronized long getPutCount() {
+        return mPutCount;
+    }
+
+    /** Number of pooled bitmaps dropped to keep the pool within its size. */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSizeBytes + "/" + mMaxSizeBytes
+                + ", bitmaps=" + mInsertionOrder.size()
+                + ", reused=" + mReuseCount + ", allocated=" + mAllocationCount
+                + ", put=" + mPutCount + ", evicted=" + mEvictionCount + "]";
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
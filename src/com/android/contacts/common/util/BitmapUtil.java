@@ -19,6 +19,7 @@ package com.android.contacts.common.util;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
@@ -89,6 +90,89 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size, decoding into a bitmap from the given pool
+     * if one of a suitable size is available. The result is mutable, so that it can be returned
+     * to the pool once it is no longer displayed.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, BitmapPool pool) {
+        return decodeBitmapFromBytes(bytes, bytes.length, sampleSize, pool);
+    }
+
+    /**
+     * Like {@link #decodeBitmapFromBytes(byte[], int, BitmapPool)}, for a photo held in the
+     * first {@code length} bytes of a possibly larger buffer.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int length, int sampleSize,
+            BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (pool == null) {
+            options.inSampleSize = Math.max(1, sampleSize);
+            return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        }
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = Math.max(1, sampleSize);
+        // Round up, so that the pooled bitmap is large enough regardless of how the decoder
+        // rounds the sampled dimensions.
+        final int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        final Bitmap reusable = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (reusable != null) {
+            options.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder could not reuse the bitmap; fall back to a new allocation.
+                options.inBitmap = null;
+                pool.onReuseFailed();
+                pool.put(reusable);
+            }
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+    }
+
+    /**
+     * Crops the given bitmap to a centered square, drawing into a bitmap from the given pool if
+     * one of a suitable size is available. The input bitmap is returned to the pool, so the
+     * caller must not use it afterwards.
+     */
+    public static Bitmap cropToCenterSquare(Bitmap input, BitmapPool pool) {
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        final int dimension = Math.min(width, height);
+        final Bitmap.Config config = Bitmap.Config.ARGB_8888;
+
+        Bitmap result = pool.get(dimension, dimension, config);
+        if (result != null) {
+            try {
+                result.reconfigure(dimension, dimension, config);
+                result.eraseColor(Color.TRANSPARENT);
+            } catch (IllegalArgumentException e) {
+                pool.onReuseFailed();
+                pool.put(result);
+                result = null;
+            }
+        }
+        if (result == null) {
+            result = Bitmap.createBitmap(dimension, dimension, config);
+        }
+
+        final int left = (width - dimension) / 2;
+        final int top = (height - dimension) / 2;
+        final Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(input, new Rect(left, top, left + dimension, top + dimension),
+                new Rect(0, 0, dimension, dimension), null);
+        pool.put(input);
+        return result;
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed-size scratch buffers for stream copies, so that concurrent readers do not
+ * allocate a new buffer for every stream. All methods are thread-safe.
+ */
+public class ByteArrayPool {
+    private final int mBufferSize;
+    private final int mMaxPooledBuffers;
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<byte[]>();
+
+    private long mReuseCount;
+    private long mAllocationCount;
+
+    public ByteArrayPool(int bufferSize, int maxPooledBuffers) {
+        mBufferSize = bufferSize;
+        mMaxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns a buffer of {@link #getBufferSize()} bytes. Its contents are unspecified. The
+     * buffer should be handed back with {@link #release} once the caller is done with it.
+     */
+    public synchronized byte[] acquire() {
+        final byte[] buffer = mBuffers.pollLast();
+        if (buffer != null) {
+            mReuseCount++;
+            return buffer;
+        }
+        mAllocationCount++;
+        return new byte[mBufferSize];
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire} to the pool. Buffers of a different size
+     * and buffers beyond the pool's capacity are dropped.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize
+                || mBuffers.size() >= mMaxPooledBuffers) {
+            return;
+        }
+        mBuffers.addLast(buffer);
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public synchronized void clear() {
+        mBuffers.clear();
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /** Number of requests served with a pooled buffer. */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /** Number of requests that required a new buffer to be allocated. */
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ByteArrayPool[bufferSize=" + mBufferSize
+                + ", pooled=" + mBuffers.size() + "/" + mMaxPooledBuffers
+                + ", reused=" + mReuseCount + ", allocated=" + mAllocationCount + "]";
+    }
+}
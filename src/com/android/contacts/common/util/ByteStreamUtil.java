@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads whole streams, such as photos, into byte arrays with as few copies as possible.
+ * <p>
+ * When the length of the data is known up front, it is read straight into an array of the
+ * right size. Otherwise it is read into pooled chunks, which are copied once into the result;
+ * unlike a {@link java.io.ByteArrayOutputStream}, this never grows and copies a buffer.
+ */
+public final class ByteStreamUtil {
+    /** Declared lengths above this are not trusted to allocate an array up front. */
+    private static final long MAX_PRESIZED_LENGTH = 16 * 1024 * 1024;
+
+    private ByteStreamUtil() {
+    }
+
+    /**
+     * Reads the content at the given URI. Local files and the photo files of the contacts
+     * provider are read with a single copy, as their length is known: it is declared by the
+     * provider, or taken from the size of the file.
+     *
+     * @return the content, or null if the URI could not be opened.
+     */
+    public static byte[] read(ContentResolver resolver, Uri uri, ByteArrayPool pool)
+            throws IOException {
+        final AssetFileDescriptor fd = resolver.openAssetFileDescriptor(uri, "r");
+        if (fd == null) {
+            return null;
+        }
+        try {
+            return read(fd, pool);
+        } finally {
+            fd.close();
+        }
+    }
+
+    /**
+     * Reads the content of the given file descriptor, which the caller remains responsible
+     * for closing.
+     */
+    public static byte[] read(AssetFileDescriptor fd, ByteArrayPool pool) throws IOException {
+        final InputStream in = fd.createInputStream();
+        try {
+            final long length = getLength(fd);
+            if (length != AssetFileDescriptor.UNKNOWN_LENGTH && length <= MAX_PRESIZED_LENGTH) {
+                return readFully(in, (int) length);
+            }
+            return toByteArray(in, pool);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the length of the content of the given file descriptor, or
+     * {@link AssetFileDescriptor#UNKNOWN_LENGTH}. Descriptors of whole files, such as those
+     * opened for file URIs, do not declare their length, which is then the size of the file.
+     */
+    private static long getLength(AssetFileDescriptor fd) {
+        final long length = fd.getLength();
+        if (length != AssetFileDescriptor.UNKNOWN_LENGTH || fd.getStartOffset() != 0) {
+            return length;
+        }
+        // Pipes and sockets have no size.
+        final long statSize = fd.getParcelFileDescriptor().getStatSize();
+        return statSize >= 0 ? statSize : AssetFileDescriptor.UNKNOWN_LENGTH;
+    }
+
+    /**
+     * Reads exactly {@code length} bytes from the stream.
+     *
+     * @throws IOException if the stream ends early.
+     */
+    public static byte[] readFully(InputStream in, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int read = in.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new IOException("Unexpected end of stream after " + offset + " of "
+                        + length + " bytes");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the stream to its end through buffers from the given pool. The stream is not
+     * closed.
+     */
+    public static byte[] toByteArray(InputStream in, ByteArrayPool pool) throws IOException {
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        try {
+            int total = 0;
+            byte[] chunk = null;
+            int chunkOffset = 0;
+            while (true) {
+                if (chunk == null || chunkOffset == chunk.length) {
+                    chunk = pool.acquire();
+                    chunks.add(chunk);
+                    chunkOffset = 0;
+                }
+                final int read = in.read(chunk, chunkOffset, chunk.length - chunkOffset);
+                if (read == -1) {
+                    break;
+                }
+                chunkOffset += read;
+                total += read;
+            }
+
+            final byte[] bytes = new byte[total];
+            int offset = 0;
+            for (byte[] c : chunks) {
+                final int count = Math.min(c.length, total - offset);
+                System.arraycopy(c, 0, bytes, offset, count);
+                offset += count;
+            }
+            return bytes;
+        } finally {
+            for (byte[] c : chunks) {
+                pool.release(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.contacts.common.compat.PhoneNumberUtilsCompat;
+import com.android.contacts.common.location.CountryDetector;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Objects;
+
+/**
+ * Process-wide LRU cache of phone numbers formatted for display, so that numbers are not
+ * formatted again on every reload of a contact, nor for every contact that shares them.
+ * <p>
+ * Entries are keyed by the number as entered and its E164 form. The cache holds numbers for
+ * a single country, the one returned by {@link CountryDetector#getCurrentCountryIso()}; when a
+ * number is formatted for another country, which happens when the detected country changes,
+ * all entries are dropped. All methods are thread-safe.
+ */
+public final class FormattedPhoneNumberCache {
+    private static final int MAX_SIZE = 500;
+
+    /**
+     * Stands for numbers that cannot be formatted, since the cache cannot hold null. Formatting
+     * never yields an empty number otherwise.
+     */
+    private static final String NOT_FORMATTED = "";
+
+    private static final FormattedPhoneNumberCache sInstance =
+            new FormattedPhoneNumberCache(MAX_SIZE);
+
+    private static final class Key {
+        final String number;
+        final String numberE164;
+
+        Key(String number, String numberE164) {
+            this.number = number;
+            this.numberE164 = numberE164;
+        }
+
+        @Override
+        public int hashCode() {
+            return number.hashCode() * 31 + (numberE164 == null ? 0 : numberE164.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return number.equals(other.number) && Objects.equals(numberE164, other.numberE164);
+        }
+    }
+
+    private final LruCache<Key, String> mCache;
+
+    /** Country the cached numbers were formatted for. Guarded by this. */
+    private String mCountryIso;
+    private long mCountryChangeCount;
+
+    public static FormattedPhoneNumberCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    FormattedPhoneNumberCache(int maxSize) {
+        mCache = new LruCache<Key, String>(maxSize);
+    }
+
+    /**
+     * Returns the number formatted for display, as
+     * {@link PhoneNumberUtilsCompat#formatNumber(String, String, String)} formats it, or null if
+     * it cannot be formatted.
+     *
+     * @param number the number as entered.
+     * @param numberE164 the number in E164 format, or null.
+     * @param countryIso the current country, as returned by {@link CountryDetector}.
+     */
+    public String format(String number, String numberE164, String countryIso) {
+        if (number == null) {
+            return null;
+        }
+        final Key key = new Key(number, numberE164);
+        String formatted;
+        // Look up the number under the same lock as the country check, so that another thread
+        // cannot switch countries in between and leave a number formatted for it to be found.
+        synchronized (this) {
+            onCountryIso(countryIso);
+            formatted = mCache.get(key);
+        }
+        if (formatted == null) {
+            formatted = PhoneNumberUtilsCompat.formatNumber(number, numberE164, countryIso);
+            if (formatted == null) {
+                formatted = NOT_FORMATTED;
+            }
+            // Do not cache a number formatted for a country that is no longer current.
+            synchronized (this) {
+                if (TextUtils.equals(countryIso, mCountryIso)) {
+                    mCache.put(key, formatted);
+                }
+            }
+        }
+        return formatted.isEmpty() ? null : formatted;
+    }
+
+    /** Drops all entries if the country changed. Must be called with this held. */
+    private void onCountryIso(String countryIso) {
+        if (!TextUtils.equals(countryIso, mCountryIso)) {
+            if (mCountryIso != null) {
+                mCountryChangeCount++;
+            }
+            mCountryIso = countryIso;
+            mCache.evictAll();
+        }
+    }
+
+    /** Number of lookups that found the formatted number cached. */
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /** Number of lookups that had to format the number. */
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /** Returns the share of lookups that found the formatted number cached, between 0 and 1. */
+    public float getHitRate() {
+        final int hits = hitCount();
+        final int lookups = hits + missCount();
+        return lookups == 0 ? 0f : (float) hits / lookups;
+    }
+
+    /** Number of times the cache was cleared because the current country changed. */
+    public synchronized long countryChangeCount() {
+        return mCountryChangeCount;
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FormattedPhoneNumberCache[size=" + size() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", countryChanges=" + countryChangeCount() + "]";
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in milliseconds with exponentially growing buckets: the first bucket
+ * holds durations below 1ms, bucket {@code i} holds durations in {@code [2^(i-1), 2^i)} and the
+ * last bucket everything from {@code 2^(BUCKET_COUNT-2)} ms on. Recording is lock-free and
+ * thread-safe.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 16;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSumMillis = new AtomicLong();
+    private final AtomicLong mMaxMillis = new AtomicLong();
+
+    /**
+     * Records one duration. Negative durations are recorded as 0.
+     */
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mCounts.incrementAndGet(getBucket(millis));
+        mSumMillis.addAndGet(millis);
+        long max;
+        while (millis > (max = mMaxMillis.get())) {
+            if (mMaxMillis.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a consistent-enough copy of the histogram for reporting. Durations recorded while
+     * the snapshot is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mSumMillis.get(), mMaxMillis.get());
+    }
+
+    /**
+     * Returns the index of the bucket holding the given duration.
+     */
+    public static int getBucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        final int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the exclusive upper bound of the given bucket in milliseconds, or
+     * {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /** Immutable copy of a {@link LatencyHistogram}. */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSumMillis;
+        private final long mMaxMillis;
+
+        private Snapshot(long[] counts, long sumMillis, long maxMillis) {
+            mCounts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCount = count;
+            mSumMillis = sumMillis;
+            mMaxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getBucketCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        public long getMeanMillis() {
+            return mCount == 0 ? 0 : mSumMillis / mCount;
+        }
+
+        public long getMaxMillis() {
+            return mMaxMillis;
+        }
+
+        /**
+         * Returns an upper bound for the given percentile (0 to 100) of the recorded durations:
+         * the upper bound of the bucket it falls in, capped at the maximum recorded duration.
+         */
+        public long getPercentileMillis(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBound(i), mMaxMillis);
+                }
+            }
+            return mMaxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + getMeanMillis() + "ms"
+                    + " p50<=" + getPercentileMillis(50) + "ms"
+                    + " p90<=" + getPercentileMillis(90) + "ms"
+                    + " p99<=" + getPercentileMillis(99) + "ms"
+                    + " max=" + mMaxMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link CompressedPhotoStore}.
+ */
+@SmallTest
+public class CompressedPhotoStoreTest extends AndroidTestCase {
+    private static final int CHUNK = CompressedPhotoStore.CHUNK_SIZE;
+    private static final int SLAB = CompressedPhotoStore.SLAB_SIZE;
+
+    public void testReadsBackPhoto() {
+        final CompressedPhotoStore store = new CompressedPhotoStore(SLAB);
+        final byte[] bytes = createBytes(CHUNK * 3 + 17, 1);
+        final CompressedPhotoStore.Allocation allocation = store.allocate(bytes);
+
+        final byte[] buffer = new byte[bytes.length + 100];
+        assertTrue(allocation.read(buffer));
+        assertTrue(Arrays.equals(bytes, Arrays.copyOf(buffer, bytes.length)));
+        assertEquals(bytes.length, allocation.getLength());
+        assertEquals(CHUNK * 4, allocation.getSize());
+        assertEquals(CHUNK * 4, store.size());
+    }
+
+    public void testReleasedAllocationCannotBeRead() {
+        final CompressedPhotoStore store = new CompressedPhotoStore(SLAB);
+        final CompressedPhotoStore.Allocation allocation = store.allocate(createBytes(100, 1));
+        allocation.release();
+        allocation.release();
+
+        assertFalse(allocation.read(new byte[100]));
+        assertEquals(0, store.size());
+        assertEquals(0, store.allocationCount());
+    }
+
+    public void testFailsWhenFull() {
+        final CompressedPhotoStore store = new CompressedPhotoStore(SLAB);
+        assertNotNull(store.allocate(new byte[SLAB - CHUNK]));
+        assertNull(store.allocate(new byte[CHUNK + 1]));
+        assertEquals(1, store.failedAllocationCount());
+        assertNotNull(store.allocate(new byte[CHUNK]));
+    }
+
+    public void testReusesFreedChunksAcrossSlabs() {
+        final CompressedPhotoStore store = new CompressedPhotoStore(SLAB * 2);
+        final List<CompressedPhotoStore.Allocation> allocations =
+                new ArrayList<CompressedPhotoStore.Allocation>();
+        for (int i = 0; i < 2 * SLAB / CHUNK; i++) {
+            allocations.add(store.allocate(createBytes(CHUNK, i)));
+        }
+        // Free every other chunk, so that no two free chunks are adjacent.
+        for (int i = 0; i < allocations.size(); i += 2) {
+            allocations.get(i).release();
+        }
+
+        final byte[] bytes = createBytes(SLAB, 7);
+        final CompressedPhotoStore.Allocation allocation = store.allocate(bytes);
+        assertNotNull(allocation);
+        final byte[] buffer = new byte[bytes.length];
+        assertTrue(allocation.read(buffer));
+        assertTrue(Arrays.equals(bytes, buffer));
+
+        final byte[] other = new byte[CHUNK];
+        assertTrue(allocations.get(1).read(other));
+        assertTrue(Arrays.equals(createBytes(CHUNK, 1), other));
+    }
+
+    public void testShrinkingDropsEmptySlabs() {
+        final CompressedPhotoStore store = new CompressedPhotoStore(SLAB * 2);
+        final CompressedPhotoStore.Allocation first = store.allocate(new byte[SLAB]);
+        final CompressedPhotoStore.Allocation second = store.allocate(new byte[SLAB]);
+        assertEquals(SLAB * 2, store.residentSize());
+
+        store.resize(SLAB);
+        assertEquals(SLAB * 2, store.residentSize());
+        second.release();
+        assertEquals(SLAB, store.residentSize());
+        assertEquals(1, store.droppedSlabCount());
+
+        assertNull(store.allocate(new byte[CHUNK]));
+        first.release();
+        assertNotNull(store.allocate(new byte[CHUNK]));
+    }
+
+    private static byte[] createBytes(int length, int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactPhotoCacheSizePolicy}.
+ */
+@SmallTest
+public class ContactPhotoCacheSizePolicyTest extends AndroidTestCase {
+    private static final int NOMINAL_SIZE = 1000000;
+    private static final float DELTA = 0.001f;
+
+    public void testBaseScaleFollowsMemoryClass() {
+        assertEquals(1f, ContactPhotoCacheSizePolicy.computeBaseScale(128, false), DELTA);
+        assertEquals(0.75f, ContactPhotoCacheSizePolicy.computeBaseScale(96, false), DELTA);
+        assertEquals(ContactPhotoCacheSizePolicy.MIN_BASE_SCALE,
+                ContactPhotoCacheSizePolicy.computeBaseScale(16, false), DELTA);
+        assertEquals(ContactPhotoCacheSizePolicy.MAX_BASE_SCALE,
+                ContactPhotoCacheSizePolicy.computeBaseScale(512, false), DELTA);
+    }
+
+    public void testLowRamDeviceGetsMinimumScale() {
+        assertEquals(ContactPhotoCacheSizePolicy.MIN_BASE_SCALE,
+                ContactPhotoCacheSizePolicy.computeBaseScale(512, true), DELTA);
+    }
+
+    public void testShrinksStepwise() {
+        final ContactPhotoCacheSizePolicy policy = new ContactPhotoCacheSizePolicy(128, false);
+        assertEquals(NOMINAL_SIZE, policy.getSize(NOMINAL_SIZE));
+        assertFalse(policy.isShrunk());
+
+        assertTrue(policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        final int moderate = policy.getSize(NOMINAL_SIZE);
+        assertTrue(moderate < NOMINAL_SIZE);
+        assertTrue(policy.isShrunk());
+
+        assertTrue(policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        final int critical = policy.getSize(NOMINAL_SIZE);
+        assertTrue(critical < moderate);
+
+        assertTrue(policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        final int complete = policy.getSize(NOMINAL_SIZE);
+        assertTrue(complete < critical);
+        assertTrue(complete > 0);
+    }
+
+    public void testLowerLevelDoesNotGrowCaches() {
+        final ContactPhotoCacheSizePolicy policy = new ContactPhotoCacheSizePolicy(128, false);
+        policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        final int size = policy.getSize(NOMINAL_SIZE);
+
+        assertFalse(policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(size, policy.getSize(NOMINAL_SIZE));
+    }
+
+    public void testRegrowsOneStepAtATime() {
+        final ContactPhotoCacheSizePolicy policy = new ContactPhotoCacheSizePolicy(128, false);
+        policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        int previous = policy.getSize(NOMINAL_SIZE);
+        int steps = 0;
+        while (policy.regrow()) {
+            final int size = policy.getSize(NOMINAL_SIZE);
+            assertTrue(size > previous);
+            previous = size;
+            steps++;
+        }
+        assertTrue(steps > 1);
+        assertFalse(policy.isShrunk());
+        assertEquals(NOMINAL_SIZE, policy.getSize(NOMINAL_SIZE));
+    }
+
+    public void testOnlyCompleteClearsCaches() {
+        assertTrue(ContactPhotoCacheSizePolicy.shouldClear(
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        assertFalse(ContactPhotoCacheSizePolicy.shouldClear(
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertFalse(ContactPhotoCacheSizePolicy.shouldClear(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+    }
+
+    public void testUiHiddenShrinksLessThanRunningCritical() {
+        assertTrue(ContactPhotoCacheSizePolicy.getStepForTrimLevel(
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+                < ContactPhotoCacheSizePolicy.getStepForTrimLevel(
+                        ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+    }
+}
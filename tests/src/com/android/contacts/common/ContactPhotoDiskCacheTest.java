@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactPhotoDiskCache}.
+ */
+@SmallTest
+public class ContactPhotoDiskCacheTest extends AndroidTestCase {
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "ContactPhotoDiskCacheTest");
+        new ContactPhotoDiskCache(mCacheDir, 800).evictAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ContactPhotoDiskCache(mCacheDir, 800).evictAll();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        final byte[] bytes = createBytes(50, (byte) 1);
+        cache.put(1L, bytes);
+
+        final ContactPhotoDiskCache.Result result = cache.get(1L);
+        assertNotNull(result);
+        assertTrue(result.fresh);
+        assertTrue(Arrays.equals(bytes, result.bytes));
+        assertNull(cache.get(2L));
+    }
+
+    public void testSurvivesNewInstance() {
+        final Uri uri = Uri.parse("http://example.com/photo.jpg");
+        new ContactPhotoDiskCache(mCacheDir, 800).put(uri, createBytes(50, (byte) 2));
+
+        final ContactPhotoDiskCache.Result result =
+                new ContactPhotoDiskCache(mCacheDir, 800).get(uri);
+        assertNotNull(result);
+        assertEquals(50, result.bytes.length);
+    }
+
+    public void testRestoredEntriesAreStale() {
+        new ContactPhotoDiskCache(mCacheDir, 800).put(1L, createBytes(50, (byte) 1));
+
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        assertFalse(cache.get(1L).fresh);
+
+        cache.markFresh(1L);
+        assertTrue(cache.get(1L).fresh);
+    }
+
+    public void testRestoresVersion() {
+        new ContactPhotoDiskCache(mCacheDir, 800).put(1L, createBytes(50, (byte) 1), 7);
+        new ContactPhotoDiskCache(mCacheDir, 800).put(2L, createBytes(50, (byte) 2));
+
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        final ContactPhotoDiskCache.Result result = cache.get(1L);
+        assertEquals(7, result.version);
+        assertTrue(Arrays.equals(createBytes(50, (byte) 1), result.bytes));
+        assertEquals(ContactPhotoDiskCache.NO_VERSION, cache.get(2L).version);
+        assertEquals(100, cache.size());
+    }
+
+    public void testCountersDoNotReadDirectory() {
+        new ContactPhotoDiskCache(mCacheDir, 800).put(1L, createBytes(50, (byte) 1));
+
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        assertEquals(0, cache.entryCount());
+        assertEquals(0, cache.size());
+
+        cache.get(1L);
+        assertEquals(1, cache.entryCount());
+        assertEquals(50, cache.size());
+        assertEquals(1, cache.hitCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        cache.put(1L, createBytes(100, (byte) 1));
+        cache.put(2L, createBytes(100, (byte) 2));
+        cache.get(1L);
+        for (long id = 3; id <= 9; id++) {
+            cache.put(id, createBytes(100, (byte) id));
+        }
+
+        assertTrue(cache.size() <= 800);
+        assertNotNull(cache.get(1L));
+        assertNull(cache.get(2L));
+    }
+
+    public void testIgnoresOversizedEntries() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        cache.put(1L, createBytes(101, (byte) 1));
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.size());
+    }
+
+    public void testInvalidateMarksEntriesStale() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        cache.put(1L, createBytes(50, (byte) 1));
+        cache.invalidate();
+        assertFalse(cache.get(1L).fresh);
+
+        cache.put(1L, createBytes(50, (byte) 1));
+        assertTrue(cache.get(1L).fresh);
+    }
+
+    public void testRemove() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mCacheDir, 800);
+        cache.put(1L, createBytes(50, (byte) 1));
+        cache.remove(1L);
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.size());
+    }
+
+    private static byte[] createBytes(int length, byte value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}
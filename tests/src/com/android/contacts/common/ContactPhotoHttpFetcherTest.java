@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.contacts.common.util.ByteArrayPool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ContactPhotoHttpFetcher}, run against a small HTTP server in the test
+ * process.
+ */
+@MediumTest
+public class ContactPhotoHttpFetcherTest extends AndroidTestCase {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Fri, 01 Jan 2016 00:00:00 GMT";
+    private static final byte[] PHOTO = createBytes(20000);
+
+    private TestServer mServer;
+    private File mValidatorFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestServer();
+        mValidatorFile = new File(getContext().getCacheDir(), "ContactPhotoHttpFetcherTest");
+        mValidatorFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mValidatorFile.delete();
+        super.tearDown();
+    }
+
+    public void testDownloadsPhoto() throws Exception {
+        final ContactPhotoHttpFetcher.Result result =
+                createFetcher(2).fetch(mServer.url("/photo"), false);
+        assertFalse(result.isNotModified());
+        assertTrue(Arrays.equals(PHOTO, result.bytes));
+    }
+
+    public void testDownloadsPhotoOfUnknownLength() throws Exception {
+        final ContactPhotoHttpFetcher.Result result =
+                createFetcher(2).fetch(mServer.url("/chunked"), false);
+        assertTrue(Arrays.equals(PHOTO, result.bytes));
+    }
+
+    public void testRevalidatesCachedCopy() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        fetcher.fetch(mServer.url("/photo"), false);
+
+        final ContactPhotoHttpFetcher.Result result = fetcher.fetch(mServer.url("/photo"), true);
+        assertTrue(result.isNotModified());
+        assertEquals(ETAG, mServer.lastRequestHeaders.get("if-none-match"));
+        assertEquals(LAST_MODIFIED, mServer.lastRequestHeaders.get("if-modified-since"));
+        assertEquals(1, fetcher.getNotModifiedCount());
+    }
+
+    public void testDoesNotRevalidateWithoutCachedCopy() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        fetcher.fetch(mServer.url("/photo"), false);
+
+        final ContactPhotoHttpFetcher.Result result = fetcher.fetch(mServer.url("/photo"), false);
+        assertFalse(result.isNotModified());
+        assertNull(mServer.lastRequestHeaders.get("if-none-match"));
+    }
+
+    public void testValidatorsSurviveRestart() throws Exception {
+        final ContactPhotoValidatorStore validators =
+                new ContactPhotoValidatorStore(mValidatorFile, 10);
+        new ContactPhotoHttpFetcher("test", 2, validators, new ByteArrayPool(1024, 2))
+                .fetch(mServer.url("/photo"), false);
+        // Validators are written in batches, not on every download.
+        assertFalse(mValidatorFile.exists());
+        validators.save();
+
+        final ContactPhotoHttpFetcher.Result result =
+                createFetcher(2).fetch(mServer.url("/photo"), true);
+        assertTrue(result.isNotModified());
+    }
+
+    public void testReusesConnection() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(1);
+        fetcher.fetch(mServer.url("/photo"), false);
+        fetcher.fetch(mServer.url("/photo"), true);
+        fetcher.fetch(mServer.url("/chunked"), false);
+        assertEquals(3, mServer.requestCount.get());
+        assertEquals(1, mServer.connectionCount.get());
+    }
+
+    public void testReportsErrors() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        try {
+            fetcher.fetch(mServer.url("/missing"), false);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, fetcher.getFailureCount());
+    }
+
+    public void testKeepsValidatorsOnServerError() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        fetcher.fetch(mServer.url("/photo"), false);
+
+        mServer.errorCode = 503;
+        try {
+            fetcher.fetch(mServer.url("/photo"), true);
+            fail();
+        } catch (IOException expected) {
+        }
+        mServer.errorCode = 0;
+        assertTrue(fetcher.fetch(mServer.url("/photo"), true).isNotModified());
+    }
+
+    public void testDropsValidatorsOnClientError() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        fetcher.fetch(mServer.url("/photo"), false);
+
+        mServer.errorCode = 404;
+        try {
+            fetcher.fetch(mServer.url("/photo"), true);
+            fail();
+        } catch (IOException expected) {
+        }
+        mServer.errorCode = 0;
+        assertFalse(fetcher.fetch(mServer.url("/photo"), true).isNotModified());
+    }
+
+    public void testLimitsConcurrentDownloads() throws Exception {
+        final ContactPhotoHttpFetcher fetcher = createFetcher(2);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        fetcher.fetch(mServer.url("/slow"), false);
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(6, mServer.requestCount.get());
+        assertTrue(mServer.maxConcurrentRequests.get() <= 2);
+        assertTrue(fetcher.getMaxActiveFetches() <= 2);
+    }
+
+    private ContactPhotoHttpFetcher createFetcher(int maxConcurrentFetches) {
+        return new ContactPhotoHttpFetcher("test", maxConcurrentFetches,
+                new ContactPhotoValidatorStore(mValidatorFile, 10),
+                new ByteArrayPool(1024, maxConcurrentFetches));
+    }
+
+    private static byte[] createBytes(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * Minimal keep-alive HTTP/1.1 server. Serves {@link #PHOTO} with validators at "/photo",
+     * without a content length at "/chunked" and after a delay at "/slow". Everything else is
+     * answered with 404. "/photo" is answered with {@link #errorCode} instead if it is set.
+     */
+    private static class TestServer implements Runnable {
+        final AtomicInteger connectionCount = new AtomicInteger();
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+        volatile Map<String, String> lastRequestHeaders;
+        volatile int errorCode;
+
+        private final AtomicInteger mConcurrentRequests = new AtomicInteger();
+        private final ServerSocket mServerSocket;
+        private final List<Socket> mSockets =
+                Collections.synchronizedList(new ArrayList<Socket>());
+
+        TestServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            new Thread(this, "TestServer").start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    connectionCount.incrementAndGet();
+                    mSockets.add(socket);
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    final Map<String, String> headers = new HashMap<String, String>();
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        final int colon = line.indexOf(':');
+                        headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                    lastRequestHeaders = headers;
+                    requestCount.incrementAndGet();
+                    final int concurrent = mConcurrentRequests.incrementAndGet();
+                    int max;
+                    while (concurrent > (max = maxConcurrentRequests.get())) {
+                        if (maxConcurrentRequests.compareAndSet(max, concurrent)) {
+                            break;
+                        }
+                    }
+                    try {
+                        respond(requestLine.split(" ")[1], headers, out);
+                    } finally {
+                        mConcurrentRequests.decrementAndGet();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed.
+            }
+        }
+
+        private void respond(String path, Map<String, String> headers, OutputStream out)
+                throws IOException, InterruptedException {
+            final int errorCode = this.errorCode;
+            if ("/photo".equals(path) && errorCode != 0) {
+                write(out, "HTTP/1.1 " + errorCode + " Error\r\nContent-Length: 5\r\n\r\n",
+                        "error".getBytes(StandardCharsets.UTF_8));
+            } else if ("/photo".equals(path) || "/slow".equals(path)) {
+                if ("/slow".equals(path)) {
+                    Thread.sleep(100);
+                }
+                if (ETAG.equals(headers.get("if-none-match"))) {
+                    write(out, "HTTP/1.1 304 Not Modified\r\nETag: " + ETAG + "\r\n\r\n", null);
+                } else {
+                    write(out, "HTTP/1.1 200 OK\r\nContent-Length: " + PHOTO.length
+                            + "\r\nETag: " + ETAG + "\r\nLast-Modified: " + LAST_MODIFIED
+                            + "\r\n\r\n", PHOTO);
+                }
+            } else if ("/chunked".equals(path)) {
+                final StringBuilder sb = new StringBuilder(
+                        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+                sb.append(Integer.toHexString(PHOTO.length)).append("\r\n");
+                write(out, sb.toString(), PHOTO);
+                write(out, "\r\n0\r\n\r\n", null);
+            } else {
+                write(out, "HTTP/1.1 404 Not Found\r\nContent-Length: 9\r\n\r\n",
+                        "not found".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private static void write(OutputStream out, String head, byte[] body)
+                throws IOException {
+            out.write(head.getBytes(StandardCharsets.UTF_8));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ShapedBitmapCache}.
+ */
+@SmallTest
+public class ShapedBitmapCacheTest extends AndroidTestCase {
+    private static final int EXTENT = 48;
+
+    private ShapedBitmapCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new ShapedBitmapCache(EXTENT * EXTENT * 4 * 10);
+    }
+
+    public void testMasksCircle() {
+        final Bitmap circle = mCache.get(1L, createBitmap(Color.RED),
+                ShapedBitmapCache.SHAPE_CIRCLE);
+        assertEquals(EXTENT, circle.getWidth());
+        assertEquals(EXTENT, circle.getHeight());
+        assertEquals(Color.TRANSPARENT, circle.getPixel(0, 0));
+        assertEquals(Color.RED, circle.getPixel(EXTENT / 2, EXTENT / 2));
+    }
+
+    public void testReturnsCachedBitmap() {
+        final Bitmap source = createBitmap(Color.RED);
+        final Bitmap first = mCache.get(1L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        final Bitmap second = mCache.get(1L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        assertSame(first, second);
+        assertEquals(1, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    public void testRendersAgainForNewSource() {
+        final Bitmap first = mCache.get(1L, createBitmap(Color.RED),
+                ShapedBitmapCache.SHAPE_CIRCLE);
+        final Bitmap second = mCache.get(1L, createBitmap(Color.BLUE),
+                ShapedBitmapCache.SHAPE_CIRCLE);
+        assertNotSame(first, second);
+        assertEquals(Color.BLUE, second.getPixel(EXTENT / 2, EXTENT / 2));
+    }
+
+    public void testRendersAgainWhenSourceIsReused() {
+        final Bitmap source = createBitmap(Color.RED);
+        mCache.get(1L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        // Simulates the pool handing the pixels of the bitmap to another photo.
+        source.eraseColor(Color.GREEN);
+        final Bitmap circle = mCache.get(1L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        assertEquals(Color.GREEN, circle.getPixel(EXTENT / 2, EXTENT / 2));
+        assertEquals(2, mCache.missCount());
+    }
+
+    public void testKeysByPhoto() {
+        final Bitmap source = createBitmap(Color.RED);
+        final Bitmap first = mCache.get(1L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        final Bitmap second = mCache.get(2L, source, ShapedBitmapCache.SHAPE_CIRCLE);
+        assertNotSame(first, second);
+        assertEquals(2, mCache.entryCount());
+    }
+
+    private static Bitmap createBitmap(int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(EXTENT, EXTENT, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.model.dataitem.DataItem;
+import com.android.contacts.common.model.dataitem.PhoneDataItem;
+import com.android.contacts.common.test.mocks.ContactsMockContext;
+import com.android.contacts.common.test.mocks.MockContentProvider;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link BulkContactLoader}.
+ */
+@SmallTest
+public class BulkContactLoaderTest extends AndroidTestCase {
+    private ContactsMockContext mMockContext;
+    private MockContentProvider mContactsProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockContext = new ContactsMockContext(getContext());
+        mContactsProvider = mMockContext.getContactsProvider();
+    }
+
+    public void testLoadsContactsOfChunkWithTwoQueries() {
+        mContactsProvider.expectQuery(Contacts.CONTENT_URI)
+                .withAnyProjection()
+                .withSelection(Contacts._ID + " IN (?,?)", "1", "2")
+                .returnRow(createContactRow(1, "First"))
+                .returnRow(createContactRow(2, "Second"));
+        mContactsProvider.expectQuery(RawContactsEntity.CONTENT_URI)
+                .withAnyProjection()
+                .withAnySelection()
+                .withAnySortOrder()
+                .returnRow(createEntityRow(1, 11, 111, StructuredName.CONTENT_ITEM_TYPE, "First"))
+                .returnRow(createEntityRow(1, 11, 112, Phone.CONTENT_ITEM_TYPE, "555-1234"))
+                .returnRow(createEntityRow(2, 21, 211, StructuredName.CONTENT_ITEM_TYPE,
+                        "Second"));
+
+        final List<Contact> contacts =
+                new BulkContactLoader(mMockContext).load(Lists.newArrayList(1L, 2L));
+
+        assertEquals(2, contacts.size());
+        final Contact first = contacts.get(0);
+        assertEquals(1, first.getId());
+        assertEquals("First", first.getDisplayName());
+        assertEquals(1, first.getRawContacts().size());
+        final RawContact rawContact = first.getRawContacts().get(0);
+        assertEquals(Long.valueOf(11), rawContact.getId());
+        assertEquals("mockAccountName", rawContact.getAccountName());
+        final List<DataItem> dataItems = rawContact.getDataItems();
+        assertEquals(2, dataItems.size());
+        assertTrue(dataItems.get(1) instanceof PhoneDataItem);
+        assertEquals("555-1234", ((PhoneDataItem) dataItems.get(1)).getNumber());
+        assertEquals(2, contacts.get(1).getId());
+        assertEquals(1, contacts.get(1).getRawContacts().size());
+        mContactsProvider.verify();
+    }
+
+    public void testSplitsIdsIntoChunks() {
+        final List<Long> ids = new ArrayList<Long>();
+        final String[] firstChunk = new String[BulkContactLoader.MAX_IDS_PER_QUERY];
+        for (int i = 0; i <= BulkContactLoader.MAX_IDS_PER_QUERY; i++) {
+            ids.add((long) i);
+            if (i < firstChunk.length) {
+                firstChunk[i] = String.valueOf(i);
+            }
+        }
+        mContactsProvider.expectQuery(Contacts.CONTENT_URI)
+                .withAnyProjection()
+                .withSelection(createInSelection(firstChunk.length), firstChunk)
+                .returnEmptyCursor();
+        mContactsProvider.expectQuery(Contacts.CONTENT_URI)
+                .withAnyProjection()
+                .withSelection(Contacts._ID + " IN (?)",
+                        String.valueOf(BulkContactLoader.MAX_IDS_PER_QUERY))
+                .returnEmptyCursor();
+
+        assertTrue(new BulkContactLoader(mMockContext).load(ids).isEmpty());
+        mContactsProvider.verify();
+    }
+
+    private static String createInSelection(int count) {
+        final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    private static Object[] createContactRow(long contactId, String displayName) {
+        return new Object[] {
+                contactId, contactId * 10 + 1, 40, "lookup" + contactId, displayName,
+                displayName, null, 0, null, 0, null, 0, null, 0 };
+    }
+
+    private static Object[] createEntityRow(long contactId, long rawContactId, long dataId,
+            String mimeType, String data1) {
+        return new Object[] {
+                contactId, rawContactId,
+                "mockAccountName", "mockAccountType", null, 0, 1, null,
+                null, null, null, null, 0, 0,
+                dataId, data1, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, 0, 0, 0, mimeType, null };
+    }
+}
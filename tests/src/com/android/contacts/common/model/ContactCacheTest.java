@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link ContactCache}.
+ */
+@SmallTest
+public class ContactCacheTest extends AndroidTestCase {
+    private ContactCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new ContactCache(1024);
+    }
+
+    public void testReturnsCachedContact() {
+        final Contact contact = createContact(1, 11);
+        mCache.put(contact);
+
+        assertSame(contact, mCache.get(contact.getLookupUri()));
+        assertNull(mCache.get(createContact(2, 21).getLookupUri()));
+        assertEquals(1, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+        assertEquals(0.5f, mCache.getHitRate(), 0.001f);
+    }
+
+    public void testDropsContactLoadedBeforeChange() {
+        final long generation = mCache.getGeneration();
+        mCache.onContactsChanged(ContactsContract.AUTHORITY_URI);
+        final Contact contact = createContact(1, 11);
+        mCache.put(contact, generation);
+
+        assertNull(mCache.get(contact.getLookupUri()));
+    }
+
+    public void testChangeOfRawContactDropsItsContactOnly() {
+        final Contact first = createContact(1, 11);
+        final Contact second = createContact(2, 21);
+        mCache.put(first);
+        mCache.put(second);
+
+        mCache.onContactsChanged(ContentUris.withAppendedId(RawContacts.CONTENT_URI, 21));
+        assertSame(first, mCache.get(first.getLookupUri()));
+        assertNull(mCache.get(second.getLookupUri()));
+        assertEquals(1, mCache.invalidationCount());
+    }
+
+    public void testChangeOfContactDropsItOnly() {
+        final Contact first = createContact(1, 11);
+        final Contact second = createContact(2, 21);
+        mCache.put(first);
+        mCache.put(second);
+
+        mCache.onContactsChanged(ContentUris.withAppendedId(Contacts.CONTENT_URI, 1));
+        assertNull(mCache.get(first.getLookupUri()));
+        assertSame(second, mCache.get(second.getLookupUri()));
+    }
+
+    public void testUnspecificChangeDropsAll() {
+        final Contact first = createContact(1, 11);
+        final Contact second = createContact(2, 21);
+        mCache.put(first);
+        mCache.put(second);
+
+        mCache.onContactsChanged(ContactsContract.AUTHORITY_URI);
+        assertEquals(0, mCache.size());
+        assertEquals(2, mCache.invalidationCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ContactCache cache = new ContactCache(32);
+        final Contact first = createContact(1, 11);
+        final Contact second = createContact(2, 21);
+        final Contact third = createContact(3, 31);
+        cache.put(first);
+        cache.put(second);
+        cache.get(first.getLookupUri());
+        cache.put(third);
+
+        assertSame(first, cache.get(first.getLookupUri()));
+        assertNull(cache.get(second.getLookupUri()));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    public void testRemeasureCountsPhotoReadAfterPut() {
+        final ContactCache cache = new ContactCache(64);
+        final Contact first = createContact(1, 11);
+        final Contact second = createContact(2, 21);
+        final Contact.LazyPhoto photo = new Contact.LazyPhoto(new Contact.LazyPhoto.Source() {
+            @Override
+            public byte[] load() {
+                return new byte[40 * 1024];
+            }
+        });
+        first.setPhotoBinaryData(photo);
+        cache.put(first);
+        cache.put(second);
+
+        photo.get();
+        cache.remeasure(first.getLookupUri());
+        assertSame(first, cache.get(first.getLookupUri()));
+        assertNull(cache.get(second.getLookupUri()));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    private static Contact createContact(long contactId, long rawContactId) {
+        final Uri lookupUri = ContentUris.withAppendedId(
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, "lookup" + contactId),
+                contactId);
+        final Contact contact = new Contact(lookupUri, lookupUri, lookupUri, 0,
+                "lookup" + contactId, contactId, rawContactId, 0, 0, null, "Name", null, null,
+                false, null, false, null, false);
+        final ContentValues values = new ContentValues();
+        values.put(RawContacts._ID, rawContactId);
+        contact.setRawContacts(ImmutableList.of(new RawContact(values)));
+        return contact;
+    }
+}
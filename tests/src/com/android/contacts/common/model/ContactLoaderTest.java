@@ -66,6 +66,8 @@ public class ContactLoaderTest extends LoaderTestCase {
         super.setUp();
         mMockContext = new ContactsMockContext(getContext());
         mContactsProvider = mMockContext.getContactsProvider();
+        // Every test expects its contact to be queried from the provider.
+        ContactCache.getInstance(mMockContext).clear();
 
         InjectedServices services = new InjectedServices();
         AccountType accountType = new BaseAccountType() {
@@ -308,9 +310,67 @@ public class ContactLoaderTest extends LoaderTestCase {
         mContactsProvider.verify();
     }
 
+    public void testReloadRefreshesPresenceOfUnchangedRawContact() {
+        final Uri baseUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, CONTACT_ID);
+        final Uri entityUri = Uri.withAppendedPath(baseUri, Contacts.Entity.CONTENT_DIRECTORY);
+
+        ContactQueries queries = new ContactQueries();
+        mContactsProvider.expectTypeQuery(baseUri, Contacts.CONTENT_ITEM_TYPE);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
+        final Contact first = assertLoadContact(baseUri);
+
+        // The chat capability changes in the presence table, which leaves the version of the
+        // raw contact as it was. Only the columns that the version does not cover are read.
+        ContactCache.getInstance(mMockContext).clear();
+        queries.fetchVersions(CONTACT_ID, RAW_CONTACT_ID, 1);
+        queries.fetchUnversionedData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID,
+                Data.CHAT_CAPABILITY_VIDEO);
+        final ContactLoader loader = new ContactLoader(mMockContext, baseUri, true);
+        loader.setRefreshBase(first);
+        final Contact second = getLoaderResultSynchronously(loader);
+
+        final RawContact firstRawContact = first.getRawContacts().get(0);
+        final RawContact secondRawContact = second.getRawContacts().get(0);
+        assertNotSame(firstRawContact, secondRawContact);
+        assertEquals(firstRawContact.getValues(), secondRawContact.getValues());
+        assertFalse(firstRawContact.getContentValues().get(0)
+                .containsKey(Data.CHAT_CAPABILITY));
+        assertEquals(Data.CHAT_CAPABILITY_VIDEO, (int) secondRawContact.getContentValues().get(0)
+                .getAsInteger(Data.CHAT_CAPABILITY));
+        mContactsProvider.verify();
+    }
+
+    public void testReloadReadsChangedRawContact() {
+        final Uri baseUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, CONTACT_ID);
+        final Uri entityUri = Uri.withAppendedPath(baseUri, Contacts.Entity.CONTENT_DIRECTORY);
+
+        ContactQueries queries = new ContactQueries();
+        mContactsProvider.expectTypeQuery(baseUri, Contacts.CONTENT_ITEM_TYPE);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY);
+        final Contact first = assertLoadContact(baseUri);
+
+        // The only raw contact of the contact changed, so that nothing can be reused.
+        ContactCache.getInstance(mMockContext).clear();
+        queries.fetchVersions(CONTACT_ID, RAW_CONTACT_ID, 2);
+        queries.fetchAllData(entityUri, CONTACT_ID, RAW_CONTACT_ID, DATA_ID, LOOKUP_KEY,
+                Data.CHAT_CAPABILITY_VIDEO);
+        final ContactLoader loader = new ContactLoader(mMockContext, baseUri, true);
+        loader.setRefreshBase(first);
+        final Contact second = getLoaderResultSynchronously(loader);
+
+        assertEquals(Data.CHAT_CAPABILITY_VIDEO, (int) second.getRawContacts().get(0)
+                .getContentValues().get(0).getAsInteger(Data.CHAT_CAPABILITY));
+        mContactsProvider.verify();
+    }
+
     class ContactQueries {
         public void fetchAllData(
                 Uri baseUri, long contactId, long rawContactId, long dataId, String encodedLookup) {
+            fetchAllData(baseUri, contactId, rawContactId, dataId, encodedLookup, null);
+        }
+
+        public void fetchAllData(Uri baseUri, long contactId, long rawContactId, long dataId,
+                String encodedLookup, Integer chatCapability) {
             final String[] COLUMNS_INTERNAL = new String[] {
                     Contacts.NAME_RAW_CONTACT_ID, Contacts.DISPLAY_NAME_SOURCE,
                     Contacts.LOOKUP_KEY, Contacts.DISPLAY_NAME,
@@ -386,7 +446,7 @@ public class ContactLoaderTest extends LoaderTestCase {
 
                     "groupId",
 
-                    StatusUpdates.INVISIBLE, null,
+                    StatusUpdates.INVISIBLE, chatCapability,
                     "Having dinner", "mockPkg3", 0,
                     20, 0,
 
@@ -412,6 +472,52 @@ public class ContactLoaderTest extends LoaderTestCase {
                     .returnRow(ROWS);
         }
 
+        void fetchVersions(long contactId, long rawContactId, long version) {
+            mContactsProvider.expectQuery(RawContacts.CONTENT_URI)
+                    .withProjection(RawContacts._ID, RawContacts.VERSION)
+                    .withSelection(RawContacts.CONTACT_ID + "=?", String.valueOf(contactId))
+                    .returnRow(rawContactId, version);
+        }
+
+        void fetchUnversionedData(Uri baseUri, long contactId, long rawContactId, long dataId,
+                Integer chatCapability) {
+            final List<String> projectionList = Lists.newArrayList(
+                    Contacts.NAME_RAW_CONTACT_ID, Contacts.DISPLAY_NAME_SOURCE,
+                    Contacts.LOOKUP_KEY, Contacts.DISPLAY_NAME,
+                    Contacts.DISPLAY_NAME_ALTERNATIVE, Contacts.PHONETIC_NAME,
+                    Contacts.PHOTO_ID, Contacts.STARRED, Contacts.CONTACT_PRESENCE,
+                    Contacts.PHOTO_URI, Contacts.SEND_TO_VOICEMAIL, Contacts.CUSTOM_RINGTONE,
+                    Contacts.IS_USER_PROFILE,
+                    Contacts.Entity.CONTACT_ID, Contacts.Entity.RAW_CONTACT_ID,
+
+                    Contacts.Entity.DATA_ID,
+                    Data.PRESENCE, Data.STATUS, Data.STATUS_RES_PACKAGE, Data.STATUS_ICON,
+                    Data.STATUS_LABEL, Data.STATUS_TIMESTAMP,
+                    Data.CHAT_CAPABILITY, Data.TIMES_USED, Data.LAST_TIME_USED);
+            final List<Object> rowsList = Lists.<Object>newArrayList(
+                    rawContactId, 40,
+                    "aa%12%@!", "John Doe", "Doe, John", "jdo",
+                    0, 0, StatusUpdates.AVAILABLE,
+                    "content:some.photo.uri", 0, null, 0,
+                    contactId, rawContactId,
+
+                    dataId,
+                    StatusUpdates.INVISIBLE, "Having dinner", "mockPkg3", 0,
+                    20, 0,
+                    chatCapability, 0, 0);
+            if (CompatUtils.isMarshmallowCompatible()) {
+                projectionList.add(Data.CARRIER_PRESENCE);
+                rowsList.add(Data.CARRIER_PRESENCE_VT_CAPABLE);
+            }
+
+            mContactsProvider.expectQuery(baseUri)
+                    .withProjection(projectionList.toArray(new String[projectionList.size()]))
+                    .withSelection(Contacts.Entity.RAW_CONTACT_ID + " IN (?)",
+                            String.valueOf(rawContactId))
+                    .withSortOrder(Contacts.Entity.RAW_CONTACT_ID)
+                    .returnRow(rowsList.toArray());
+        }
+
         void fetchLookupAndId(final Uri sourceUri, final long expectedContactId,
                 final String expectedEncodedLookup) {
             mContactsProvider.expectQuery(sourceUri)
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.contacts.common.test.Benchmark;
+import com.android.contacts.common.test.BenchmarkMeasurement;
+import com.android.contacts.common.test.mocks.ContactsMockContext;
+import com.android.contacts.common.test.mocks.MockContentProvider;
+
+/**
+ * Compares copying the data rows of a large contact, served by {@link MockContentProvider}, one
+ * column at a time into growing {@link ContentValues}, as the loaders used to, with
+ * {@link CursorRowMapper}.
+ */
+@Benchmark
+@LargeTest
+public class CursorRowMapperBenchmark extends AndroidTestCase {
+    private static final String TAG = "CursorRowMapperBenchmark";
+
+    private static final int ROWS = 500;
+    private static final int ITERATIONS = 10;
+
+    private static final String[] COLUMNS = new String[] {
+            Data._ID, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5, Data.DATA6,
+            Data.DATA7, Data.DATA8, Data.DATA9, Data.DATA10, Data.DATA11, Data.DATA12,
+            Data.DATA13, Data.DATA14, Data.DATA15, Data.SYNC1, Data.SYNC2, Data.SYNC3,
+            Data.SYNC4, Data.DATA_VERSION, Data.IS_PRIMARY, Data.IS_SUPER_PRIMARY,
+            Data.MIMETYPE, Data.TIMES_USED, Data.LAST_TIME_USED };
+
+    private static final CursorRowMapper MAPPER = new CursorRowMapper(Data._ID, 0, COLUMNS,
+            CursorRowMapper.ranges(1, COLUMNS.length));
+
+    private static final Uri URI = Data.CONTENT_URI;
+
+    private ContactsMockContext mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new ContactsMockContext(getContext());
+        final MockContentProvider.Query query = mContext.getContactsProvider().expectQuery(URI)
+                .withProjection(COLUMNS)
+                .anyNumberOfTimes();
+        for (int i = 0; i < ROWS; i++) {
+            query.returnRow(createRow(i));
+        }
+    }
+
+    public void testDataRows() throws Exception {
+        BenchmarkMeasurement.log(TAG, ROWS + " data rows",
+                BenchmarkMeasurement.measure("per column", ITERATIONS,
+                        new BenchmarkMeasurement.Operation() {
+                            @Override
+                            public void run() {
+                                final Cursor cursor = query();
+                                while (cursor.moveToNext()) {
+                                    copyPerColumn(cursor);
+                                }
+                                cursor.close();
+                            }
+                        }),
+                BenchmarkMeasurement.measure("CursorRowMapper", ITERATIONS,
+                        new BenchmarkMeasurement.Operation() {
+                            @Override
+                            public void run() {
+                                final Cursor cursor = query();
+                                while (cursor.moveToNext()) {
+                                    MAPPER.map(cursor);
+                                }
+                                cursor.close();
+                            }
+                        }));
+    }
+
+    private Cursor query() {
+        return mContext.getContentResolver().query(URI, COLUMNS, null, null, null);
+    }
+
+    private static Object[] createRow(int index) {
+        final Object[] row = new Object[COLUMNS.length];
+        row[0] = (long) index;
+        for (int i = 1; i <= 15; i++) {
+            row[i] = "data" + i + "-" + index;
+        }
+        for (int i = 16; i < COLUMNS.length - 3; i++) {
+            row[i] = 0L;
+        }
+        row[COLUMNS.length - 3] = Phone.CONTENT_ITEM_TYPE;
+        row[COLUMNS.length - 2] = 3L;
+        row[COLUMNS.length - 1] = 1000L * index;
+        return row;
+    }
+
+    private static ContentValues copyPerColumn(Cursor cursor) {
+        final ContentValues values = new ContentValues();
+        values.put(Data._ID, cursor.getLong(0));
+        for (int i = 1; i < COLUMNS.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(COLUMNS[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values.put(COLUMNS[i], cursor.getString(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(COLUMNS[i], cursor.getBlob(i));
+                    break;
+            }
+        }
+        return values;
+    }
+}
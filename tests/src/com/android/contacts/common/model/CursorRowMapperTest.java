@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link CursorRowMapper}.
+ */
+@SmallTest
+public class CursorRowMapperTest extends AndroidTestCase {
+    public void testRanges() {
+        assertTrue(Arrays.equals(new int[] { 0, 3, 4, 5 }, CursorRowMapper.ranges(0, 1, 3, 6)));
+        assertEquals(0, CursorRowMapper.ranges(2, 2).length);
+    }
+
+    public void testCopiesColumnsByType() {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] { Data._ID, Data.DATA1, Data.DATA2, Data.DATA15 });
+        cursor.addRow(new Object[] { 7L, "555-1234", null, new byte[] { 1, 2 } });
+        cursor.moveToFirst();
+
+        final ContentValues values = new CursorRowMapper(Data._ID, 0,
+                new String[] { Data._ID, Data.DATA1, Data.DATA2, Data.DATA15 }, 1, 2, 3)
+                .map(cursor);
+
+        assertEquals(3, values.size());
+        assertEquals(Long.valueOf(7), values.getAsLong(Data._ID));
+        assertEquals("555-1234", values.getAsString(Data.DATA1));
+        assertFalse(values.containsKey(Data.DATA2));
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, values.getAsByteArray(Data.DATA15)));
+    }
+
+    public void testCopiesSelectedColumnsOnly() {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] { Data.MIMETYPE, Data._ID, Data.DATA1 });
+        cursor.addRow(new Object[] { Phone.CONTENT_ITEM_TYPE, 3L, "555-1234" });
+        cursor.moveToFirst();
+
+        final ContentValues values = new CursorRowMapper(Data._ID, 1,
+                new String[] { Data.MIMETYPE, Data._ID, Data.DATA1 }, 0).map(cursor);
+
+        assertEquals(2, values.size());
+        assertEquals(Phone.CONTENT_ITEM_TYPE, values.getAsString(Data.MIMETYPE));
+        assertEquals(Long.valueOf(3), values.getAsLong(Data._ID));
+    }
+
+    public void testUpdateOverwritesAndRemovesColumns() {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] { Data._ID, Data.TIMES_USED, Data.CHAT_CAPABILITY });
+        cursor.addRow(new Object[] { 9L, 4L, null });
+        cursor.moveToFirst();
+        final ContentValues values = new ContentValues();
+        values.put(Data._ID, 3L);
+        values.put(Data.DATA1, "555-1234");
+        values.put(Data.TIMES_USED, 1L);
+        values.put(Data.CHAT_CAPABILITY, Data.CHAT_CAPABILITY_AUDIO);
+
+        new CursorRowMapper(Data._ID, 0,
+                new String[] { Data._ID, Data.TIMES_USED, Data.CHAT_CAPABILITY }, 1, 2)
+                .update(cursor, values);
+
+        assertEquals(3, values.size());
+        assertEquals(Long.valueOf(3), values.getAsLong(Data._ID));
+        assertEquals("555-1234", values.getAsString(Data.DATA1));
+        assertEquals(Long.valueOf(4), values.getAsLong(Data.TIMES_USED));
+        assertFalse(values.containsKey(Data.CHAT_CAPABILITY));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.contacts.common.test.Benchmark;
+import com.android.contacts.common.test.BenchmarkMeasurement;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compares decoding a contact with many data items with {@link JSONObject}, as
+ * {@link ContactLoader} used to, and with {@link EncodedContactParser}.
+ */
+@Benchmark
+@LargeTest
+public class EncodedContactParserBenchmark extends AndroidTestCase {
+    private static final String TAG = "EncodedContactParserBenchmark";
+
+    private static final int ITEMS = 500;
+    private static final int ITERATIONS = 20;
+
+    public void testLargeContact() throws Exception {
+        final Uri uri = EncodedContactParserTest.createUri(
+                EncodedContactParserTest.createLargeContact(ITEMS).toString());
+        BenchmarkMeasurement.log(TAG, ITEMS + " data items",
+                BenchmarkMeasurement.measure("JSONObject", ITERATIONS,
+                        new BenchmarkMeasurement.Operation() {
+                            @Override
+                            public void run() throws JSONException {
+                                EncodedContactParserTest.parseWithJsonObject(uri);
+                            }
+                        }),
+                BenchmarkMeasurement.measure("EncodedContactParser", ITERATIONS,
+                        new BenchmarkMeasurement.Operation() {
+                            @Override
+                            public void run() throws JSONException {
+                                EncodedContactParser.parse(uri, uri);
+                            }
+                        }));
+    }
+}
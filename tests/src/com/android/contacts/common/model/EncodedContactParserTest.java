@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.model;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.DisplayNameSources;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.util.Constants;
+import com.android.contacts.common.util.DataStatus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Tests for {@link EncodedContactParser}, checking that it decodes contacts exactly as the
+ * {@link JSONObject} based decoder it replaced.
+ */
+@SmallTest
+public class EncodedContactParserTest extends AndroidTestCase {
+    public void testMatchesJsonObjectDecoder() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put(Contacts.DISPLAY_NAME, "John Doe");
+        json.put(Contacts.DISPLAY_NAME_ALTERNATIVE, "Doe, John");
+        json.put(Contacts.DISPLAY_NAME_SOURCE, DisplayNameSources.STRUCTURED_NAME);
+        json.put(Contacts.PHOTO_URI, "http://example.com/photo.jpg");
+        json.put(RawContacts.ACCOUNT_NAME, "john@example.com");
+        json.put(RawContacts.ACCOUNT_TYPE, "com.example");
+        json.put(Directory.EXPORT_SUPPORT, String.valueOf(Directory.EXPORT_SUPPORT_NONE));
+        json.put(Contacts.NAME_RAW_CONTACT_ID, 12L);
+        json.put("unknown", new JSONObject().put("nested", new JSONArray().put(1)));
+
+        final JSONObject items = new JSONObject();
+        items.put(StructuredName.CONTENT_ITEM_TYPE, new JSONObject()
+                .put(StructuredName.GIVEN_NAME, "John")
+                .put(StructuredName.FAMILY_NAME, "Doe"));
+        items.put(Phone.CONTENT_ITEM_TYPE, new JSONArray()
+                .put(new JSONObject()
+                        .put(Phone.NUMBER, "555-1234")
+                        .put(Phone.TYPE, Phone.TYPE_MOBILE)
+                        .put(Data.IS_PRIMARY, true)
+                        .put(Data.DATA_VERSION, 1L << 40)
+                        .put(Data.DATA10, 1.5)
+                        .put(Data.DATA11, JSONObject.NULL)
+                        .put(Data.DATA12, new JSONObject().put("a", "b")))
+                .put(new JSONObject()
+                        .put(Phone.NUMBER, "555-5678")
+                        .put(Phone.TYPE, Phone.TYPE_WORK)));
+        items.put(Email.CONTENT_ITEM_TYPE, new JSONObject()
+                .put(Email.ADDRESS, "john@example.com")
+                .put(Email.TYPE, -1));
+        json.put(Contacts.CONTENT_ITEM_TYPE, items);
+
+        assertSameContact(createUri(json.toString()));
+    }
+
+    public void testMatchesJsonObjectDecoderWithDefaults() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put(Contacts.DISPLAY_NAME_SOURCE, String.valueOf(DisplayNameSources.EMAIL));
+        json.put(Contacts.CONTENT_ITEM_TYPE, new JSONObject().put(Email.CONTENT_ITEM_TYPE,
+                new JSONArray()));
+
+        final Uri uri = createUri(json.toString());
+        assertSameContact(uri);
+
+        final Contact contact = EncodedContactParser.parse(uri, uri);
+        assertEquals("", contact.getDisplayName());
+        assertEquals("", contact.getAltDisplayName());
+        assertNull(contact.getPhotoUri());
+        assertNull(contact.getDirectoryAccountName());
+        assertEquals(Directory.EXPORT_SUPPORT_ANY_ACCOUNT, contact.getDirectoryExportSupport());
+        assertTrue(contact.getRawContacts().get(0).getDataItems().isEmpty());
+    }
+
+    public void testMatchesJsonObjectDecoderOnRelaxedSyntax() throws JSONException {
+        assertSameContact(createUri("{display_name:'John', display_name_source=40;"
+                + " 'vnd.android.cursor.item/contact':{email:{data1:john@example.com,"
+                + " data2:2.0e0, data3:3}}}"));
+    }
+
+    public void testRejectsInvalidContacts() {
+        assertNull(ContactLoader.parseEncodedContactEntity(createUri("{")));
+        assertNull(ContactLoader.parseEncodedContactEntity(createUri("[]")));
+        // Missing display name source.
+        assertNull(ContactLoader.parseEncodedContactEntity(
+                createUri("{'vnd.android.cursor.item/contact':{}}")));
+        // Missing data items.
+        assertNull(ContactLoader.parseEncodedContactEntity(
+                createUri("{display_name_source:40}")));
+        // Data items that are not objects.
+        assertNull(ContactLoader.parseEncodedContactEntity(createUri(
+                "{display_name_source:40, 'vnd.android.cursor.item/contact':{email:[1]}}")));
+        // Account without account type.
+        assertNull(ContactLoader.parseEncodedContactEntity(createUri(
+                "{display_name_source:40, account_name:john,"
+                + " 'vnd.android.cursor.item/contact':{}}")));
+    }
+
+    public void testMatchesJsonObjectDecoderOnLargeContact() throws JSONException {
+        assertSameContact(createUri(createLargeContact(500).toString()));
+    }
+
+    /* package */ static JSONObject createLargeContact(int items) throws JSONException {
+        final JSONArray phones = new JSONArray();
+        final JSONArray emails = new JSONArray();
+        for (int i = 0; i < items / 2; i++) {
+            phones.put(new JSONObject()
+                    .put(Phone.NUMBER, "555-" + (1000 + i))
+                    .put(Phone.TYPE, Phone.TYPE_CUSTOM)
+                    .put(Phone.LABEL, "Phone " + i));
+            emails.put(new JSONObject()
+                    .put(Email.ADDRESS, "user" + i + "@example.com")
+                    .put(Email.TYPE, Email.TYPE_OTHER));
+        }
+        return new JSONObject()
+                .put(Contacts.DISPLAY_NAME, "John Doe")
+                .put(Contacts.DISPLAY_NAME_SOURCE, DisplayNameSources.STRUCTURED_NAME)
+                .put(RawContacts.ACCOUNT_NAME, "john@example.com")
+                .put(RawContacts.ACCOUNT_TYPE, "com.example")
+                .put(Contacts.CONTENT_ITEM_TYPE, new JSONObject()
+                        .put(Phone.CONTENT_ITEM_TYPE, phones)
+                        .put(Email.CONTENT_ITEM_TYPE, emails));
+    }
+
+    /* package */ static Uri createUri(String json) {
+        return Contacts.CONTENT_LOOKUP_URI.buildUpon()
+                .encodedFragment(json)
+                .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY, "1")
+                .appendQueryParameter(Directory.DISPLAY_NAME, "Directory")
+                .appendPath(Constants.LOOKUP_URI_ENCODED).build();
+    }
+
+    private static void assertSameContact(Uri uri) throws JSONException {
+        final Contact expected = parseWithJsonObject(uri);
+        final Contact actual = EncodedContactParser.parse(uri, uri);
+
+        assertEquals(expected.getLookupUri(), actual.getLookupUri());
+        assertEquals(expected.getDirectoryId(), actual.getDirectoryId());
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getAltDisplayName(), actual.getAltDisplayName());
+        assertEquals(expected.getDisplayNameSource(), actual.getDisplayNameSource());
+        assertEquals(expected.getPhotoUri(), actual.getPhotoUri());
+        assertEquals(expected.getDirectoryDisplayName(), actual.getDirectoryDisplayName());
+        assertEquals(expected.getDirectoryAccountName(), actual.getDirectoryAccountName());
+        assertEquals(expected.getDirectoryAccountType(), actual.getDirectoryAccountType());
+        assertEquals(expected.getDirectoryExportSupport(), actual.getDirectoryExportSupport());
+        assertEquals(expected.getStatuses(), actual.getStatuses());
+        assertEquals(expected.getRawContacts(), actual.getRawContacts());
+    }
+
+    /**
+     * Decodes the contact as {@link ContactLoader} did before {@link EncodedContactParser}.
+     */
+    /* package */ static Contact parseWithJsonObject(Uri uri) throws JSONException {
+        final JSONObject json = new JSONObject(uri.getEncodedFragment());
+        final long directoryId =
+                Long.valueOf(uri.getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY));
+
+        final String displayName = json.optString(Contacts.DISPLAY_NAME);
+        final String altDisplayName = json.optString(
+                Contacts.DISPLAY_NAME_ALTERNATIVE, displayName);
+        final int displayNameSource = json.getInt(Contacts.DISPLAY_NAME_SOURCE);
+        final String photoUri = json.optString(Contacts.PHOTO_URI, null);
+        final Contact contact = new Contact(uri, uri, uri, directoryId, null, -1, -1,
+                displayNameSource, 0, photoUri, displayName, altDisplayName, null, false, null,
+                false, null, false);
+        contact.setStatuses(new ImmutableMap.Builder<Long, DataStatus>().build());
+
+        final String accountName = json.optString(RawContacts.ACCOUNT_NAME, null);
+        final String directoryName = uri.getQueryParameter(Directory.DISPLAY_NAME);
+        if (accountName != null) {
+            final String accountType = json.getString(RawContacts.ACCOUNT_TYPE);
+            contact.setDirectoryMetaData(directoryName, null, accountName, accountType,
+                    json.optInt(Directory.EXPORT_SUPPORT,
+                            Directory.EXPORT_SUPPORT_SAME_ACCOUNT_ONLY));
+        } else {
+            contact.setDirectoryMetaData(directoryName, null, null, null,
+                    json.optInt(Directory.EXPORT_SUPPORT, Directory.EXPORT_SUPPORT_ANY_ACCOUNT));
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(Data._ID, -1);
+        values.put(Data.CONTACT_ID, -1);
+        final RawContact rawContact = new RawContact(values);
+
+        final JSONObject items = json.getJSONObject(Contacts.CONTENT_ITEM_TYPE);
+        final Iterator<String> keys = items.keys();
+        while (keys.hasNext()) {
+            final String mimetype = keys.next();
+            final JSONObject obj = items.optJSONObject(mimetype);
+            if (obj == null) {
+                final JSONArray array = items.getJSONArray(mimetype);
+                for (int i = 0; i < array.length(); i++) {
+                    addDataItem(rawContact, array.getJSONObject(i), mimetype);
+                }
+            } else {
+                addDataItem(rawContact, obj, mimetype);
+            }
+        }
+        contact.setRawContacts(new ImmutableList.Builder<RawContact>()
+                .add(rawContact)
+                .build());
+        return contact;
+    }
+
+    private static void addDataItem(RawContact rawContact, JSONObject item, String mimetype)
+            throws JSONException {
+        final ContentValues itemValues = new ContentValues();
+        itemValues.put(Data.MIMETYPE, mimetype);
+        itemValues.put(Data._ID, -1);
+        final Iterator<String> iterator = item.keys();
+        while (iterator.hasNext()) {
+            final String name = iterator.next();
+            final Object o = item.get(name);
+            if (o instanceof String) {
+                itemValues.put(name, (String) o);
+            } else if (o instanceof Integer) {
+                itemValues.put(name, (Integer) o);
+            }
+        }
+        rawContact.addDataItemValues(itemValues);
+    }
+}
@@ -70,6 +70,16 @@ public class RawContactTest extends TestCase {
         assertEquals(buildRawContact(), buildRawContact());
     }
 
+    public void testCopy() {
+        final RawContact original = buildRawContact();
+        final RawContact copy = original.copy();
+        assertEquals(original, copy);
+
+        copy.getValues().put("key1", "changed");
+        copy.getContentValues().get(0).put("key3", "changed");
+        assertEquals(buildRawContact(), original);
+    }
+
     public void testParcelable() {
         assertParcelableEquals(buildRawContact());
     }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link BitmapPool} and the pooled decoding in {@link BitmapUtil}.
+ */
+@SmallTest
+public class BitmapPoolTest extends AndroidTestCase {
+    private static final int POOL_SIZE = 100 * 100 * 4 * 4;
+
+    public void testGetFromEmptyPoolCountsAllocation() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        assertNull(pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(0, pool.getReuseCount());
+    }
+
+    public void testReusesBitmapOfSufficientSize() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        final Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.get(90, 90, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getReuseCount());
+        assertEquals(0, pool.size());
+    }
+
+    public void testDoesNotHandOutMuchLargerBitmaps() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        pool.put(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertNull(pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(101, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testIgnoresImmutableBitmaps() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        final Bitmap mutable = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        pool.put(mutable.copy(Bitmap.Config.ARGB_8888, false));
+        assertEquals(0, pool.size());
+    }
+
+    public void testEvictsOldestBitmapsFirst() {
+        final BitmapPool pool = new BitmapPool(100 * 100 * 4 * 2);
+        final Bitmap first = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap second = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap third = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertEquals(1, pool.getEvictionCount());
+        final Bitmap a = pool.get(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap b = pool.get(100, 100, Bitmap.Config.ARGB_8888);
+        assertNotSame(first, a);
+        assertNotSame(first, b);
+        assertNull(pool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testDecodeReusesPooledBitmap() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        final byte[] bytes = createPngRawData(100, 100);
+        final Bitmap first = BitmapUtil.decodeBitmapFromBytes(bytes, 1, pool);
+        assertTrue(first.isMutable());
+        pool.put(first);
+
+        final Bitmap second = BitmapUtil.decodeBitmapFromBytes(bytes, 2, pool);
+        assertSame(first, second);
+        assertEquals(50, second.getWidth());
+        assertEquals(50, second.getHeight());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    public void testCropToCenterSquare() {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE);
+        final Bitmap input = Bitmap.createBitmap(80, 40, Bitmap.Config.ARGB_8888);
+        final Bitmap result = BitmapUtil.cropToCenterSquare(input, pool);
+
+        assertEquals(40, result.getWidth());
+        assertEquals(40, result.getHeight());
+        // The input is handed back to the pool.
+        assertSame(input, pool.get(80, 40, Bitmap.Config.ARGB_8888));
+    }
+
+    private static byte[] createPngRawData(int width, int height) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+}
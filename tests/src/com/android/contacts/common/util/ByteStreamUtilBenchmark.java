@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.contacts.common.test.Benchmark;
+import com.android.contacts.common.test.BenchmarkMeasurement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares reading display-photo sized files through a growing {@link ByteArrayOutputStream},
+ * as the photo loaders used to, with {@link ByteStreamUtil}, which reads files of known size
+ * with a single copy, and with its pooled chunks, which it uses for streams of unknown length.
+ */
+@Benchmark
+@LargeTest
+public class ByteStreamUtilBenchmark extends AndroidTestCase {
+    private static final String TAG = "ByteStreamUtilBenchmark";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int ITERATIONS = 10;
+
+    private ByteArrayPool mPool;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ByteArrayPool(BUFFER_SIZE, 2);
+        mFile = new File(getContext().getCacheDir(), "ByteStreamUtilBenchmark");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testDisplayPhotoReads() throws Exception {
+        final Uri uri = Uri.fromFile(mFile);
+        for (int megabytes = 1; megabytes <= 4; megabytes++) {
+            writeFile(megabytes * 1024 * 1024);
+            BenchmarkMeasurement.log(TAG, megabytes + "MB",
+                    BenchmarkMeasurement.measure("ByteArrayOutputStream", ITERATIONS,
+                            new BenchmarkMeasurement.Operation() {
+                                @Override
+                                public void run() throws IOException {
+                                    readThroughByteArrayOutputStream(uri);
+                                }
+                            }),
+                    BenchmarkMeasurement.measure("ByteStreamUtil", ITERATIONS,
+                            new BenchmarkMeasurement.Operation() {
+                                @Override
+                                public void run() throws IOException {
+                                    ByteStreamUtil.read(
+                                            getContext().getContentResolver(), uri, mPool);
+                                }
+                            }),
+                    BenchmarkMeasurement.measure("ByteStreamUtil chunked", ITERATIONS,
+                            new BenchmarkMeasurement.Operation() {
+                                @Override
+                                public void run() throws IOException {
+                                    readThroughChunks(uri);
+                                }
+                            }));
+        }
+    }
+
+    private byte[] readThroughByteArrayOutputStream(Uri uri) throws IOException {
+        final InputStream in = getContext().getContentResolver().openInputStream(uri);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] readThroughChunks(Uri uri) throws IOException {
+        final InputStream in = getContext().getContentResolver().openInputStream(uri);
+        try {
+            return ByteStreamUtil.toByteArray(in, mPool);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
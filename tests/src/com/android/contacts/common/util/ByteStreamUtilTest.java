@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ByteStreamUtil}.
+ */
+@SmallTest
+public class ByteStreamUtilTest extends AndroidTestCase {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private ByteArrayPool mPool;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ByteArrayPool(BUFFER_SIZE, 2);
+        mFile = new File(getContext().getCacheDir(), "ByteStreamUtilTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReadFully() throws IOException {
+        final byte[] bytes = createBytes(1000);
+        assertTrue(Arrays.equals(bytes,
+                ByteStreamUtil.readFully(new TrickleInputStream(bytes), bytes.length)));
+    }
+
+    public void testReadFullyFailsOnShortStream() {
+        try {
+            ByteStreamUtil.readFully(new ByteArrayInputStream(new byte[10]), 20);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testToByteArraySpansChunks() throws IOException {
+        final byte[] bytes = createBytes(BUFFER_SIZE * 3 + 17);
+        assertTrue(Arrays.equals(bytes,
+                ByteStreamUtil.toByteArray(new TrickleInputStream(bytes), mPool)));
+    }
+
+    public void testToByteArrayOfExactChunk() throws IOException {
+        final byte[] bytes = createBytes(BUFFER_SIZE);
+        assertTrue(Arrays.equals(bytes,
+                ByteStreamUtil.toByteArray(new ByteArrayInputStream(bytes), mPool)));
+    }
+
+    public void testToByteArrayOfEmptyStream() throws IOException {
+        assertEquals(0,
+                ByteStreamUtil.toByteArray(new ByteArrayInputStream(new byte[0]), mPool).length);
+    }
+
+    public void testToByteArrayReturnsBuffersToPool() throws IOException {
+        ByteStreamUtil.toByteArray(new ByteArrayInputStream(createBytes(BUFFER_SIZE)), mPool);
+        ByteStreamUtil.toByteArray(new ByteArrayInputStream(createBytes(BUFFER_SIZE)), mPool);
+        assertTrue(mPool.getReuseCount() > 0);
+    }
+
+    public void testReadsFileUri() throws IOException {
+        final byte[] bytes = createBytes(100000);
+        writeFile(bytes);
+        assertTrue(Arrays.equals(bytes, ByteStreamUtil.read(
+                getContext().getContentResolver(), Uri.fromFile(mFile), mPool)));
+    }
+
+    public void testReadsFileUriWithSingleCopy() throws IOException {
+        writeFile(createBytes(100000));
+        ByteStreamUtil.read(getContext().getContentResolver(), Uri.fromFile(mFile), mPool);
+        // The size of the file is known, so that no chunks are taken from the pool.
+        assertEquals(0, mPool.getAllocationCount());
+        assertEquals(0, mPool.getReuseCount());
+    }
+
+    private void writeFile(byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] createBytes(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    /** Returns at most 1000 bytes per read, like a slow stream. */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+}
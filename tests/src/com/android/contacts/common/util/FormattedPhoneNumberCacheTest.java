@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.compat.PhoneNumberUtilsCompat;
+
+/**
+ * Tests for {@link FormattedPhoneNumberCache}.
+ */
+@SmallTest
+public class FormattedPhoneNumberCacheTest extends AndroidTestCase {
+    private static final String NUMBER = "6502530000";
+    private static final String NUMBER_E164 = "+16502530000";
+
+    private FormattedPhoneNumberCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new FormattedPhoneNumberCache(10);
+    }
+
+    public void testFormatsAsPhoneNumberUtils() {
+        assertEquals(PhoneNumberUtilsCompat.formatNumber(NUMBER, NUMBER_E164, "US"),
+                mCache.format(NUMBER, NUMBER_E164, "US"));
+        assertNull(mCache.format(null, null, "US"));
+    }
+
+    public void testReturnsCachedNumber() {
+        final String formatted = mCache.format(NUMBER, NUMBER_E164, "US");
+        assertSame(formatted, mCache.format(NUMBER, NUMBER_E164, "US"));
+        mCache.format(NUMBER, null, "US");
+
+        assertEquals(1, mCache.hitCount());
+        assertEquals(2, mCache.missCount());
+        assertEquals(1f / 3, mCache.getHitRate(), 0.001f);
+        assertEquals(2, mCache.size());
+    }
+
+    public void testCountryChangeDropsNumbers() {
+        mCache.format(NUMBER, NUMBER_E164, "US");
+        mCache.format(NUMBER, NUMBER_E164, "GB");
+
+        assertEquals(0, mCache.hitCount());
+        assertEquals(1, mCache.size());
+        assertEquals(1, mCache.countryChangeCount());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+@SmallTest
+public class LatencyHistogramTest extends AndroidTestCase {
+
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.getBucket(0));
+        assertEquals(1, LatencyHistogram.getBucket(1));
+        assertEquals(2, LatencyHistogram.getBucket(2));
+        assertEquals(2, LatencyHistogram.getBucket(3));
+        assertEquals(3, LatencyHistogram.getBucket(4));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(4, LatencyHistogram.getBucketUpperBound(2));
+    }
+
+    public void testEmptySnapshot() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanMillis());
+        assertEquals(0, snapshot.getPercentileMillis(50));
+    }
+
+    public void testRecordsCountMeanAndMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(2);
+        histogram.record(4);
+        histogram.record(-5);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(2, snapshot.getMeanMillis());
+        assertEquals(4, snapshot.getMaxMillis());
+        assertEquals(1, snapshot.getBucketCount(0));
+    }
+
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(4, snapshot.getPercentileMillis(50));
+        assertEquals(4, snapshot.getPercentileMillis(90));
+        // Capped at the largest recorded value rather than the bucket bound of 128ms.
+        assertEquals(100, snapshot.getPercentileMillis(99));
+    }
+}